@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+
+import com.android.contacts.common.model.RawContactDelta;
+import com.android.contacts.common.model.RawContactDeltaList;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Work queue of {@link ContactSaveService}.
+ *
+ * <ul>
+ * <li>A pending star, send-to-voicemail or ringtone change of a contact is replaced by a
+ * later change of the same field of the same contact, only the last value is written.</li>
+ * <li>User-visible saves run before single-contact changes, which run before bulk work.
+ * Within a priority, and among requests holding the same lock, requests run in arrival
+ * order.</li>
+ * <li>Every request for one contact, saves included, holds the lock of that contact.
+ * Requests holding different locks run concurrently on up to {@link #MAX_WORKERS}
+ * threads. Requests that touch an unknown set of contacts (joins, bulk deletes) are barriers
+ * and run alone. Nothing moves ahead of a pending barrier, and a barrier moves ahead of
+ * nothing.</li>
+ * </ul>
+ */
+class ContactSaveQueue {
+
+    @VisibleForTesting
+    static final int PRIORITY_USER = 0;
+    @VisibleForTesting
+    static final int PRIORITY_SINGLE = 1;
+    @VisibleForTesting
+    static final int PRIORITY_BULK = 2;
+
+    private static final int MAX_WORKERS = 3;
+
+    private static final String LOCK_CONTACT = "contact ";
+    /** Held by requests that create a contact, which has no id to lock yet. */
+    private static final String LOCK_NEW_CONTACT = "new contact";
+    private static final String LOCK_GROUPS = "groups";
+
+    interface Callback {
+        /** Called on a worker thread for every request that was not coalesced away. */
+        void process(Intent intent);
+
+        /** Called on a worker thread when no request is pending or running. */
+        void onIdle();
+    }
+
+    private static class Work {
+        Intent intent;
+        final int priority;
+        final long sequence;
+        final String coalesceKey;
+        /** Null for a barrier that runs alone. */
+        final String lock;
+        final long enqueueTime;
+
+        Work(Intent intent, int priority, long sequence, String coalesceKey, String lock) {
+            this.intent = intent;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.coalesceKey = coalesceKey;
+            this.lock = lock;
+            this.enqueueTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final Callback mCallback;
+    private final ExecutorService mExecutor;
+
+    // All guarded by this.
+    private final ArrayList<Work> mPending = new ArrayList<>();
+    private final HashMap<String, Work> mCoalescable = new HashMap<>();
+    private final HashSet<String> mHeldLocks = new HashSet<>();
+    private boolean mBarrierRunning;
+    private int mRunning;
+    private long mSequence;
+
+    private int mEnqueued;
+    private int mCoalesced;
+    private int mCompleted;
+    private int mMaxDepth;
+    private long mTotalWaitMillis;
+    private long mMaxWaitMillis;
+
+    ContactSaveQueue(Callback callback) {
+        mCallback = callback;
+        mExecutor = Executors.newFixedThreadPool(MAX_WORKERS);
+    }
+
+    /**
+     * Queues the request, or replaces the pending request it supersedes.
+     */
+    synchronized void enqueue(Intent intent) {
+        mEnqueued++;
+        final String action = intent.getAction();
+        final String coalesceKey = getCoalesceKey(intent);
+        if (coalesceKey != null) {
+            // a barrier queued since the pending request keeps the new value behind it.
+            final Work pending = mCoalescable.get(coalesceKey);
+            if (pending != null && !hasBarrierAfter(pending)) {
+                // keep the place in line, only the value changes.
+                pending.intent = intent;
+                mCoalesced++;
+                return;
+            }
+        }
+        final Work work = new Work(intent, getPriority(action), mSequence++, coalesceKey,
+                getLock(intent));
+        int index = mPending.size();
+        while (index > 0 && work.lock != null) {
+            final Work before = mPending.get(index - 1);
+            // never overtake a barrier or an earlier request for the same contact.
+            if (before.priority <= work.priority || before.lock == null
+                    || work.lock.equals(before.lock)) {
+                break;
+            }
+            index--;
+        }
+        mPending.add(index, work);
+        if (coalesceKey != null) {
+            mCoalescable.put(coalesceKey, work);
+        }
+        mMaxDepth = Math.max(mMaxDepth, mPending.size());
+        schedule();
+    }
+
+    private boolean hasBarrierAfter(Work work) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            final Work pending = mPending.get(i);
+            if (pending == work) {
+                return false;
+            }
+            if (pending.lock == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized boolean isIdle() {
+        return mPending.isEmpty() && mRunning == 0;
+    }
+
+    synchronized int getDepth() {
+        return mPending.size();
+    }
+
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Save queue:");
+        writer.println("  pending=" + mPending.size() + " running=" + mRunning
+                + " maxDepth=" + mMaxDepth);
+        writer.println("  enqueued=" + mEnqueued + " coalesced=" + mCoalesced
+                + " completed=" + mCompleted);
+        writer.println("  avgWait=" + (mCompleted == 0 ? 0 : mTotalWaitMillis / mCompleted)
+                + "ms maxWait=" + mMaxWaitMillis + "ms");
+        final long now = SystemClock.elapsedRealtime();
+        for (Work work : mPending) {
+            writer.println("    " + work.intent.getAction() + " priority=" + work.priority
+                    + " waiting=" + (now - work.enqueueTime) + "ms");
+        }
+    }
+
+    /**
+     * Starts every pending request that does not conflict with a running one. A barrier
+     * that cannot start yet holds back everything behind it.
+     */
+    private void schedule() {
+        int i = 0;
+        while (i < mPending.size() && mRunning < MAX_WORKERS && !mBarrierRunning) {
+            final Work work = mPending.get(i);
+            if (work.lock == null) {
+                if (mRunning > 0) {
+                    return;
+                }
+                mBarrierRunning = true;
+            } else if (mHeldLocks.contains(work.lock)) {
+                i++;
+                continue;
+            } else {
+                mHeldLocks.add(work.lock);
+            }
+            mPending.remove(i);
+            // a later request with the same key may have been queued on its own.
+            if (work.coalesceKey != null && mCoalescable.get(work.coalesceKey) == work) {
+                mCoalescable.remove(work.coalesceKey);
+            }
+            mRunning++;
+            final long wait = SystemClock.elapsedRealtime() - work.enqueueTime;
+            mTotalWaitMillis += wait;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, wait);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mCallback.process(work.intent);
+                    } finally {
+                        finish(work);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish(Work work) {
+        final boolean idle;
+        synchronized (this) {
+            mRunning--;
+            mCompleted++;
+            if (work.lock == null) {
+                mBarrierRunning = false;
+            } else {
+                mHeldLocks.remove(work.lock);
+            }
+            schedule();
+            idle = isIdle();
+        }
+        if (idle) {
+            mCallback.onIdle();
+        }
+    }
+
+    @VisibleForTesting
+    static int getPriority(String action) {
+        if (ContactSaveService.ACTION_SAVE_CONTACT.equals(action)
+                || ContactSaveService.ACTION_NEW_RAW_CONTACT.equals(action)
+                || ContactSaveService.ACTION_JOIN_CONTACTS.equals(action)
+                || ContactSaveService.ACTION_CREATE_GROUP.equals(action)
+                || ContactSaveService.ACTION_RENAME_GROUP.equals(action)
+                || ContactSaveService.ACTION_UPDATE_GROUP.equals(action)
+                || ContactSaveService.ACTION_DELETE_GROUP.equals(action)) {
+            return PRIORITY_USER;
+        }
+        if (ContactSaveService.ACTION_DELETE_MULTIPLE_CONTACTS.equals(action)
+                || ContactSaveService.ACTION_JOIN_SEVERAL_CONTACTS.equals(action)) {
+            return PRIORITY_BULK;
+        }
+        return PRIORITY_SINGLE;
+    }
+
+    /**
+     * @return the key under which a later request replaces this one, or null if the request
+     *         must always run.
+     */
+    @VisibleForTesting
+    static String getCoalesceKey(Intent intent) {
+        final String action = intent.getAction();
+        if (ContactSaveService.ACTION_SET_STARRED.equals(action)
+                || ContactSaveService.ACTION_SET_SEND_TO_VOICEMAIL.equals(action)
+                || ContactSaveService.ACTION_SET_RINGTONE.equals(action)) {
+            final Uri contactUri = intent.getParcelableExtra(ContactSaveService.EXTRA_CONTACT_URI);
+            return contactUri == null ? null : action + ' ' + contactUri;
+        }
+        return null;
+    }
+
+    /**
+     * @return the lock the request holds while running, or null for a barrier.
+     */
+    @VisibleForTesting
+    static String getLock(Intent intent) {
+        final String action = intent.getAction();
+        if (ContactSaveService.ACTION_SET_STARRED.equals(action)
+                || ContactSaveService.ACTION_SET_SEND_TO_VOICEMAIL.equals(action)
+                || ContactSaveService.ACTION_SET_RINGTONE.equals(action)
+                || ContactSaveService.ACTION_DELETE_CONTACT.equals(action)
+                || ContactSaveService.ACTION_SET_SUPER_PRIMARY.equals(action)
+                || ContactSaveService.ACTION_CLEAR_PRIMARY.equals(action)) {
+            // without the contact, a primary change may touch any contact.
+            final Uri contactUri = intent.getParcelableExtra(ContactSaveService.EXTRA_CONTACT_URI);
+            return contactUri == null ? null : getContactLock(contactUri);
+        }
+        if (ContactSaveService.ACTION_SAVE_CONTACT.equals(action)) {
+            final RawContactDeltaList state =
+                    intent.getParcelableExtra(ContactSaveService.EXTRA_CONTACT_STATE);
+            if (state != null) {
+                for (RawContactDelta rawContact : state) {
+                    final Long contactId = rawContact.getValues().getAsLong(
+                            RawContacts.CONTACT_ID);
+                    if (contactId != null && contactId > 0) {
+                        return LOCK_CONTACT + contactId;
+                    }
+                }
+            }
+            return LOCK_NEW_CONTACT;
+        }
+        if (ContactSaveService.ACTION_NEW_RAW_CONTACT.equals(action)) {
+            return LOCK_NEW_CONTACT;
+        }
+        if (ContactSaveService.ACTION_CREATE_GROUP.equals(action)
+                || ContactSaveService.ACTION_RENAME_GROUP.equals(action)
+                || ContactSaveService.ACTION_UPDATE_GROUP.equals(action)
+                || ContactSaveService.ACTION_DELETE_GROUP.equals(action)) {
+            return LOCK_GROUPS;
+        }
+        return null;
+    }
+
+    /**
+     * @return the lock of the contact, the same for its id uri and its lookup uri with id.
+     */
+    @VisibleForTesting
+    static String getContactLock(Uri contactUri) {
+        final List<String> segments = contactUri.getPathSegments();
+        final String last = contactUri.getLastPathSegment();
+        // contacts/<id> or contacts/lookup/<key>/<id>, a bare lookup key stays as it is.
+        final boolean isLookup = segments.size() > 1 && "lookup".equals(segments.get(1));
+        if (last != null && TextUtils.isDigitsOnly(last)
+                && (!isLookup || segments.size() > 3)) {
+            return LOCK_CONTACT + last;
+        }
+        return LOCK_CONTACT + contactUri;
+    }
+}
@@ -48,7 +48,6 @@ import android.provider.ContactsContract.RawContactsEntity;
 import android.text.TextUtils;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionManager;
-import android.telephony.SubscriptionInfo;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -70,16 +69,20 @@ import com.android.contacts.common.util.PermissionsUtil;
 import com.android.contacts.compat.PinnedPositionsCompat;
 import com.android.contacts.activities.ContactEditorBaseActivity.ContactEditor.SaveMode;
 import com.android.contacts.util.ContactPhotoUtils;
+import com.android.contacts.util.GroupMembershipEngine;
+import com.android.contacts.util.SimCapacityCache;
+import com.android.contacts.util.SimContactsClassifier;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
-import org.codeaurora.wrapper.UiccPhoneBookController_Wrapper;
-
 /**
  * A service responsible for saving changes to the content provider.
  */
@@ -129,6 +132,19 @@ public class ContactSaveService extends IntentService {
     public static final String ACTION_JOIN_SEVERAL_CONTACTS = "joinSeveralContacts";
     public static final String EXTRA_CONTACT_ID1 = "contactId1";
     public static final String EXTRA_CONTACT_ID2 = "contactId2";
+    public static final String EXTRA_JOIN_STRATEGY = "joinStrategy";
+
+    /**
+     * Join strategy that writes an aggregation exception for every ordered pair of raw
+     * contacts, n * (n - 1) operations.
+     */
+    public static final int JOIN_STRATEGY_ALL_PAIRS = 0;
+    /**
+     * Join strategy that keeps every raw contact together with the first one only, n - 1
+     * operations. The provider aggregates raw contacts that are connected through
+     * exceptions, so the resulting contact is the same as with {@link #JOIN_STRATEGY_ALL_PAIRS}.
+     */
+    public static final int JOIN_STRATEGY_STAR = 1;
 
     public static final String ACTION_SET_SEND_TO_VOICEMAIL = "sendToVoicemail";
     public static final String EXTRA_SEND_TO_VOICEMAIL_FLAG = "sendToVoicemailFlag";
@@ -177,9 +193,9 @@ public class ContactSaveService extends IntentService {
     private final int MAX_EN_LENGTH = 14;
     private final int MAX_CH_LENGTH = 6;
 
-    private static SimContactsOperation mSimContactsOperation;
-    private SubscriptionManager mSubscriptionManager;
     private static final int MAX_CONTACTS_PROVIDER_BATCH_SIZE = 499;
+    // Let other writers in between every so many deletes of a batch.
+    private static final int DELETE_YIELD_INTERVAL = 50;
 
     public interface Listener {
         public void onServiceCompleted(Intent callbackIntent);
@@ -188,8 +204,30 @@ public class ContactSaveService extends IntentService {
     private static final CopyOnWriteArrayList<Listener> sListeners =
             new CopyOnWriteArrayList<Listener>();
 
+    /**
+     * Notified on the main thread as {@link #ACTION_DELETE_MULTIPLE_CONTACTS} makes progress.
+     */
+    public interface DeleteProgressListener {
+        /**
+         * @param done the number of contacts that were deleted or failed so far.
+         */
+        public void onDeleteProgress(int done, int total);
+
+        public void onDeleteFinished(int deleted, int total);
+    }
+
+    private static final CopyOnWriteArrayList<DeleteProgressListener> sDeleteProgressListeners =
+            new CopyOnWriteArrayList<DeleteProgressListener>();
+    // Set by the ui, checked before each contact of a multiple delete.
+    private static volatile boolean sDeleteCanceled;
+
     private Handler mMainHandler;
 
+    private ContactSaveQueue mQueue;
+    // Static so that the summary outlives the service between bursts of requests.
+    private static final SaveLatencyTracker sSaveLatency = new SaveLatencyTracker();
+    private int mLastStartId;
+
     public ContactSaveService() {
         super(TAG);
         setIntentRedelivery(true);
@@ -199,7 +237,59 @@ public class ContactSaveService extends IntentService {
     @Override
     public void onCreate() {
         super.onCreate();
-        mSubscriptionManager = SubscriptionManager.from(this);
+        mQueue = new ContactSaveQueue(new ContactSaveQueue.Callback() {
+            @Override
+            public void process(Intent intent) {
+                onHandleIntent(intent);
+            }
+
+            @Override
+            public void onIdle() {
+                mMainHandler.post(mStopIfIdle);
+            }
+        });
+    }
+
+    /**
+     * Requests go through {@link ContactSaveQueue} instead of the single worker thread of
+     * {@link IntentService}, so that superseded requests are dropped and independent ones run
+     * concurrently.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        if (intent == null) {
+            Log.d(TAG, "onStartCommand: could not handle null intent");
+            mStopIfIdle.run();
+        } else {
+            mQueue.enqueue(intent);
+        }
+        return START_REDELIVER_INTENT;
+    }
+
+    /**
+     * Runs on the main thread like {@link #onStartCommand}, so no request can be queued
+     * between the check and the stop.
+     */
+    private final Runnable mStopIfIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (mQueue.isIdle()) {
+                stopSelf(mLastStartId);
+            }
+        }
+    };
+
+    @Override
+    public void onDestroy() {
+        mQueue.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mQueue.dump(writer);
+        sSaveLatency.dump(writer);
     }
 
     public static void registerListener(Listener listener) {
@@ -214,6 +304,21 @@ public class ContactSaveService extends IntentService {
         sListeners.remove(listener);
     }
 
+    public static void registerDeleteProgressListener(DeleteProgressListener listener) {
+        sDeleteProgressListeners.add(listener);
+    }
+
+    public static void unregisterDeleteProgressListener(DeleteProgressListener listener) {
+        sDeleteProgressListeners.remove(listener);
+    }
+
+    /**
+     * Stops the multiple delete that is pending or running once its current batch is done.
+     */
+    public static void cancelDeleteMultipleContacts() {
+        sDeleteCanceled = true;
+    }
+
     /**
      * Returns true if the ContactSaveService was started successfully and false if an exception
      * was thrown and a Toast error message was displayed.
@@ -447,10 +552,13 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
+        final SaveLatencyTracker.Trace trace = sSaveLatency.begin();
         int saveMode = intent.getIntExtra(EXTRA_SAVE_MODE, -1);
         // Trim any empty fields, and RawContacts, before persisting
         final AccountTypeManager accountTypes = AccountTypeManager.getInstance(this);
+        trace.startPhase();
         RawContactModifier.trimEmpty(state, accountTypes);
+        trace.endPhase(SaveLatencyTracker.PHASE_TRIM_EMPTY);
 
         Uri lookupUri = null;
 
@@ -488,6 +596,7 @@ public class ContactSaveService extends IntentService {
             if (result == RESULT_SUCCESS || result == RESULT_FAILURE) {
             try {
                 // Build operations and try applying
+                trace.startPhase();
                 final ArrayList<CPOWrapper> diffWrapper = state.buildDiffWrapper();
 
                 final ArrayList<ContentProviderOperation> diff = Lists.newArrayList();
@@ -495,6 +604,8 @@ public class ContactSaveService extends IntentService {
                 for (CPOWrapper cpoWrapper : diffWrapper) {
                     diff.add(cpoWrapper.getOperation());
                 }
+                trace.endPhase(SaveLatencyTracker.PHASE_BUILD_DIFF);
+                trace.addOperations(diff.size());
 
                 if (DEBUG) {
                     Log.v(TAG, "Content Provider Operations:");
@@ -507,7 +618,9 @@ public class ContactSaveService extends IntentService {
                 boolean batchFailed = false;
                 final ContentProviderResult[] results = new ContentProviderResult[diff.size()];
                 while (numberProcessed < diff.size()) {
+                    trace.startPhase();
                     final int subsetCount = applyDiffSubset(diff, numberProcessed, results, resolver);
+                    trace.endPhase(SaveLatencyTracker.PHASE_APPLY_BATCH);
                     if (subsetCount == -1) {
                         Log.w(TAG, "Resolver.applyBatch failed in saveContacts");
                         batchFailed = true;
@@ -519,6 +632,7 @@ public class ContactSaveService extends IntentService {
 
                 if (batchFailed) {
                     // Retry save
+                    trace.addRetry();
                     continue;
                 }
 
@@ -529,6 +643,7 @@ public class ContactSaveService extends IntentService {
                 // We don't have to check to see if the value is still -1.  If we reach here,
                 // the previous loop iteration didn't succeed, so any ID that we obtained is bogus.
                 insertedRawContactId = getInsertedRawContactId(diffWrapper, results);
+                trace.startPhase();
                 if (isProfile) {
                     // Since the profile supports local raw contacts, which may have been completely
                     // removed if all information was removed, we need to do a special query to
@@ -537,6 +652,7 @@ public class ContactSaveService extends IntentService {
                             new String[] {Contacts._ID, Contacts.LOOKUP_KEY},
                             null, null, null);
                     if (c == null) {
+                        trace.addRetry();
                         continue;
                     }
                     try {
@@ -553,6 +669,7 @@ public class ContactSaveService extends IntentService {
                                     rawContactId);
                     lookupUri = RawContacts.getContactLookupUri(resolver, rawContactUri);
                 }
+                trace.endPhase(SaveLatencyTracker.PHASE_LOOKUP_URI);
                 if (lookupUri != null) {
                     Log.v(TAG, "Saved contact. New URI: " + lookupUri);
                 }
@@ -575,6 +692,8 @@ public class ContactSaveService extends IntentService {
             } catch (OperationApplicationException e) {
                 // Version consistency failed, re-parent change and try again
                 Log.w(TAG, "Version consistency failed, re-parenting: " + e.toString());
+                trace.addRetry();
+                trace.startPhase();
                 final StringBuilder sb = new StringBuilder(RawContacts._ID + " IN(");
                 boolean first = true;
                 final int count = state.size();
@@ -608,6 +727,7 @@ public class ContactSaveService extends IntentService {
                         delta.setProfileQueryUri();
                         }
                     }
+                trace.endPhase(SaveLatencyTracker.PHASE_REPARENT);
                 }
             }
         }
@@ -626,11 +746,14 @@ public class ContactSaveService extends IntentService {
                 }
 
                 // If the save failed, insertedRawContactId will be -1
+                trace.startPhase();
                 if (rawContactId < 0 || !saveUpdatedPhoto(rawContactId, photoUri, saveMode)) {
                     succeeded = false;
                 }
+                trace.endPhase(SaveLatencyTracker.PHASE_SAVE_PHOTO);
             }
         }
+        trace.finish(succeeded);
 
         Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
         if (callbackIntent != null) {
@@ -658,7 +781,8 @@ public class ContactSaveService extends IntentService {
 
             boolean isInsert = entity.isContactInsert();
             Integer result = RESULT_SIM_FAILURE;
-            mSimContactsOperation = new SimContactsOperation(this);
+            // one per call, requests run on several workers at once.
+            final SimContactsOperation simContactsOperation = new SimContactsOperation(this);
 
             ContentValues values = entity.buildSimDiff();
             String tag = null;
@@ -690,11 +814,12 @@ public class ContactSaveService extends IntentService {
                 }
             }
 
+            final SimCapacityCache simCapacityCache = SimCapacityCache.getInstance(this);
+            final SimCapacityCache.Capacity capacity = simCapacityCache.get(subscription);
             if (!TextUtils.isEmpty(anr)) {
                 String[] anrs = anr.split(SimContactsConstants.ANR_SEP);
                 if (anrs != null) {
-                    if (anrs.length > MoreContactUtils
-                            .getOneSimAnrCount(this, subscription)) {
+                    if (anrs.length > capacity.anrPerContact) {
                         return RESULT_NUMBER_TYPE_FAILURE;
                     }
                     for (String mAnr : anrs) {
@@ -719,37 +844,25 @@ public class ContactSaveService extends IntentService {
                 }
             }
 
-        if (entity.isContactInsert()) {
-            int count = 0;
-            SubscriptionInfo subInfoRecord = null;
-            try {
-                subInfoRecord = mSubscriptionManager
-                        .getActiveSubscriptionInfoForSimSlotIndex(subscription);
-            } catch (SecurityException e) {
-                Log.w(TAG, "SecurityException thrown, lack permission for"
-                        + " getActiveSubscriptionInfoList", e);
-            }
-            if (subInfoRecord != null) {
-                int[] adnCount = UiccPhoneBookController_Wrapper
-                        .getAdnRecordsCapacityForSubscriber(subInfoRecord.getSubscriptionId());
-                if(adnCount!=null)
-                    count= adnCount[MoreContactUtils.ADN_USED_POS];
-            }
-            if (count >0 && count == MoreContactUtils.getAdnCount(this, subscription)) {
-                return RESULT_SIM_FULL_FAILURE;
-            }
+        if (entity.isContactInsert() && capacity.adnCount > 0
+                && capacity.getFreeAdnCount() <= 0) {
+            return RESULT_SIM_FULL_FAILURE;
         }
 
             if (isInsert) {
-                Uri resultUri = mSimContactsOperation.insert(values,
+                Uri resultUri = simContactsOperation.insert(values,
                         subscription);
-                if (resultUri != null)
+                if (resultUri != null) {
                     result = RESULT_SUCCESS;
+                    simCapacityCache.onInserted(subscription, anr, email);
+                }
             } else {
-                int resultInt = mSimContactsOperation.update(values,
+                int resultInt = simContactsOperation.update(values,
                         subscription);
                 if (resultInt == 1)
                     result = RESULT_SUCCESS;
+                // the cache does not know what the record held before.
+                simCapacityCache.invalidate(subscription);
             }
             return result;
         }
@@ -882,7 +995,12 @@ public class ContactSaveService extends IntentService {
         }
 
         // Add new group members
-        addMembersToGroup(resolver, rawContactsToAdd, ContentUris.parseId(groupUri));
+        final int failed = addMembersToGroup(resolver, rawContactsToAdd,
+                ContentUris.parseId(groupUri));
+        if (failed > 0) {
+            Log.w(TAG, failed + " members of new group " + label + " were not added");
+            showToast(R.string.groupSavedErrorToast);
+        }
 
         // TODO: Move this into the contact editor where it belongs. This needs to be integrated
         // with the way other intent extras that are passed to the {@link ContactEditorActivity}.
@@ -1011,80 +1129,41 @@ public class ContactSaveService extends IntentService {
         }
 
         // Add and remove members if necessary
-        addMembersToGroup(resolver, rawContactsToAdd, groupId);
-        removeMembersFromGroup(resolver, rawContactsToRemove, groupId);
+        final int failed = addMembersToGroup(resolver, rawContactsToAdd, groupId)
+                + removeMembersFromGroup(resolver, rawContactsToRemove, groupId);
+        if (failed > 0) {
+            Log.w(TAG, failed + " member changes of group " + groupId + " failed");
+            showToast(R.string.groupSavedErrorToast);
+        }
 
         Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
         callbackIntent.setData(groupUri);
         deliverCallback(callbackIntent);
     }
 
-    private static void addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
+    /**
+     * @return the number of raw contacts that could not be added.
+     */
+    private static int addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
             long groupId) {
         if (rawContactsToAdd == null) {
-            return;
-        }
-        for (long rawContactId : rawContactsToAdd) {
-            try {
-                final ArrayList<ContentProviderOperation> rawContactOperations =
-                        new ArrayList<ContentProviderOperation>();
-
-                // Build an assert operation to ensure the contact is not already in the group
-                final ContentProviderOperation.Builder assertBuilder = ContentProviderOperation
-                        .newAssertQuery(Data.CONTENT_URI);
-                assertBuilder.withSelection(Data.RAW_CONTACT_ID + "=? AND " +
-                        Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                        new String[] { String.valueOf(rawContactId),
-                        GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
-                assertBuilder.withExpectedCount(0);
-                rawContactOperations.add(assertBuilder.build());
-
-                // Build an insert operation to add the contact to the group
-                final ContentProviderOperation.Builder insertBuilder = ContentProviderOperation
-                        .newInsert(Data.CONTENT_URI);
-                insertBuilder.withValue(Data.RAW_CONTACT_ID, rawContactId);
-                insertBuilder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
-                insertBuilder.withValue(GroupMembership.GROUP_ROW_ID, groupId);
-                rawContactOperations.add(insertBuilder.build());
-
-                if (DEBUG) {
-                    for (ContentProviderOperation operation : rawContactOperations) {
-                        Log.v(TAG, operation.toString());
-                    }
-                }
-
-                // Apply batch
-                if (!rawContactOperations.isEmpty()) {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, rawContactOperations);
-                }
-            } catch (RemoteException e) {
-                // Something went wrong, bail without success
-                Log.e(TAG, "Problem persisting user edits for raw contact ID " +
-                        String.valueOf(rawContactId), e);
-            } catch (OperationApplicationException e) {
-                // The assert could have failed because the contact is already in the group,
-                // just continue to the next contact
-                Log.w(TAG, "Assert failed in adding raw contact ID " +
-                        String.valueOf(rawContactId) + ". Already exists in group " +
-                        String.valueOf(groupId), e);
-            }
+            return 0;
         }
+        // Raw contacts already in the group are skipped by the engine.
+        return new GroupMembershipEngine(resolver, null).addRawContacts(rawContactsToAdd,
+                groupId).failedCount;
     }
 
-    private static void removeMembersFromGroup(ContentResolver resolver, long[] rawContactsToRemove,
-            long groupId) {
+    /**
+     * @return the number of raw contacts that could not be removed.
+     */
+    private static int removeMembersFromGroup(ContentResolver resolver,
+            long[] rawContactsToRemove, long groupId) {
         if (rawContactsToRemove == null) {
-            return;
-        }
-        for (long rawContactId : rawContactsToRemove) {
-            // Apply the delete operation on the data row for the given raw contact's
-            // membership in the given group. If no contact matches the provided selection, then
-            // nothing will be done. Just continue to the next contact.
-            resolver.delete(Data.CONTENT_URI, Data.RAW_CONTACT_ID + "=? AND " +
-                    Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                    new String[] { String.valueOf(rawContactId),
-                    GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
+            return 0;
         }
+        return new GroupMembershipEngine(resolver, null).removeRawContacts(rawContactsToRemove,
+                groupId).failedCount;
     }
 
     /**
@@ -1186,9 +1265,21 @@ public class ContactSaveService extends IntentService {
      * Creates an intent that sets the selected data item as super primary (default)
      */
     public static Intent createSetSuperPrimaryIntent(Context context, long dataId) {
+        return createSetSuperPrimaryIntent(context, dataId, null);
+    }
+
+    /**
+     * @param contactUri the contact the data item belongs to, or null if unknown. Requests
+     *        for other contacts can only run alongside this one if it is given.
+     */
+    public static Intent createSetSuperPrimaryIntent(Context context, long dataId,
+            Uri contactUri) {
         Intent serviceIntent = new Intent(context, ContactSaveService.class);
         serviceIntent.setAction(ContactSaveService.ACTION_SET_SUPER_PRIMARY);
         serviceIntent.putExtra(ContactSaveService.EXTRA_DATA_ID, dataId);
+        if (contactUri != null) {
+            serviceIntent.putExtra(ContactSaveService.EXTRA_CONTACT_URI, contactUri);
+        }
         return serviceIntent;
     }
 
@@ -1208,9 +1299,20 @@ public class ContactSaveService extends IntentService {
      * this call
      */
     public static Intent createClearPrimaryIntent(Context context, long dataId) {
+        return createClearPrimaryIntent(context, dataId, null);
+    }
+
+    /**
+     * @param contactUri the contact the data item belongs to, or null if unknown.
+     */
+    public static Intent createClearPrimaryIntent(Context context, long dataId,
+            Uri contactUri) {
         Intent serviceIntent = new Intent(context, ContactSaveService.class);
         serviceIntent.setAction(ContactSaveService.ACTION_CLEAR_PRIMARY);
         serviceIntent.putExtra(ContactSaveService.EXTRA_DATA_ID, dataId);
+        if (contactUri != null) {
+            serviceIntent.putExtra(ContactSaveService.EXTRA_CONTACT_URI, contactUri);
+        }
         return serviceIntent;
     }
 
@@ -1253,7 +1355,6 @@ public class ContactSaveService extends IntentService {
 
     private void deleteContact(Intent intent) {
         Uri contactUri = intent.getParcelableExtra(EXTRA_CONTACT_URI);
-        mSimContactsOperation = new SimContactsOperation(this);
         if (contactUri == null) {
             Log.e(TAG, "Invalid arguments for deleteContact request");
             return;
@@ -1262,13 +1363,19 @@ public class ContactSaveService extends IntentService {
         final List<String> segments = contactUri.getPathSegments();
         // Contains an Id.
         final long uriContactId = Long.parseLong(segments.get(3));
-        int subscription = mSimContactsOperation
-                .getSimSubscription(uriContactId);
+        deleteContact(new SimContactsOperation(this), contactUri, uriContactId);
+    }
+
+    /**
+     * Deletes one contact, removing it from the SIM card first if it is stored there.
+     */
+    private void deleteContact(SimContactsOperation simContactsOperation, Uri contactUri,
+            long contactId) {
+        int subscription = simContactsOperation
+                .getSimSubscription(contactId);
         if (subscription != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
-            ContentValues values = mSimContactsOperation
-                    .getSimAccountValues(uriContactId);
-            int result = mSimContactsOperation.delete(values, subscription);
-            if (result == RESULT_SUCCESS) {
+            if (SimContactsClassifier.deleteFromCard(this, simContactsOperation, contactId,
+                    subscription)) {
                 getContentResolver().delete(contactUri, null, null);
             }
         } else {
@@ -1276,27 +1383,167 @@ public class ContactSaveService extends IntentService {
         }
     }
 
+    /**
+     * Deletes the contacts in batches of {@link #MAX_CONTACTS_PROVIDER_BATCH_SIZE}, so that
+     * the provider sends one change notification per batch instead of one per contact.
+     * Contacts stored on a SIM card are removed from their card one by one first, and join
+     * the batch once the card no longer holds them. Progress is reported to the
+     * {@link DeleteProgressListener}s after each SIM contact and each applied batch.
+     */
     private void deleteMultipleContacts(Intent intent) {
         final long[] contactIds = intent.getLongArrayExtra(EXTRA_CONTACT_IDS);
         if (contactIds == null) {
             Log.e(TAG, "Invalid arguments for deleteMultipleContacts request");
             return;
         }
-        for (long contactId : contactIds) {
-            final Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
-            getContentResolver().delete(contactUri, null, null);
+        final SimContactsOperation simContactsOperation = new SimContactsOperation(this);
+        final SimContactsClassifier classifier =
+                SimContactsClassifier.classify(getContentResolver(), contactIds);
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        final ArrayList<Long> batchIds = new ArrayList<>();
+        final int total = contactIds.length;
+        int processed = 0;
+        int deleted = 0;
+
+        try {
+            for (int subscription : classifier.getSubscriptions()) {
+                for (long contactId : classifier.getSimContactIds(subscription)) {
+                    if (sDeleteCanceled) {
+                        break;
+                    }
+                    // a contact the card still holds must stay, or it comes back on next
+                    // import.
+                    if (SimContactsClassifier.deleteFromCard(this, simContactsOperation,
+                            contactId, subscription)) {
+                        deleted += addContactDelete(operations, batchIds, contactId);
+                    }
+                    processed++;
+                    notifyDeleteProgress(processed - batchIds.size(), total);
+                }
+            }
+            for (long contactId : classifier.getPhoneContactIds()) {
+                if (sDeleteCanceled) {
+                    break;
+                }
+                deleted += addContactDelete(operations, batchIds, contactId);
+                processed++;
+                if (batchIds.isEmpty()) {
+                    notifyDeleteProgress(processed, total);
+                }
+            }
+            // also when canceled, the queued SIM contacts are gone from their card already.
+            if (!operations.isEmpty()) {
+                deleted += applyDeleteBatch(operations, batchIds);
+                notifyDeleteProgress(processed, total);
+            }
+        } finally {
+            sDeleteCanceled = false;
+        }
+
+        final int failed = processed - deleted;
+        if (failed > 0) {
+            Log.w(TAG, failed + " of " + processed + " contacts were not deleted");
+        }
+        if (processed < total) {
+            Log.d(TAG, "delete canceled after " + processed + " of " + total + " contacts");
+        }
+        final String deleteToastMessage = failed == 0
+                ? getResources().getQuantityString(R.plurals.contacts_deleted_toast, deleted)
+                : getResources().getQuantityString(R.plurals.contacts_not_deleted_toast, failed,
+                        failed);
+        final int deletedCount = deleted;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (deletedCount > 0 || failed > 0) {
+                    Toast.makeText(ContactSaveService.this, deleteToastMessage,
+                            Toast.LENGTH_LONG).show();
+                }
+                for (DeleteProgressListener listener : sDeleteProgressListeners) {
+                    listener.onDeleteFinished(deletedCount, total);
+                }
+            }
+        });
+    }
+
+    private void notifyDeleteProgress(final int done, final int total) {
+        if (sDeleteProgressListeners.isEmpty()) {
+            return;
         }
-        final String deleteToastMessage = getResources().getQuantityString(R.plurals
-                .contacts_deleted_toast, contactIds.length);
         mMainHandler.post(new Runnable() {
             @Override
             public void run() {
-                Toast.makeText(ContactSaveService.this, deleteToastMessage, Toast.LENGTH_LONG)
-                        .show();
+                for (DeleteProgressListener listener : sDeleteProgressListeners) {
+                    listener.onDeleteProgress(done, total);
+                }
             }
         });
     }
 
+    /**
+     * Queues the delete of one contact, applying the batch once it is full.
+     *
+     * @return the number of contacts deleted by this call.
+     */
+    private int addContactDelete(ArrayList<ContentProviderOperation> operations,
+            ArrayList<Long> batchIds, long contactId) {
+        final Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
+        operations.add(ContentProviderOperation.newDelete(contactUri)
+                .withYieldAllowed(operations.size() % DELETE_YIELD_INTERVAL == 0)
+                .build());
+        batchIds.add(contactId);
+        if (operations.size() == MAX_CONTACTS_PROVIDER_BATCH_SIZE) {
+            return applyDeleteBatch(operations, batchIds);
+        }
+        return 0;
+    }
+
+    /**
+     * Applies and clears one batch of deletes. If the batch fails, its contacts are deleted
+     * one by one instead.
+     *
+     * @return the number of contacts of the batch that are gone.
+     */
+    private int applyDeleteBatch(ArrayList<ContentProviderOperation> operations,
+            ArrayList<Long> contactIds) {
+        final int count = contactIds.size();
+        int deleted = 0;
+        try {
+            final ContentProviderResult[] results =
+                    getContentResolver().applyBatch(ContactsContract.AUTHORITY, operations);
+            for (ContentProviderResult result : results) {
+                if (result.count != null && result.count > 0) {
+                    deleted++;
+                }
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.w(TAG, "Batch delete failed, deleting contacts one by one", e);
+            for (long contactId : contactIds) {
+                getContentResolver().delete(
+                        ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId), null, null);
+            }
+            // the batch may have got past some of its yield points, count what is gone.
+            deleted = count - countExistingContacts(contactIds);
+        }
+        operations.clear();
+        contactIds.clear();
+        return deleted;
+    }
+
+    private int countExistingContacts(ArrayList<Long> contactIds) {
+        final Cursor cursor = getContentResolver().query(Contacts.CONTENT_URI,
+                new String[] {Contacts._ID},
+                Contacts._ID + " IN (" + TextUtils.join(",", contactIds) + ")", null, null);
+        if (cursor == null) {
+            return contactIds.size();
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Creates an intent that can be sent to this service to join two contacts.
      * The resulting contact uses the name from {@param contactId1} if possible.
@@ -1321,9 +1568,19 @@ public class ContactSaveService extends IntentService {
      * No special attention is paid to where the resulting contact's name is taken from.
      */
     public static Intent createJoinSeveralContactsIntent(Context context, long[] contactIds) {
+        return createJoinSeveralContactsIntent(context, contactIds, JOIN_STRATEGY_STAR);
+    }
+
+    /**
+     * Creates an intent to join all raw contacts inside {@param contactIds}'s contacts, writing
+     * the aggregation exceptions with the given {@param joinStrategy}.
+     */
+    public static Intent createJoinSeveralContactsIntent(Context context, long[] contactIds,
+            int joinStrategy) {
         Intent serviceIntent = new Intent(context, ContactSaveService.class);
         serviceIntent.setAction(ContactSaveService.ACTION_JOIN_SEVERAL_CONTACTS);
         serviceIntent.putExtra(ContactSaveService.EXTRA_CONTACT_IDS, contactIds);
+        serviceIntent.putExtra(ContactSaveService.EXTRA_JOIN_STRATEGY, joinStrategy);
         return serviceIntent;
     }
 
@@ -1366,29 +1623,47 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
-        // For each pair of raw contacts, insert an aggregation exception
+        final int joinStrategy = intent.getIntExtra(EXTRA_JOIN_STRATEGY,
+                JOIN_STRATEGY_ALL_PAIRS);
         final ContentResolver resolver = getContentResolver();
+        final ArrayList<ContentProviderOperation> operations =
+                buildJoinOperations(rawContactIds, joinStrategy);
         // The maximum number of operations per batch (aka yield point) is 500. See b/22480225
         final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
-        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(batchSize);
+        for (int start = 0; start < operations.size(); start += batchSize) {
+            final ArrayList<ContentProviderOperation> batch = new ArrayList<>(operations.subList(
+                    start, Math.min(start + batchSize, operations.size())));
+            if (!applyJoinOperations(resolver, batch)) {
+                return;
+            }
+        }
+        showToast(R.string.contactsJoinedMessage);
+    }
+
+    /**
+     * Builds the {@link AggregationExceptions#TYPE_KEEP_TOGETHER} operations that join the
+     * given raw contacts, see {@link #JOIN_STRATEGY_ALL_PAIRS} and {@link #JOIN_STRATEGY_STAR}.
+     */
+    @VisibleForTesting
+    static ArrayList<ContentProviderOperation> buildJoinOperations(long[] rawContactIds,
+            int joinStrategy) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        if (joinStrategy == JOIN_STRATEGY_STAR) {
+            // Keep each raw contact together with the first one.
+            for (int i = 1; i < rawContactIds.length; i++) {
+                buildJoinContactDiff(operations, rawContactIds[0], rawContactIds[i]);
+            }
+            return operations;
+        }
+        // For each pair of raw contacts, insert an aggregation exception
         for (int i = 0; i < rawContactIds.length; i++) {
             for (int j = 0; j < rawContactIds.length; j++) {
                 if (i != j) {
                     buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[j]);
                 }
-                // Before we get to 500 we need to flush the operations list
-                if (operations.size() > 0 && operations.size() % batchSize == 0) {
-                    if (!applyJoinOperations(resolver, operations)) {
-                        return;
-                    }
-                    operations.clear();
-                }
             }
         }
-        if (operations.size() > 0 && !applyJoinOperations(resolver, operations)) {
-            return;
-        }
-        showToast(R.string.contactsJoinedMessage);
+        return operations;
     }
 
     /** Returns true if the batch was successfully applied and false otherwise. */
@@ -1538,7 +1813,7 @@ public class ContactSaveService extends IntentService {
     /**
      * Construct a {@link AggregationExceptions#TYPE_KEEP_TOGETHER} ContentProviderOperation.
      */
-    private void buildJoinContactDiff(ArrayList<ContentProviderOperation> operations,
+    private static void buildJoinContactDiff(ArrayList<ContentProviderOperation> operations,
             long rawContactId1, long rawContactId2) {
         Builder builder =
                 ContentProviderOperation.newUpdate(AggregationExceptions.CONTENT_URI);
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Times the phases of {@link ContactSaveService} saves and keeps the last {@link #WINDOW}
+ * samples of each phase for dumpsys.
+ *
+ * Disabled unless the {@link #LOG_TAG} tag is loggable at DEBUG:
+ *
+ * adb shell setprop log.tag.ContactSaveTiming DEBUG
+ *
+ * While disabled, {@link #begin()} hands out a shared trace that ignores every call.
+ */
+class SaveLatencyTracker {
+    static final String LOG_TAG = "ContactSaveTiming";
+
+    static final int PHASE_TRIM_EMPTY = 0;
+    static final int PHASE_BUILD_DIFF = 1;
+    static final int PHASE_APPLY_BATCH = 2;
+    static final int PHASE_REPARENT = 3;
+    static final int PHASE_LOOKUP_URI = 4;
+    static final int PHASE_SAVE_PHOTO = 5;
+    static final int PHASE_TOTAL = 6;
+    private static final int PHASE_COUNT = 7;
+
+    private static final String[] PHASE_NAMES = new String[] {
+            "trimEmpty", "buildDiff", "applyBatch", "reparent", "lookupUri", "savePhoto",
+            "total"};
+
+    @VisibleForTesting
+    static final int WINDOW = 100;
+
+    /**
+     * The phases of one save.
+     */
+    static class Trace {
+        private final SaveLatencyTracker mTracker;
+        private final long[] mPhaseMillis;
+        private final long mStart;
+        private long mPhaseStart;
+        private int mOperations;
+        private int mRetries;
+
+        private Trace(SaveLatencyTracker tracker) {
+            mTracker = tracker;
+            mPhaseMillis = tracker == null ? null : new long[PHASE_COUNT];
+            mStart = tracker == null ? 0 : SystemClock.elapsedRealtime();
+        }
+
+        void startPhase() {
+            if (mTracker != null) {
+                mPhaseStart = SystemClock.elapsedRealtime();
+            }
+        }
+
+        /**
+         * Ends the phase started by the last {@link #startPhase()}. A phase can run more than
+         * once per save, each run is a sample of its own.
+         */
+        void endPhase(int phase) {
+            if (mTracker != null) {
+                final long millis = SystemClock.elapsedRealtime() - mPhaseStart;
+                mPhaseMillis[phase] += millis;
+                mTracker.addSample(phase, millis);
+            }
+        }
+
+        void addOperations(int count) {
+            if (mTracker != null) {
+                mOperations += count;
+            }
+        }
+
+        void addRetry() {
+            if (mTracker != null) {
+                mRetries++;
+            }
+        }
+
+        void finish(boolean succeeded) {
+            if (mTracker == null) {
+                return;
+            }
+            final long total = SystemClock.elapsedRealtime() - mStart;
+            mPhaseMillis[PHASE_TOTAL] = total;
+            mTracker.addSave(total, mOperations, mRetries);
+            final StringBuilder sb = new StringBuilder("save succeeded=").append(succeeded)
+                    .append(" ops=").append(mOperations).append(" retries=").append(mRetries);
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                sb.append(' ').append(PHASE_NAMES[i]).append('=').append(mPhaseMillis[i])
+                        .append("ms");
+            }
+            Log.d(LOG_TAG, sb.toString());
+        }
+    }
+
+    private static final Trace DISABLED = new Trace(null);
+
+    // All guarded by this.
+    private final long[][] mSamples = new long[PHASE_COUNT][WINDOW];
+    private final int[] mSampleCounts = new int[PHASE_COUNT];
+    private int mSaves;
+    private long mOperations;
+    private int mRetries;
+
+    Trace begin() {
+        return Log.isLoggable(LOG_TAG, Log.DEBUG) ? new Trace(this) : DISABLED;
+    }
+
+    private synchronized void addSample(int phase, long millis) {
+        mSamples[phase][mSampleCounts[phase] % WINDOW] = millis;
+        mSampleCounts[phase]++;
+    }
+
+    private synchronized void addSave(long millis, int operations, int retries) {
+        addSample(PHASE_TOTAL, millis);
+        mSaves++;
+        mOperations += operations;
+        mRetries += retries;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Save latency (last " + WINDOW + " samples per phase):");
+        writer.println("  saves=" + mSaves + " ops=" + mOperations + " retries=" + mRetries);
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            final int count = Math.min(mSampleCounts[i], WINDOW);
+            if (count == 0) {
+                continue;
+            }
+            final long[] sorted = Arrays.copyOf(mSamples[i], count);
+            Arrays.sort(sorted);
+            writer.println("  " + PHASE_NAMES[i] + ": n=" + mSampleCounts[i]
+                    + " p50=" + percentile(sorted, 50) + "ms p95=" + percentile(sorted, 95)
+                    + "ms max=" + sorted[count - 1] + "ms");
+        }
+    }
+
+    /**
+     * @return the nearest-rank percentile of the sorted samples.
+     */
+    @VisibleForTesting
+    static long percentile(long[] sorted, int percent) {
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
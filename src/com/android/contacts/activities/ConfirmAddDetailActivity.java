@@ -80,6 +80,7 @@ import com.android.contacts.common.model.dataitem.DataKind;
 import com.android.contacts.common.SimContactsConstants;
 import com.android.contacts.common.SimContactsOperation;
 import com.android.contacts.util.DialogManager;
+import com.android.contacts.util.SimCapacityCache;
 import com.android.contacts.common.util.EmptyService;
 
 import java.lang.ref.WeakReference;
@@ -923,6 +924,7 @@ public class ConfirmAddDetailActivity extends Activity implements
 
                         ContentValues cv = rawContactDelta.buildSimDiff();
                         int updateSimContactResult = mSimContactsOperation.update(cv, slot);
+                        SimCapacityCache.getInstance(context).invalidate(slot);
                         if (updateSimContactResult != 1) {
                             return result;
                         }
@@ -37,14 +37,17 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.OperationApplicationException;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.RawContacts;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -54,23 +57,38 @@ import android.widget.ListView;
 import android.widget.Toast;
 
 import com.android.contacts.R;
-import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.SimContactsConstants;
 import com.android.contacts.common.SimContactsOperation;
 import com.android.contacts.util.DuplicatesUtils;
+import com.android.contacts.util.MergeCheckpoint;
+import com.android.contacts.util.SimCapacityCache;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
 public class MergeContactActivity extends ListActivity {
     private static final String TAG = "MergeContactActivity";
-    private static final int BATCH_SIZE = 300;
+    private static final int BATCH_SIZE = 100;
+    // the provider refuses more operations than this between two yield points.
+    private static final int MAX_OPERATIONS_PER_UNIT = 500;
+
+    /**
+     * Boolean extra, continue the merge saved in the {@link MergeCheckpoint} instead of
+     * showing the duplicates found by the last search.
+     */
+    public static final String EXTRA_RESUME = "resume_merge";
 
     private static ProgressDialog mProgressDialog;
     private ArrayList<DuplicatesUtils.MergeContacts> mMergeList;
     private SimContactsOperation mSimContactsOperation;
+    private MergeCheckpoint mCheckpoint;
+    private volatile boolean mMerging = false;
+    private boolean mResume;
+    // groups of the saved merge that were done before this activity started.
+    private int mCompletedBefore = 0;
 
     private int mMergeProgress = 0;
     private int mSelectCount = -1;
@@ -83,8 +101,22 @@ public class MergeContactActivity extends ListActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.merge_list);
-        mMergeList = DuplicatesUtils.getMergeRawContacts();
-        initData();
+        mCheckpoint = new MergeCheckpoint(this);
+        mResume = getIntent().getBooleanExtra(EXTRA_RESUME, false);
+        if (mResume) {
+            ArrayList<DuplicatesUtils.MergeContacts> saved = mCheckpoint.loadGroups();
+            if (saved == null) {
+                finish();
+                return;
+            }
+            mCompletedBefore = Math.min(mCheckpoint.getCompletedCount(), saved.size());
+            mMergeList = new ArrayList<>(saved.subList(mCompletedBefore, saved.size()));
+            initData();
+            startMerge();
+        } else {
+            mMergeList = DuplicatesUtils.getMergeRawContacts();
+            initData();
+        }
     }
 
     private void initData() {
@@ -107,28 +139,35 @@ public class MergeContactActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_merge: {
-                mProgressDialog = new MyProgressDialog(MergeContactActivity.this);
-                mProgressDialog.setMessage(this.getString(R.string.merging_contacts));
-                mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-                Iterator<DuplicatesUtils.MergeContacts> iterator = mMergeList.iterator();
-                while (iterator.hasNext()) {
-                    DuplicatesUtils.MergeContacts next = iterator.next();
-                    if (!next.isChecked()) {
-                        iterator.remove();
-                    }
-                }
-                mProgressDialog.setMax(mMergeList.size());
-                mProgressDialog.setCancelable(false);
-                mProgressDialog.setCanceledOnTouchOutside(false);
-                mProgressDialog.show();
-                Thread thread = new MergeDuplicatedThread();
-                DuplicatesUtils.mMergeState = true;
-                thread.start();
+                startMerge();
             }
         }
         return true;
     }
 
+    private void startMerge() {
+        mProgressDialog = new MyProgressDialog(MergeContactActivity.this);
+        mProgressDialog.setMessage(this.getString(R.string.merging_contacts));
+        mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        Iterator<DuplicatesUtils.MergeContacts> iterator = mMergeList.iterator();
+        while (iterator.hasNext()) {
+            DuplicatesUtils.MergeContacts next = iterator.next();
+            if (!next.isChecked()) {
+                iterator.remove();
+            }
+        }
+        mProgressDialog.setMax(mMergeList.size());
+        mProgressDialog.setCancelable(false);
+        mProgressDialog.setCanceledOnTouchOutside(false);
+        mProgressDialog.show();
+        if (!mResume) {
+            mCheckpoint.begin(mMergeList);
+        }
+        Thread thread = new MergeDuplicatedThread();
+        mMerging = true;
+        thread.start();
+    }
+
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         MergeContactAdapter adapter = (MergeContactAdapter) l.getAdapter();
@@ -154,21 +193,30 @@ public class MergeContactActivity extends ListActivity {
         }
     }
 
+    /**
+     * Merges the groups one after another. The operations of each group form one unit, and
+     * units are applied in batches of at most {@link #BATCH_SIZE} operations, a larger unit
+     * in a batch of its own. A batch has no yield points, so a failed batch leaves nothing
+     * behind and its groups are retried one by one. Groups that cannot be merged, or whose
+     * unit does not fit into one batch, are skipped. The {@link MergeCheckpoint} is advanced
+     * past every group that was applied or skipped.
+     */
     private class MergeDuplicatedThread extends Thread {
 
-        ArrayList<ContentProviderOperation> dataInsertList = new ArrayList<>();
-        ArrayList<ContentProviderOperation> rawUpdateList = new ArrayList<>();
-        ArrayList<ContentProviderOperation> rawDelList = new ArrayList<>();
+        private final ArrayList<ContentProviderOperation> mBatch = new ArrayList<>();
+        // number of operations of each group waiting in mBatch.
+        private final ArrayList<Integer> mBatchUnits = new ArrayList<>();
+        private int mAppliedGroups = 0;
+        private int mFailedGroups = 0;
 
         @Override
         public void run() {
             Looper.prepare();
             joinSetContacts(mMergeList);
 
-            rawUpdateList.clear();
-            dataInsertList.clear();
-            rawDelList.clear();
-            DuplicatesUtils.mMergeState = false;
+            mBatch.clear();
+            mBatchUnits.clear();
+            mMerging = false;
             Looper.loop();
         }
 
@@ -178,54 +226,172 @@ public class MergeContactActivity extends ListActivity {
         private void joinSetContacts(ArrayList<DuplicatesUtils.MergeContacts> mergeList) {
             mSimContactsOperation = new SimContactsOperation(MergeContactActivity.this);
             mMergeProgress = 0;
+            if (mResume) {
+                dropDeletedRawContacts(mergeList);
+            }
+            final long start = SystemClock.elapsedRealtime();
 
-            for (int i = 0; i < mergeList.size() && DuplicatesUtils.mMergeState; i++) {
+            for (int i = 0; i < mergeList.size() && mMerging; i++) {
                 DuplicatesUtils.MergeContacts mergeContacts = mergeList.get(i);
+                ArrayList<ContentProviderOperation> unit = new ArrayList<>();
+                boolean success;
                 if (mergeContacts.getAccountType().equals(SimContactsConstants.ACCOUNT_TYPE_SIM)) {
                     // if the set of sim contacts merged successfully.
-                    boolean result = joinSetSimContacts(mergeList.get(i));
-                    if (!result) {
-                        break;
-                    }
+                    success = joinSetSimContacts(mergeContacts, unit);
                 } else {
-                    boolean result = joinSetLocalContacts(false, mergeList.get(i));
-                    if (!result) {
-                        break;
-                    }
+                    success = joinSetLocalContacts(false, mergeContacts, unit);
+                }
+                if (success && unit.size() > MAX_OPERATIONS_PER_UNIT) {
+                    Log.w(TAG, "skipping a group of " + unit.size() + " operations");
+                    success = false;
+                }
+                if (success) {
+                    addUnit(unit);
+                } else {
+                    // the queued groups come first in the checkpoint, then skip this one.
+                    flush();
+                    mFailedGroups++;
+                    mCheckpoint.setCompletedCount(mCompletedBefore + getDoneCount());
                 }
                 if (mProgressDialog != null) {
                     mProgressDialog.setProgress(++mMergeProgress);
                 }
             }
-            try {
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawUpdateList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, dataInsertList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawDelList);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
-            }
+            // the card records of queued sim groups are already changed, always apply them.
+            flush();
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "merged " + mAppliedGroups + " groups, " + mFailedGroups + " failed, in "
+                    + elapsed + "ms, "
+                    + (elapsed > 0 ? mAppliedGroups * 1000f / elapsed : mAppliedGroups)
+                    + " groups/s");
 
             // no matter the join process is success or not, dismiss the dialog.
             if (mProgressDialog != null && mProgressDialog.isShowing()) {
                 mProgressDialog.dismiss();
             }
-            //all set are joined successfully.
-            if (mMergeProgress == mergeList.size()) {
-                Toast.makeText(MergeContactActivity.this, R.string.merge_complete,
+            // every group was merged or skipped, nothing is left to resume.
+            if (getDoneCount() == mergeList.size()) {
+                mCheckpoint.clear();
+                Toast.makeText(MergeContactActivity.this, mFailedGroups == 0
+                        ? R.string.merge_complete : R.string.merge_fail,
                         Toast.LENGTH_SHORT).show();
             }
             DuplicatesUtils.clearMergeRawContacts();
             finish();
         }
 
+        private int getDoneCount() {
+            return mAppliedGroups + mFailedGroups;
+        }
+
+        /**
+         * Queues the operations of one group, applying the pending batch first if the group
+         * would not fit into it.
+         */
+        private void addUnit(ArrayList<ContentProviderOperation> unit) {
+            if (!mBatch.isEmpty() && mBatch.size() + unit.size() > BATCH_SIZE) {
+                flush();
+            }
+            mBatch.addAll(unit);
+            mBatchUnits.add(unit.size());
+            if (mBatch.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Applies the queued operations and records the groups they belong to as done. If the
+         * batch fails, its groups are applied one by one and those that fail are skipped.
+         */
+        private void flush() {
+            if (mBatchUnits.isEmpty()) {
+                return;
+            }
+            if (apply(mBatch)) {
+                mAppliedGroups += mBatchUnits.size();
+            } else if (mBatchUnits.size() == 1) {
+                mFailedGroups++;
+            } else {
+                int start = 0;
+                for (int size : mBatchUnits) {
+                    if (apply(mBatch.subList(start, start + size))) {
+                        mAppliedGroups++;
+                    } else {
+                        mFailedGroups++;
+                    }
+                    start += size;
+                }
+            }
+            mBatch.clear();
+            mBatchUnits.clear();
+            mCheckpoint.setCompletedCount(mCompletedBefore + getDoneCount());
+        }
+
+        private boolean apply(List<ContentProviderOperation> operations) {
+            try {
+                // one call for the whole list, so a group is never applied in part.
+                getContentResolver().applyBatch(ContactsContract.AUTHORITY,
+                        new ArrayList<>(operations));
+                return true;
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "merge batch failed", e);
+                return false;
+            }
+        }
+
+        /**
+         * A resumed merge may find raw contacts that were deleted in the meantime, drop them
+         * and the groups that have nothing left to merge.
+         */
+        private void dropDeletedRawContacts(ArrayList<DuplicatesUtils.MergeContacts> mergeList) {
+            ArrayList<Long> rawIds = new ArrayList<>();
+            for (DuplicatesUtils.MergeContacts mergeContacts : mergeList) {
+                for (DuplicatesUtils.ContactsInfo info : mergeContacts.getContacts()) {
+                    rawIds.add(info.getRawContactId());
+                }
+            }
+            HashSet<Long> existing = new HashSet<>(rawIds.size());
+            for (int start = 0; start < rawIds.size(); start += BATCH_SIZE) {
+                List<Long> chunk = rawIds.subList(start,
+                        Math.min(start + BATCH_SIZE, rawIds.size()));
+                Cursor cursor = getContentResolver().query(RawContacts.CONTENT_URI,
+                        new String[] {RawContacts._ID}, RawContacts.DELETED + "=0 AND "
+                        + RawContacts._ID + " IN (" + TextUtils.join(",", chunk) + ")",
+                        null, null);
+                if (cursor == null) {
+                    continue;
+                }
+                try {
+                    while (cursor.moveToNext()) {
+                        existing.add(cursor.getLong(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            for (DuplicatesUtils.MergeContacts mergeContacts : mergeList) {
+                Iterator<DuplicatesUtils.ContactsInfo> iterator =
+                        mergeContacts.getContacts().iterator();
+                while (iterator.hasNext()) {
+                    if (!existing.contains(iterator.next().getRawContactId())) {
+                        iterator.remove();
+                    }
+                }
+                // keep the group so the checkpoint offsets stay valid, it merges nothing.
+            }
+        }
+
         /**
          * if the set of contacts are Sim contacts.
          */
-        private boolean joinSetSimContacts(DuplicatesUtils.MergeContacts mergeContacts) {
+        private boolean joinSetSimContacts(DuplicatesUtils.MergeContacts mergeContacts,
+                ArrayList<ContentProviderOperation> unit) {
             // get the rawContacts to be merged.
             ArrayList<DuplicatesUtils.ContactsInfo> contactsInfos = mergeContacts.getContacts();
+            if (contactsInfos.size() < 2) {
+                // nothing left to merge.
+                return true;
+            }
             String resultName = null;
             String resultNumber = null;
             StringBuilder resultEmails = new StringBuilder();
@@ -352,8 +518,8 @@ public class MergeContactActivity extends ListActivity {
                 resultNumber = simNumberList.remove(0);
             }
             if (simNumberList.size() > 0) {
-                if (MoreContactUtils.getSpareAnrCount(MergeContactActivity.this, subscription)
-                        >= simNumberList.size()) {
+                if (SimCapacityCache.getInstance(MergeContactActivity.this).get(subscription)
+                        .getSpareAnrCount() >= simNumberList.size()) {
                     for (int i = 0; i < simNumberList.size(); i++) {
                         resultAnrNumber.append(simNumberList.get(i))
                                 .append(SimContactsConstants.ANR_SEP);
@@ -366,8 +532,8 @@ public class MergeContactActivity extends ListActivity {
             }
 
             if (simEmailList.size() > 0) {
-                if (MoreContactUtils.getSpareEmailCount(MergeContactActivity.this, subscription)
-                        >= simEmailList.size()) {
+                if (SimCapacityCache.getInstance(MergeContactActivity.this).get(subscription)
+                        .getSpareEmailCount() >= simEmailList.size()) {
                     for (int i = 0; i < simEmailList.size(); i++) {
                         resultEmails.append(simEmailList.get(i))
                                 .append(SimContactsConstants.EMAIL_SEP);
@@ -388,8 +554,10 @@ public class MergeContactActivity extends ListActivity {
             sourceValues.remove(SimContactsConstants.ACCOUNT_NAME);
             // update the contacts in sim.
             int simResult = 1;
-            if (needUpdate)
+            if (needUpdate) {
                 mSimContactsOperation.update(sourceValues, subscription);
+                SimCapacityCache.getInstance(MergeContactActivity.this).invalidate(subscription);
+            }
 
             // if update sim contacts fail, stop merging.
             if (simResult <= 0) {
@@ -399,7 +567,7 @@ public class MergeContactActivity extends ListActivity {
             }
 
             // update local contact.
-            if (!joinSetLocalContacts(true, mergeContacts)) {
+            if (!joinSetLocalContacts(true, mergeContacts, unit)) {
                 Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
                         Toast.LENGTH_SHORT).show();
                 return false;
@@ -411,15 +579,14 @@ public class MergeContactActivity extends ListActivity {
                 int res = mSimContactsOperation.delete(values, subscription);
                 // if it deletes sim contact successfully, add it to local delete list.
                 if (res > 0) {
+                    SimCapacityCache.getInstance(MergeContactActivity.this).onDeleted(
+                            subscription, values.getAsString(SimContactsConstants.STR_ANRS),
+                            values.getAsString(SimContactsConstants.STR_EMAILS));
                     ArrayList<Long> list = delRawIdsMap.get(contactId);
-
-                    if (rawDelList.size() + list.size() >= BATCH_SIZE) {
-                        applyBatch();
-                    }
                     for (int j = 0; j < list.size(); j++) {
                         Uri uri = Uri.withAppendedPath(RawContacts
                                 .CONTENT_URI, String.valueOf(list.get(j)));
-                        rawDelList.add(ContentProviderOperation.newDelete(uri).build());
+                        unit.add(ContentProviderOperation.newDelete(uri).build());
                     }
                 } else {
                     Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
@@ -433,8 +600,12 @@ public class MergeContactActivity extends ListActivity {
          * if the set of contacts are not sim contacts.
          */
         private boolean joinSetLocalContacts(boolean isSimAccount,
-            DuplicatesUtils.MergeContacts mergeContacts) {
+            DuplicatesUtils.MergeContacts mergeContacts, ArrayList<ContentProviderOperation> unit) {
             ArrayList<DuplicatesUtils.ContactsInfo> contactsInfos = mergeContacts.getContacts();
+            if (contactsInfos.size() < 2) {
+                // nothing left to merge.
+                return true;
+            }
             // the id of the rawContacts which will be update.
             long sourceId = -1;
             ArrayList<Long> rawIds = new ArrayList<>();
@@ -450,68 +621,26 @@ public class MergeContactActivity extends ListActivity {
                 rawIds.add(rawContactId);
             }
 
-            if (rawUpdateList.size() + 1 >= BATCH_SIZE ||
-                rawDelList.size() + rawIds.size() >= BATCH_SIZE) {
-                if (!applyBatch()) {
-                    Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
-                            Toast.LENGTH_SHORT).show();
-                    return false;
-                }
-            }
-
-            //for sim card, do delete itself.
-            //it should delete local only when it deletes sim successfully.
-            for (int i = 0; !isSimAccount && i < rawIds.size(); i++) {
-                Uri uri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawIds.get(i));
-                // the delete operation list for the rawContacts.
-                rawDelList.add(ContentProviderOperation.newDelete(uri).build());
-            }
-
-            // build the source contact, which will be update later.
-            HashMap<String, List<String>> hashMap = DuplicatesUtils.buildSource(
-                    getContentResolver(), sourceId);
-            // build the differences among the source rawContact with the remaining ones.
-
-            ArrayList<ContentProviderOperation> dataInsertOps = DuplicatesUtils.diffRawEntity(
-                    isSimAccount, getContentResolver(), sourceId, hashMap, rawIds);
-            if (dataInsertList.size() + dataInsertOps.size() > BATCH_SIZE) {
-                try {
-                    getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawUpdateList);
-                    getContentResolver().applyBatch(ContactsContract.AUTHORITY, dataInsertList);
-                    rawUpdateList.clear();
-                    dataInsertList.clear();
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                    return false;
-                } catch (OperationApplicationException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            }
-            dataInsertList.addAll(dataInsertOps);
             // disable aggregation mode.
             ContentValues values = new ContentValues();
             values.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DISABLED);
-            rawUpdateList.add(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
+            unit.add(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
                     .withValues(values).withSelection(RawContacts._ID.concat(" = ?"),
                             new String[]{String.valueOf(sourceId)}).build());
-            return true;
-        }
 
-        private boolean applyBatch() {
-            try {
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawUpdateList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, dataInsertList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawDelList);
-                rawUpdateList.clear();
-                dataInsertList.clear();
-                rawDelList.clear();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-                return false;
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
-                return false;
+            // build the source contact, which will be update later.
+            HashMap<String, List<String>> hashMap = DuplicatesUtils.buildSource(
+                    getContentResolver(), sourceId);
+            // build the differences among the source rawContact with the remaining ones.
+            unit.addAll(DuplicatesUtils.diffRawEntity(
+                    isSimAccount, getContentResolver(), sourceId, hashMap, rawIds));
+
+            //for sim card, do delete itself.
+            //it should delete local only when it deletes sim successfully.
+            for (int i = 0; !isSimAccount && i < rawIds.size(); i++) {
+                Uri uri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawIds.get(i));
+                // the delete operation list for the rawContacts.
+                unit.add(ContentProviderOperation.newDelete(uri).build());
             }
             return true;
         }
@@ -532,7 +661,8 @@ public class MergeContactActivity extends ListActivity {
             builder.setPositiveButton(R.string.give_up, new OnClickListener() {
                 @Override
                 public void onClick(DialogInterface dialog, int which) {
-                    DuplicatesUtils.mMergeState = false;
+                    mMerging = false;
+                    mCheckpoint.clear();
                     DuplicatesUtils.clearMergeRawContacts();
                     mProgressDialog.dismiss();
                     finish();
@@ -546,7 +676,8 @@ public class MergeContactActivity extends ListActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        DuplicatesUtils.mMergeState = false;
+        // an unfinished merge stays in the checkpoint and is resumed next time.
+        mMerging = false;
         DuplicatesUtils.clearMergeRawContacts();
         mProgressDialog = null;
     }
@@ -101,6 +101,7 @@ import com.android.contacts.common.list.ContactListFilter;
 import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.model.account.SimAccountType;
 import com.android.contacts.common.util.PhoneNumberHelper;
+import com.android.contacts.util.SimCapacityCache;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -545,6 +546,9 @@ public class MultiPickContactActivity extends ListActivity implements
                             mProgressDialog.incrementProgressBy(1);
                             continue;
                         }
+                        SimCapacityCache.getInstance(MultiPickContactActivity.this).onDeleted(
+                                subscription, values.getAsString(SimContactsConstants.STR_ANRS),
+                                values.getAsString(SimContactsConstants.STR_EMAILS));
                     }
                     builder = ContentProviderOperation.newDelete(uri);
                     cpo = builder.build();
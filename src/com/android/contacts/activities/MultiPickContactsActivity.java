@@ -38,9 +38,11 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.app.ProgressDialog;
+import android.content.ClipData;
 import android.content.ContentResolver;
 import android.content.ContentProviderOperation;
-import android.content.ContentValues;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
@@ -60,14 +62,9 @@ import android.os.RemoteException;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.CommonDataKinds.Email;
-import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Groups;
-import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.RawContactsEntity;
 import android.support.v13.app.FragmentPagerAdapter;
 import android.support.v4.view.ViewPager;
@@ -103,6 +100,12 @@ import com.android.contacts.multipicker.DelCallLogFragment;
 import com.android.contacts.multipicker.SearchFragment;
 import com.android.contacts.list.ContactsPickMode;
 import com.android.contacts.list.OnCheckListActionListener;
+import com.android.contacts.list.SelectionStore;
+import com.android.contacts.util.CallLogNumberIndex;
+import com.android.contacts.util.GroupMembershipEngine;
+import com.android.contacts.util.ShareVCardTask;
+import com.android.contacts.util.SimContactsClassifier;
+import com.android.contacts.util.SimContactsImporter;
 import com.android.contacts.R;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
@@ -120,7 +123,6 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -164,7 +166,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
     // which group is selected
     private List<Long> mGroupSelected;
 
-    private StringBuilder mForSearchCallLog;
+    private CallLogNumberIndex mStrangeCallLogIndex;
 
     private static final int DIALOG_DEL_CALL = 1;
     public static final int ACTION_ADD_GROUP_MEMBER = 0;
@@ -184,10 +186,10 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
     private static final String CONTACT_SEP_RIGHT = "]";
 
     // contains data ids
-    private Bundle mChoiceSet;
+    private SelectionStore mChoiceSet;
     // contains call log ids
-    private Bundle mChoiceNumberSet;
-    private Bundle mBackupChoiceSet;
+    private SelectionStore mChoiceNumberSet;
+    private SelectionStore mBackupChoiceSet;
 
     private TextView mOKButton;
     private LinearLayout mButton_view;
@@ -205,6 +207,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private Context mContext;
     private ProgressDialog mProgressDialog;
+    private ShareVCardTask mShareVCardTask;
     private SimContactsOperation mSimContactsOperation;
 
     private static final int SIM_COLUMN_DISPLAY_NAME = 0;
@@ -218,8 +221,6 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private int MAX_CONTACTS_NUM_TO_GROUP = 100;
 
-    private static final int BUFFER_LENGTH = 400;
-
     public class ViewPagerAdapter extends FragmentPagerAdapter {
 
         public ViewPagerAdapter(FragmentManager fm) {
@@ -348,7 +349,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         setContentView(R.layout.multi_pick_activity);
 
-        mChoiceSet = new Bundle();
+        mChoiceSet = new SelectionStore();
         mContext = getApplicationContext();
 
         Intent intent = getIntent();
@@ -362,9 +363,9 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         mPickMode.setMode(getIntent());
 
         if (mPickMode.isPickPhone()) {
-            mChoiceNumberSet = new Bundle();
+            mChoiceNumberSet = new SelectionStore();
             mGroupSelected = new ArrayList<Long>();
-            mForSearchCallLog = new StringBuilder();
+            mStrangeCallLogIndex = new CallLogNumberIndex();
         }
 
         inflateSearchView();
@@ -613,38 +614,47 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
     private final class CheckListListener implements OnCheckListActionListener {
 
         @Override
-        public boolean onContainsKey(String key) {
-            return mChoiceSet.containsKey(key);
+        public boolean onContainsKey(long key) {
+            return mChoiceSet.contains(key);
+        }
+
+        @Override
+        public boolean onContainsNumberKey(long key) {
+            return mChoiceNumberSet.contains(key);
         }
 
         @Override
-        public boolean onContainsNumberKey(String key) {
-            return mChoiceNumberSet.containsKey(key);
+        public void putValue(long key, String[] value) {
+            mChoiceSet.put(key, value);
+            setOkStatus();
         }
 
         @Override
-        public void putValue(String key, String[] value) {
-            mChoiceSet.putStringArray(key, value);
+        public void putValues(SelectionStore values) {
+            mChoiceSet.putAll(values);
             setOkStatus();
         }
 
         @Override
-        public void putNumberValue(String key, String[] value) {
-            mChoiceNumberSet.putStringArray(key, value);
+        public void putNumberValue(long key, String[] value) {
+            mChoiceNumberSet.put(key, value);
             setOkStatus();
         }
 
         @Override
-        public void onRemove(String key) {
+        public void onRemove(long key) {
             mChoiceSet.remove(key);
-            if (mPickMode.isPickPhone() && !TextUtils.isEmpty(key)) {
-                long id = Long.valueOf(key);
-            }
             setOkStatus();
         }
 
         @Override
-        public void onNumberRemove(String key) {
+        public void onRemoveAll(long[] keys) {
+            mChoiceSet.removeAll(keys);
+            setOkStatus();
+        }
+
+        @Override
+        public void onNumberRemove(long key) {
             mChoiceNumberSet.remove(key);
             setOkStatus();
         }
@@ -700,17 +710,8 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         }
 
         @Override
-        public void appendStrangeCallLogId(String callLogId) {
-            mForSearchCallLog.append("," + callLogId);
-        }
-
-        @Override
-        public String getCallLogSelection() {
-            String strangeCallLog = mForSearchCallLog.toString();
-            if (TextUtils.isEmpty(strangeCallLog)) {
-                return "";
-            }
-            return strangeCallLog.substring(1, strangeCallLog.length());
+        public CallLogNumberIndex getStrangeCallLogIndex() {
+            return mStrangeCallLogIndex;
         }
     }
 
@@ -791,6 +792,9 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         if (mProgressDialog != null) {
             mProgressDialog.cancel();
         }
+        if (mShareVCardTask != null) {
+            mShareVCardTask.cancel(false);
+        }
 
         super.onDestroy();
     }
@@ -817,7 +821,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                     closeItem.setVisible(false);
                 }
             }
-            mSearchFragment.doFilter(ContactsPickMode.MODE_SEARCH_GROUP, query);
+            mSearchFragment.doFilter(query);
         } else {
             if (!TextUtils.isEmpty(query)) {
                 if (!closeItem.isVisible()) {
@@ -865,7 +869,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
     }
 
     private void backupChoiceSet() {
-        mBackupChoiceSet = (Bundle) mChoiceSet.clone();
+        mBackupChoiceSet = mChoiceSet.snapshot();
     }
 
     private void restoreChoiceSet() {
@@ -984,108 +988,197 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private class DeleteContactsThread extends Thread implements OnCancelListener, OnClickListener {
 
+        // The contacts we batch delete once.
+        private static final int BATCH_DELETE_CONTACT_NUMBER = 400;
+        private static final int DELETE_YIELD_INTERVAL = 50;
+
         boolean mCanceled = false;
 
         private ArrayList<ContentProviderOperation> mOpsCalls = null;
 
         private ArrayList<ContentProviderOperation> mOpsContacts = null;
 
+        /** Contact ids of {@link #mOpsContacts}, in the same order. */
+        private ArrayList<Long> mContactIds = null;
+
+        /** Calls and contacts that are really gone. */
+        private int mDeletedCount;
+
         public DeleteContactsThread() {
         }
 
         @Override
         public void run() {
             // The mChoiceSet object will change when activity restart, but
-            // DeleteContactsThread running in background, so we need clone the
-            // choiceSet to avoid ConcurrentModificationException.
-            Bundle choiceSet = (Bundle) mChoiceSet.clone();
-            Set<String> keySet = choiceSet.keySet();
+            // DeleteContactsThread running in background, so we need a snapshot
+            // of the choiceSet to avoid ConcurrentModificationException.
+            SelectionStore choiceSet = mChoiceSet.snapshot();
 
-            Iterator<String> it = keySet.iterator();
+            mOpsCalls = new ArrayList<ContentProviderOperation>();
+            mOpsContacts = new ArrayList<ContentProviderOperation>();
+            mContactIds = new ArrayList<Long>();
 
-            android.content.ContentProviderOperation.Builder builder = null;
+            if (mPickMode.isPickCall()) {
+                deleteCalls(choiceSet);
+            } else {
+                deleteContacts(choiceSet);
+            }
 
-            ContentProviderOperation cpo = null;
+            if (mCanceled) {
+                finish();
+                return;
+            }
 
-            // Current contact count we can delete.
-            int count = 0;
+            batchDelete();
+            mOpsCalls = null;
+            mOpsContacts = null;
+            mContactIds = null;
+            Log.d(TAG, "DeleteContactsThread run, progress:" + mProgressDialog.getProgress()
+                    + ", deleted:" + mDeletedCount);
+            mProgressDialog.dismiss();
+            finish();
+        }
 
-            // The contacts we batch delete once.
-            final int BATCH_DELETE_CONTACT_NUMBER = 100;
+        private void deleteCalls(SelectionStore choiceSet) {
+            // Current call count we can delete.
+            int count = 0;
 
-            mOpsCalls = new ArrayList<ContentProviderOperation>();
-            mOpsContacts = new ArrayList<ContentProviderOperation>();
+            // The calls we batch delete once.
+            final int BATCH_DELETE_CALL_NUMBER = 100;
 
-            while (!mCanceled && it.hasNext()) {
+            for (int i = 0; !mCanceled && i < choiceSet.size(); i++) {
                 // Get value by key
-                String[] ids = choiceSet.getStringArray(it.next());
+                String[] ids = choiceSet.valueAt(i);
                 // Iterates ids array.
                 for (String id : ids) {
-                    Uri uri = null;
-                    if (mPickMode.isPickCall()) {
-                        uri = Uri.withAppendedPath(Calls.CONTENT_URI, String.valueOf(id));
-                        builder = ContentProviderOperation.newDelete(uri);
-                        cpo = builder.build();
-                        mOpsCalls.add(cpo);
-                    } else {
-                        uri = Uri.withAppendedPath(Contacts.CONTENT_URI, id);
-                        long longId = Long.parseLong(id);
-                        int subscription = mSimContactsOperation.getSimSubscription(longId);
-
-                        if (subscription == SimContactsConstants.SLOT1
-                                || subscription == SimContactsConstants.SLOT2) {
-                            ContentValues values = mSimContactsOperation
-                                    .getSimAccountValues(longId);
-                            log("values is : " + values + "; sub is " + subscription);
-                            int result = mSimContactsOperation.delete(values, subscription);
-                            if (result == 0) {
-                                mProgressDialog.incrementProgressBy(1);
-                                continue;
-                            }
-                        }
-                        builder = ContentProviderOperation.newDelete(uri);
-                        cpo = builder.build();
-                        mOpsContacts.add(cpo);
-                    }
+                    Uri uri = Uri.withAppendedPath(Calls.CONTENT_URI, String.valueOf(id));
+                    mOpsCalls.add(ContentProviderOperation.newDelete(uri).build());
                 }
 
-                // If contacts more than 2000, delete all contacts
-                // one by one will cause UI nonresponse.
                 mProgressDialog.incrementProgressBy(1);
-                // We batch delete contacts every 100.
-                if (count % BATCH_DELETE_CONTACT_NUMBER == 0) {
+                // We batch delete calls every 100.
+                if (count % BATCH_DELETE_CALL_NUMBER == 0) {
                     batchDelete();
                 }
                 count++;
             }
+        }
 
-            if (mCanceled) {
-                finish();
-                return;
+        /**
+         * Sorts the selected contacts by SIM slot up front, so that only SIM contacts cost a
+         * card operation each and all others go straight into batched deletes.
+         */
+        private void deleteContacts(SelectionStore choiceSet) {
+            // The key of a selected contact is its id.
+            final SimContactsClassifier classifier = SimContactsClassifier.classify(
+                    mContext.getContentResolver(), choiceSet.getIds());
+
+            for (int subscription : classifier.getSubscriptions()) {
+                for (long contactId : classifier.getSimContactIds(subscription)) {
+                    if (mCanceled) {
+                        return;
+                    }
+                    if (SimContactsClassifier.deleteFromCard(mContext, mSimContactsOperation,
+                            contactId, subscription)) {
+                        addContactDelete(contactId);
+                    }
+                    mProgressDialog.incrementProgressBy(1);
+                }
             }
 
-            batchDelete();
-            mOpsCalls = null;
-            mOpsContacts = null;
-            Log.d(TAG, "DeleteContactsThread run, progress:" + mProgressDialog.getProgress());
-            mProgressDialog.dismiss();
-            finish();
+            for (long contactId : classifier.getPhoneContactIds()) {
+                if (mCanceled) {
+                    return;
+                }
+                addContactDelete(contactId);
+                mProgressDialog.incrementProgressBy(1);
+            }
+        }
+
+        private void addContactDelete(long contactId) {
+            final Uri uri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
+            // let other writers in between every so many deletes.
+            mOpsContacts.add(ContentProviderOperation.newDelete(uri)
+                    .withYieldAllowed(mOpsContacts.size() % DELETE_YIELD_INTERVAL == 0)
+                    .build());
+            mContactIds.add(contactId);
+            if (mOpsContacts.size() >= BATCH_DELETE_CONTACT_NUMBER) {
+                batchDelete();
+            }
         }
 
         /**
          * Batch delete contacts more efficient than one by one.
          */
         private void batchDelete() {
-            try {
-                mContext.getContentResolver().applyBatch(CallLog.AUTHORITY, mOpsCalls);
-                mContext.getContentResolver().applyBatch(ContactsContract.AUTHORITY, mOpsContacts);
+            if (!mOpsCalls.isEmpty()) {
+                mDeletedCount += applyCallBatch();
                 mOpsCalls.clear();
+            }
+            if (!mOpsContacts.isEmpty()) {
+                mDeletedCount += applyContactBatch();
                 mOpsContacts.clear();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
+                mContactIds.clear();
+            }
+        }
+
+        /**
+         * @return the number of calls deleted. The call batch has no yield points, so a failed
+         *         batch deleted nothing and its calls are deleted one by one instead.
+         */
+        private int applyCallBatch() {
+            final ContentResolver resolver = mContext.getContentResolver();
+            int deleted = 0;
+            try {
+                deleted = countDeleted(resolver.applyBatch(CallLog.AUTHORITY, mOpsCalls));
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.w(TAG, "Batch delete of calls failed, deleting them one by one", e);
+                for (ContentProviderOperation operation : mOpsCalls) {
+                    if (resolver.delete(operation.getUri(), null, null) > 0) {
+                        deleted++;
+                    }
+                }
             }
+            return deleted;
+        }
+
+        /**
+         * @return the number of contacts deleted. A failed batch may have got past some of its
+         *         yield points, so its contacts are deleted one by one and whatever is gone is
+         *         counted.
+         */
+        private int applyContactBatch() {
+            final ContentResolver resolver = mContext.getContentResolver();
+            try {
+                return countDeleted(resolver.applyBatch(ContactsContract.AUTHORITY, mOpsContacts));
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.w(TAG, "Batch delete of contacts failed, deleting them one by one", e);
+                for (long contactId : mContactIds) {
+                    resolver.delete(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId),
+                            null, null);
+                }
+            }
+            final Cursor cursor = resolver.query(Contacts.CONTENT_URI,
+                    new String[] {Contacts._ID},
+                    Contacts._ID + " IN (" + TextUtils.join(",", mContactIds) + ")", null, null);
+            if (cursor == null) {
+                return 0;
+            }
+            try {
+                return mContactIds.size() - cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private int countDeleted(ContentProviderResult[] results) {
+            int deleted = 0;
+            for (ContentProviderResult result : results) {
+                if (result.count != null && result.count > 0) {
+                    deleted++;
+                }
+            }
+            return deleted;
         }
 
         public void onCancel(DialogInterface dialog) {
@@ -1179,7 +1272,8 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                                                 Toast.LENGTH_SHORT).show();
                                         return;
                                     }
-                                    this.setResult(RESULT_OK, new Intent().putExtras(mChoiceSet));
+                                    this.setResult(RESULT_OK,
+                                            new Intent().putExtras(mChoiceSet.toBundle()));
                                     finish();
                                     break;
                                 case ACTION_MOVE_GROUP_MEMBER:
@@ -1207,7 +1301,8 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                                     }
                                     Intent intent = new Intent();
                                     Bundle bundle = new Bundle();
-                                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                                    bundle.putBundle(SimContactsConstants.RESULT_KEY,
+                                            mChoiceSet.toBundle());
                                     intent.putExtras(bundle);
                                     this.setResult(RESULT_OK, intent);
                                     finish();
@@ -1218,9 +1313,9 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                 } else if (mPickMode.isPickPhone()) {
                     Intent intent = new Intent();
                     Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet.toBundle());
                     bundle.putBundle(SimContactsConstants.RESULT_KEY_ONLY_NUMBER,
-                            mChoiceNumberSet);
+                            mChoiceNumberSet.toBundle());
                     intent.putExtras(bundle);
                     this.setResult(RESULT_OK, intent);
                     finish();
@@ -1231,7 +1326,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                 } else if (mPickMode.isPickEmail()) {
                     Intent intent = new Intent();
                     Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet.toBundle());
                     intent.putExtras(bundle);
                     this.setResult(RESULT_OK, intent);
                     finish();
@@ -1240,7 +1335,8 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                         if (mPickMode.isSelectCallLog()) {
                             Intent intent = new Intent();
                             Bundle bundle = new Bundle();
-                            bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                            bundle.putBundle(SimContactsConstants.RESULT_KEY,
+                                    mChoiceSet.toBundle());
                             intent.putExtras(bundle);
                             this.setResult(RESULT_OK, intent);
                             finish();
@@ -1262,8 +1358,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                     }
                     finish();
                 } else if (mPickMode.isPickContactVcard()) {
-                    String uri = getSelectedContactVcard();
-                    setResultAndFinish(uri);
+                    returnSelectedContactVcard();
                 }
                 break;
             case R.id.btn_cancel:
@@ -1277,52 +1372,41 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         }
     }
 
-    private String getLookupKey(Set<String> mSelectedIds) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(Contacts._ID);
-        sb.append(" IN ( ");
-        for (String contactId : mSelectedIds) {
-            sb.append(contactId);
-            sb.append(",");
+    private void returnSelectedContactVcard() {
+        if (mChoiceSet.size() == 1) {
+            // 1, represent lookupkey
+            String result = mChoiceSet.valueAt(0)[1];
+            setResultAndFinish(Uri.withAppendedPath(Contacts.CONTENT_VCARD_URI, result)
+                    .toString());
+            return;
         }
-        sb.deleteCharAt(sb.length()-1);
-        sb.append(" )");
-
-        final Cursor c = getContentResolver().query(Contacts.CONTENT_URI, new String[]{
-                Contacts.LOOKUP_KEY}, sb.toString(), null, null);
-        if (c == null) {
-            return null;
+        if (mShareVCardTask != null) {
+            return;
         }
-
-        sb = new StringBuilder();
-        try {
-            c.moveToPosition(-1);
-            while (c.moveToNext()) {
-                final String lookupKey = c.getString(0);
-                sb.append(lookupKey);
-                sb.append(":");
+        // write the vCards to a file rather than naming every contact in one uri.
+        mShareVCardTask = new ShareVCardTask(this, mChoiceSet.getIds()) {
+            @Override
+            protected void onExported(Uri uri) {
+                mShareVCardTask = null;
+                if (uri == null) {
+                    setResultAndFinish(null);
+                    return;
+                }
+                Intent intent = new Intent();
+                putExtraWithContact(intent, uri.toString());
+                intent.setClipData(ClipData.newRawUri(null, uri));
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                setResult(RESULT_OK, intent);
+                finish();
             }
-        } finally {
-            c.close();
-        }
-        sb.deleteCharAt(sb.length() - 1);
-        return sb.toString();
-    }
 
-    private String getSelectedContactVcard() {
-        Set<String> keySet = mChoiceSet.keySet();
-        Uri uri = null;
-        if (mChoiceSet.size() == 1) {
-            for (String key : keySet) {
-                // 1, represent lookupkey
-                String result = mChoiceSet.getStringArray(key)[1];
-                uri = Uri.withAppendedPath(Contacts.CONTENT_VCARD_URI, result);
+            @Override
+            protected void onCancelled(Uri uri) {
+                super.onCancelled(uri);
+                mShareVCardTask = null;
             }
-        } else {
-            uri = Uri.withAppendedPath(Contacts.CONTENT_MULTI_VCARD_URI,
-                    Uri.encode(getLookupKey(keySet)));
-        }
-        return uri.toString();
+        };
+        mShareVCardTask.execute();
     }
 
     private void setResultAndFinish(String uri) {
@@ -1337,9 +1421,8 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
     }
 
     private String getSelectedContactInfo(HashMap<String, List<String[]>> map) {
-        Set<String> keySet = mChoiceSet.keySet();
-        for (String key : keySet) {
-            String[] value = mChoiceSet.getStringArray(key);
+        for (int i = 0; i < mChoiceSet.size(); i++) {
+            String[] value = mChoiceSet.valueAt(i);
             String contactId = value[0];
             if (map.containsKey(contactId)) {
                 map.get(contactId).add(value);
@@ -1405,44 +1488,37 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         private Account mAccount;
 
+        // Taken on the main thread, mChoiceSet keeps changing while the import runs.
+        private final SelectionStore mChoiceSetSnapshot;
+
         public ImportAllSimContactsThread() {
+            mChoiceSetSnapshot = mChoiceSet.snapshot();
         }
 
         @Override
         public void run() {
-            final ContentValues emptyContentValues = new ContentValues();
-            final ContentResolver resolver = mContext.getContentResolver();
-
             String type = getIntent().getStringExtra(SimContactsConstants.ACCOUNT_TYPE);
             String name = getIntent().getStringExtra(SimContactsConstants.ACCOUNT_NAME);
             mAccount = new Account(name != null ? name : SimContactsConstants.PHONE_NAME,
                     type != null ? type : SimContactsConstants.ACCOUNT_TYPE_PHONE);
             log("import sim contact to account: " + mAccount);
-            mTotalCount = mChoiceSet.size();
-            ArrayList<ContentProviderOperation> operationList =
-                    new ArrayList<ContentProviderOperation>();
+            mTotalCount = mChoiceSetSnapshot.size();
+            final SimContactsImporter importer =
+                    new SimContactsImporter(mContext.getContentResolver(), mAccount);
 
-            for (String key : mChoiceSet.keySet()) {
+            for (int i = 0; i < mTotalCount; i++) {
                 if (mCanceled) {
-                    if (operationList.size() > 0) {
-                        doApplyBatch(operationList, resolver);
-                    }
                     break;
                 }
-                String[] values = mChoiceSet.getStringArray(key);
-                int firstBatch = operationList.size();
-                buildSimContentProviderOperationList(values, resolver, mAccount, firstBatch,
-                        operationList);
-                int size = operationList.size();
-                if (size > 0 && BUFFER_LENGTH - size < 10) {
-                    doApplyBatch(operationList, resolver);
-                }
+                String[] values = mChoiceSetSnapshot.valueAt(i);
+                final int written = importer.add(values[SIM_COLUMN_DISPLAY_NAME],
+                        values[SIM_COLUMN_NUMBER], values[SIM_COLUMN_EMAILS],
+                        values[SIM_COLUMN_ANRS]);
                 mActualCount++;
-                mProgressDialog.incrementProgressBy(1);
-            }
-            if (operationList.size() > 0) {
-                doApplyBatch(operationList, resolver);
+                mProgressDialog.incrementProgressBy(written);
             }
+            // records already read are written even if the import was canceled.
+            mProgressDialog.incrementProgressBy(importer.finish());
             finish();
         }
 
@@ -1464,90 +1540,6 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         }
     }
 
-    private static void doApplyBatch(ArrayList<ContentProviderOperation> operationList,
-            ContentResolver resolver) {
-        try {
-            resolver.applyBatch(ContactsContract.AUTHORITY, operationList);
-        } catch (Exception e) {
-            Log.w(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } finally {
-            operationList.clear();
-        }
-    }
-
-    private static void buildSimContentProviderOperationList(String[] values,
-            final ContentResolver resolver, Account account, int backReference,
-            ArrayList<ContentProviderOperation> operationList) {
-        final String name = values[SIM_COLUMN_DISPLAY_NAME];
-        final String phoneNumber = values[SIM_COLUMN_NUMBER];
-        final String emailAddresses = values[SIM_COLUMN_EMAILS];
-        final String anrs = values[SIM_COLUMN_ANRS];
-        final String[] emailAddressArray;
-        final String[] anrArray;
-        if (!TextUtils.isEmpty(emailAddresses)) {
-            emailAddressArray = emailAddresses.split(",");
-        } else {
-            emailAddressArray = null;
-        }
-        if (!TextUtils.isEmpty(anrs)) {
-            anrArray = anrs.split(SimContactsConstants.ANR_SEP);
-        } else {
-            anrArray = null;
-        }
-        log(" actuallyImportOneSimContact: name= " + name + ", phoneNumber= " + phoneNumber
-                + ", emails= " + emailAddresses + ", anrs= " + anrs + ", account is " + account
-                + ", backReference=" + backReference);
-        ContentProviderOperation.Builder builder = ContentProviderOperation
-                .newInsert(RawContacts.CONTENT_URI);
-        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
-        if (account != null) {
-            builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
-            builder.withValue(RawContacts.ACCOUNT_TYPE, account.type);
-        }
-        operationList.add(builder.build());
-
-        if (!TextUtils.isEmpty(name)) {
-            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, backReference);
-            builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-            builder.withValue(StructuredName.DISPLAY_NAME, name);
-            operationList.add(builder.build());
-        }
-
-        if (!TextUtils.isEmpty(phoneNumber)) {
-            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
-            builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-            builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
-            builder.withValue(Phone.NUMBER, phoneNumber);
-            builder.withValue(Data.IS_PRIMARY, 1);
-            operationList.add(builder.build());
-        }
-
-        if (anrArray != null) {
-            for (String anr : anrArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
-                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
-                builder.withValue(Phone.NUMBER, anr);
-                operationList.add(builder.build());
-            }
-        }
-
-        if (emailAddresses != null) {
-            for (String emailAddress : emailAddressArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, backReference);
-                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
-                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
-                builder.withValue(Email.ADDRESS, emailAddress);
-                operationList.add(builder.build());
-            }
-        }
-
-    }
-
     /**
      * After turn on airplane mode, cancel import sim contacts operation.
      */
@@ -1608,32 +1600,19 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private class ChooseActionListener implements DialogInterface.OnClickListener {
         public void onClick(DialogInterface dialog, int which) {
-            new MoveGroupMemberTask(mChoiceSet, getIntent().getLongExtra(KEY_GROUP_ID, -1),
-                    mGroupIds.get(which)).execute();
+            new MoveGroupMemberTask(mChoiceSet.snapshot(),
+                    getIntent().getLongExtra(KEY_GROUP_ID, -1), mGroupIds.get(which)).execute();
         }
     }
 
-    class MoveGroupMemberTask extends AsyncTask<Object, Object, Object> {
-
-        private static final String GROUP_QUERY_GROUP_MEMBER_SELECTION = Data.MIMETYPE + "=? AND "
-                + GroupMembership.GROUP_ROW_ID + "=?";
-
-        private static final String GROUP_QUERY_RAW_CONTACTS_SELECTION = RawContacts.CONTACT_ID
-                + "=?";
+    class MoveGroupMemberTask extends AsyncTask<Object, Integer, Object> {
 
-        private static final String GROUP_DELETE_MEMBER_SELECTION = Data.CONTACT_ID + "=? AND "
-                + Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?";
-
-        private Bundle mChoiceSet;
+        private SelectionStore mChoiceSet;
         private long mDestGroupId;
         private long mSrcGroupId;
-        private boolean mCanceled = false;
-
-        private ArrayList<ContentProviderOperation> mAddOrMoveOperation;
-        private ArrayList<ContentProviderOperation> mDeleteOperation;
-        private ArrayList<String> mGroupMemberList = new ArrayList<String>();
+        private volatile boolean mCanceled = false;
 
-        public MoveGroupMemberTask(Bundle choiceSet, long srcGroupId, long destGroupId) {
+        public MoveGroupMemberTask(SelectionStore choiceSet, long srcGroupId, long destGroupId) {
             mChoiceSet = choiceSet;
             mSrcGroupId = srcGroupId;
             mDestGroupId = destGroupId;
@@ -1645,7 +1624,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
             mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
             mProgressDialog.setTitle(getProgressDialogTitle());
             mProgressDialog.setMessage(getProgressDialogMessage());
-            mProgressDialog.setMax(mChoiceSet != null ? mChoiceSet.keySet().size() : 100);
+            mProgressDialog.setMax(mChoiceSet != null ? mChoiceSet.size() : 100);
             mProgressDialog.setProgress(0);
             mProgressDialog.setCanceledOnTouchOutside(false);
             mProgressDialog.setOnCancelListener(new OnCancelListener() {
@@ -1658,104 +1637,36 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         @Override
         protected Bundle doInBackground(Object... params) {
-            if (mChoiceSet == null || mSrcGroupId <= 0) {
+            if (mChoiceSet == null || mSrcGroupId <= 0 || mDestGroupId <= 0) {
                 return null;
             }
-            ContentResolver resolver = mContext.getContentResolver();
-            Cursor memberCursor = null;
-
-            memberCursor = resolver.query(Data.CONTENT_URI, new String[] {
-                    Data.CONTACT_ID
-            },
-                    GROUP_QUERY_GROUP_MEMBER_SELECTION, new String[] {
-                            GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(mDestGroupId)
-            },
-                    null);
-
-            if (memberCursor != null && memberCursor.getCount() > 0) {
-                try {
-                    while (memberCursor.moveToNext()) {
-                        // Mark those contacts that already exist in the dest
-                        // group
-                        mGroupMemberList.add(String.valueOf(memberCursor.getLong(0)));
-                    }
-                } finally {
-                    if (memberCursor != null) {
-                        memberCursor.close();
-                    }
-                }
+            final long[] contactIds = new long[mChoiceSet.size()];
+            for (int i = 0; i < contactIds.length; i++) {
+                contactIds[i] = mChoiceSet.keyAt(i);
             }
+            final GroupMembershipEngine engine = new GroupMembershipEngine(
+                    mContext.getContentResolver(), new GroupMembershipEngine.Listener() {
+                        @Override
+                        public void onProgress(int done, int total) {
+                            publishProgress(done, total);
+                        }
 
-            Set<String> keySet = mChoiceSet.keySet();
-            Iterator<String> it = keySet.iterator();
-
-            ContentProviderOperation.Builder builder;
-
-            mAddOrMoveOperation = new ArrayList<ContentProviderOperation>();
-            mDeleteOperation = new ArrayList<ContentProviderOperation>();
-            String id;
-            int count = 0;
-            int maxSize = mChoiceSet.keySet().size();
-            while (!mCanceled && it.hasNext()) {
-                id = it.next();
-                ++count;
-
-                if (mDestGroupId <= 0) {
-                    // Invalid group id, cancel the task
-                    return null;
-                }
-                if (mProgressDialog != null && mProgressDialog.isShowing()
-                        && count < maxSize - (maxSize) / 100) {
-                    mProgressDialog.incrementProgressBy(1);
-                }
-                if (mGroupMemberList.contains(id)) {
-                    // If the contact already exists in the group, need to
-                    // delete those
-                    // contacts that in the previous group
-                    builder = ContentProviderOperation.newDelete(Data.CONTENT_URI);
-                    builder.withSelection(GROUP_DELETE_MEMBER_SELECTION, new String[] {
-                            id,
-                            GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(mSrcGroupId)
+                        @Override
+                        public boolean isCancelled() {
+                            return mCanceled;
+                        }
                     });
-                    mDeleteOperation.add(builder.build());
-                    continue;
-                }
-                ContentValues values = new ContentValues();
-                values.put(GroupMembership.GROUP_ROW_ID, mDestGroupId);
-                builder = ContentProviderOperation.newUpdate(Data.CONTENT_URI);
-                builder.withSelection(GROUP_DELETE_MEMBER_SELECTION, new String[] {
-                        id,
-                        GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(mSrcGroupId)
-                });
-                builder.withValues(values);
-                mAddOrMoveOperation.add(builder.build());
-            }
+            engine.moveContacts(contactIds, mSrcGroupId, mDestGroupId);
+            return null;
+        }
 
-            if (mDeleteOperation.size() > 0) {
-                if (mDeleteOperation.size() > BUFFER_LENGTH) {
-                    addOrMoveApplyBatchByBuffer(mDeleteOperation, resolver);
-                } else {
-                    try {
-                        resolver.applyBatch(ContactsContract.AUTHORITY, mDeleteOperation);
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
-                    } catch (OperationApplicationException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            if (mAddOrMoveOperation.size() > BUFFER_LENGTH) {
-                addOrMoveApplyBatchByBuffer(mAddOrMoveOperation, resolver);
-            } else {
-                try {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, mAddOrMoveOperation);
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                } catch (OperationApplicationException e) {
-                    e.printStackTrace();
-                }
+        @Override
+        protected void onProgressUpdate(Integer... progress) {
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                // the engine counts membership rows, a contact may have several.
+                mProgressDialog.setMax(progress[1]);
+                mProgressDialog.setProgress(progress[0]);
             }
-            return null;
         }
 
         @Override
@@ -1766,33 +1677,6 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
             }
         }
 
-        private void addOrMoveApplyBatchByBuffer(ArrayList<ContentProviderOperation> list,
-                ContentResolver cr) {
-            final ArrayList<ContentProviderOperation> temp =
-                    new ArrayList<ContentProviderOperation>(BUFFER_LENGTH);
-            int bufferSize = list.size() / BUFFER_LENGTH;
-            for (int index = 0; index <= bufferSize; index++) {
-                temp.clear();
-                if (index == bufferSize) {
-                    for (int i = index * BUFFER_LENGTH; i < list.size(); i++) {
-                        temp.add(list.get(i));
-                    }
-                } else {
-                    for (int i = index * BUFFER_LENGTH; i < index * BUFFER_LENGTH
-                            + BUFFER_LENGTH; i++) {
-                        temp.add(list.get(i));
-                    }
-                }
-                if (!temp.isEmpty()) {
-                    try {
-                        cr.applyBatch(ContactsContract.AUTHORITY, temp);
-                    } catch (Exception e) {
-                        Log.e(TAG, "apply batch by buffer error:" + e);
-                    }
-                }
-            }
-        }
-
         private String getProgressDialogTitle() {
             return getString(R.string.title_move_members);
         }
@@ -110,10 +110,14 @@ import com.android.contacts.common.vcard.ExportVCardActivity;
 import com.android.contacts.common.vcard.VCardCommonArguments;
 import com.android.contacts.util.DialogManager;
 import com.android.contacts.util.PhoneCapabilityTester;
+import com.android.contacts.util.ShareVCardTask;
+import com.android.contacts.util.SimExportPlanner;
+import com.android.contacts.util.SimExportTask;
 import com.android.contactsbind.HelpUtils;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Set;
@@ -206,16 +210,12 @@ public class PeopleActivity extends ContactsActivity implements
     private final int mInstanceId;
     private static final AtomicInteger sNextInstanceId = new AtomicInteger();
 
-    private ContactMultiDeletionInteraction mContactMultiDeletionInteraction;
-    private ContactMultiDeletionInteraction.DeleteContactsThread
-            mDeleteContactsThread;
-
     // TODO: we need to refactor the export code in future release.
     // QRD enhancement: contacts list for multi contact pick
     private ArrayList<String[]> mContactList;
 
     private BroadcastReceiver mExportToSimCompleteListener = null;
-    private static final int MAX_COUNT_ALLOW_SHARE_CONTACT = 2000;
+    private ShareVCardTask mShareVCardTask;
 
     public PeopleActivity() {
         mInstanceId = sNextInstanceId.getAndIncrement();
@@ -264,21 +264,6 @@ public class PeopleActivity extends ContactsActivity implements
         }
         super.onCreate(savedState);
 
-        // Get ContactMultiDeletionInteraction fragment from FragmentManager.
-        FragmentManager fm = getFragmentManager();
-        mContactMultiDeletionInteraction = (ContactMultiDeletionInteraction)fm
-                .findFragmentByTag("deleteMultipleContacts");
-
-        // Get the running delete thread.
-        if (mContactMultiDeletionInteraction != null) {
-            mDeleteContactsThread = mContactMultiDeletionInteraction
-                    .getDeleteContactsThread();
-        }
-
-        if (mDeleteContactsThread != null) {
-            mDeleteContactsThread.setActivity(this);
-        }
-
         if (RequestPermissionsActivity.startPermissionActivity(this)) {
             return;
         }
@@ -536,10 +521,33 @@ public class PeopleActivity extends ContactsActivity implements
         super.onStop();
     }
 
+    /**
+     * Plans all picked contacts on the card and writes them through {@link SimExportTask}, so
+     * that the user confirms leaving out the contacts which do not fit before anything is
+     * written.
+     */
+    private void exportToSim(int sub, ArrayList<String[]> contactList) {
+        // pick results are {lookupKey, contactId, nameRawContactId, photoUri, name}
+        final ArrayList<SimExportPlanner.Entry> entries = new ArrayList<>(contactList.size());
+        for (String[] contactInfo : contactList) {
+            entries.add(new SimExportPlanner.Entry(Long.parseLong(contactInfo[1]),
+                    contactInfo[4]));
+        }
+        if (ImportExportDialogFragment.isExportingToSIM()
+                || !SimExportTask.start(this, sub, entries)) {
+            Toast.makeText(this, R.string.sim_export_running, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     /**
      * Use to restore export contacts to sim card's progressbar if exist.
      */
     private void restoreExportToSimProgressBar() {
+        final SimExportTask simExportTask = SimExportTask.getRunning();
+        if (simExportTask != null) {
+            simExportTask.attach(this);
+        }
+
 
         // Judge whether contacts is exporting to sim card.
         if (ImportExportDialogFragment.isExportingToSIM()) {
@@ -572,6 +580,14 @@ public class PeopleActivity extends ContactsActivity implements
         if (mExportToSimCompleteListener != null) {
             unregisterReceiver(mExportToSimCompleteListener);
         }
+        if (mShareVCardTask != null) {
+            mShareVCardTask.cancel(false);
+        }
+        // the export goes on, a re-created activity shows its progress again.
+        final SimExportTask simExportTask = SimExportTask.getRunning();
+        if (simExportTask != null) {
+            simExportTask.detach(this);
+        }
         super.onDestroy();
     }
 
@@ -1520,62 +1536,50 @@ public class PeopleActivity extends ContactsActivity implements
     }
 
     /**
-     * Share all contacts that are currently selected in mAllFragment. This method is pretty
-     * inefficient for handling large numbers of contacts. I don't expect this to be a problem.
+     * Share all contacts that are currently selected in mAllFragment.
      */
     private void shareSelectedContacts() {
         Set<Long> selectedIds = mAllFragment.getSelectedContactIds();
-        // Limit the selected contacts number because too long arguments
-        // will cause TransactionTooLargeException in binder.
-        if (selectedIds.size() > MAX_COUNT_ALLOW_SHARE_CONTACT) {
-            Toast.makeText(
-                    this,
-                    getString(R.string.too_many_contacts_add_to_group,
-                            MAX_COUNT_ALLOW_SHARE_CONTACT), Toast.LENGTH_SHORT)
-                    .show();
-            return;
+        long[] contactIds = new long[selectedIds.size()];
+        int index = 0;
+        for (Long contactId : selectedIds) {
+            contactIds[index++] = contactId;
         }
-        final Uri uri = Uri.withAppendedPath(
-                Contacts.CONTENT_MULTI_VCARD_URI,
-                Uri.encode(getLookupKey(selectedIds)));
-        final Intent intent = new Intent(Intent.ACTION_SEND);
-        intent.setType(Contacts.CONTENT_VCARD_TYPE);
-        intent.putExtra(Intent.EXTRA_STREAM, uri);
-        ImplicitIntentsUtil.startActivityOutsideApp(this, intent);
-    }
-
-    // Query contact lookupKey instead of {@link Contacts#getLookupUri()} which is pretty
-    // inefficient
-    private String getLookupKey(Set<Long> mSelectedIds) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(Contacts._ID);
-        sb.append(" IN ( ");
-        for (Long contactId : mSelectedIds) {
-            sb.append(contactId);
-            sb.append(",");
-        }
-        sb.deleteCharAt(sb.length()-1);
-        sb.append(" )");
-
-        final Cursor c = getContentResolver().query(Contacts.CONTENT_URI, new String[]{
-                Contacts.LOOKUP_KEY}, sb.toString(), null, null);
-        if (c == null) {
-            return null;
+        shareContacts(contactIds);
+    }
+
+    /**
+     * Writes the vCards of the contacts to a file and shares it. Unlike a multi vcard uri,
+     * this does not put a lookup key per contact into the intent, so any number of contacts
+     * can be shared.
+     */
+    private void shareContacts(long[] contactIds) {
+        if (contactIds.length == 0 || mShareVCardTask != null) {
+            return;
         }
+        mShareVCardTask = new ShareVCardTask(this, contactIds) {
+            @Override
+            protected void onExported(Uri uri) {
+                mShareVCardTask = null;
+                if (uri == null) {
+                    Toast.makeText(PeopleActivity.this, R.string.share_failed,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                final Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType(Contacts.CONTENT_VCARD_TYPE);
+                intent.putExtra(Intent.EXTRA_STREAM, uri);
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                ImplicitIntentsUtil.startActivityOutsideApp(PeopleActivity.this, intent);
+            }
 
-        sb = new StringBuilder();
-        try {
-            c.moveToPosition(-1);
-            while (c.moveToNext()) {
-                final String lookupKey = c.getString(0);
-                sb.append(lookupKey);
-                sb.append(":");
+            @Override
+            protected void onCancelled(Uri uri) {
+                super.onCancelled(uri);
+                mShareVCardTask = null;
             }
-        } finally {
-            c.close();
-        }
-        sb.deleteCharAt(sb.length() - 1);
-        return sb.toString();
+        };
+        mShareVCardTask.execute();
     }
 
     private void joinSelectedContacts() {
@@ -1656,14 +1660,7 @@ public class PeopleActivity extends ContactsActivity implements
                     }
                     Log.d(TAG, "return " + mContactList.size() + " contacts");
                     if (!mContactList.isEmpty()) {
-                        if (!ImportExportDialogFragment.isExportingToSIM()) {
-                            ImportExportDialogFragment.destroyExportToSimThread();
-                            mExportThread =
-                                new ImportExportDialogFragment().createExportToSimThread(
-                                ImportExportDialogFragment.mExportSub, mContactList,
-                                PeopleActivity.this);
-                            mExportThread.start();
-                        }
+                        exportToSim(ImportExportDialogFragment.mExportSub, mContactList);
                     }
                 }
                 break;
@@ -1696,37 +1693,19 @@ public class PeopleActivity extends ContactsActivity implements
                 if (resultCode == RESULT_OK) {
                     Bundle result = data.getExtras().getBundle(
                         SimContactsConstants.RESULT_KEY);
-                    StringBuilder uriListBuilder = new StringBuilder();
-                    int index = 0;
-                    int size = result.keySet().size();
-                    // The premise of allowing to share contacts is that the
-                    // amount of those contacts which have been selected to
-                    // append and will be put into intent as extra data to
-                    // deliver is not more that 2000, because too long arguments
-                    // will cause TransactionTooLargeException in binder.
-                if (size > ImportExportDialogFragment.MAX_COUNT_ALLOW_SHARE_CONTACT) {
-                    Toast.makeText(this, R.string.share_failed,
-                            Toast.LENGTH_SHORT).show();
-                    return;
-                }
-                Iterator<String> it = result.keySet().iterator();
-                String[] values = null;
-                while (it.hasNext()) {
-                    if (index != 0) {
-                        uriListBuilder.append(':');
+                    // the keys are the ids of the picked contacts.
+                    long[] contactIds = new long[result.size()];
+                    int count = 0;
+                    for (String key : result.keySet()) {
+                        try {
+                            contactIds[count] = Long.parseLong(key);
+                            count++;
+                        } catch (NumberFormatException e) {
+                            Log.w(TAG, "Not a contact id: " + key);
+                        }
                     }
-                    values = result.getStringArray(it.next());
-                    uriListBuilder.append(values[0]);
-                    index++;
+                    shareContacts(Arrays.copyOf(contactIds, count));
                 }
-                Uri uri = Uri.withAppendedPath(
-                        Contacts.CONTENT_MULTI_VCARD_URI,
-                        Uri.encode(uriListBuilder.toString()));
-                final Intent intent = new Intent(Intent.ACTION_SEND);
-                intent.setType(Contacts.CONTENT_VCARD_TYPE);
-                intent.putExtra(Intent.EXTRA_STREAM, uri);
-                startActivity(intent);
-            }
             break;
         }
     }
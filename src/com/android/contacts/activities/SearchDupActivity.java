@@ -37,8 +37,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.provider.ContactsContract.RawContacts;
 import android.view.Window;
 import android.widget.Toast;
@@ -46,99 +44,96 @@ import android.widget.Toast;
 import com.android.contacts.R;
 import com.android.contacts.common.model.AccountTypeManager;
 import com.android.contacts.common.model.account.AccountWithDataSet;
+import com.android.contacts.util.DuplicateScanTask;
 import com.android.contacts.util.DuplicatesUtils;
+import com.android.contacts.util.MergeCheckpoint;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class SearchDupActivity extends Activity {
+public class SearchDupActivity extends Activity implements DuplicateScanTask.Listener {
 
     private ProgressDialog mProgressDialog;
-    private MyHandler handler = new MyHandler();
+    private DuplicateScanTask mScanTask;
 
     private final String[] RAWCONTACTS_ID_PROJECTION = new String[] {RawContacts._ID};
-    private final int FIND_DUPLICATED = 1;
-    private final int NO_DUPLICATED = 0;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         super.onCreate(savedInstanceState);
+        if (new MergeCheckpoint(this).hasPending()) {
+            // a previous merge was interrupted, finish it before searching again.
+            Intent intent = new Intent(this, MergeContactActivity.class);
+            intent.putExtra(MergeContactActivity.EXTRA_RESUME, true);
+            startActivity(intent);
+            finish();
+            return;
+        }
         showDialog(R.id.search_dup_dialog);
     }
 
     @Override
     protected void onUserLeaveHint() {
         // If MergeContactActivity starts or user presses home key, end searching.
-        DuplicatesUtils.mSearchState = false;
+        cancelSearch();
         if (mProgressDialog != null && mProgressDialog.isShowing()) {
             finish();
         }
         super.onUserLeaveHint();
     }
 
+    @Override
+    protected void onDestroy() {
+        cancelSearch();
+        super.onDestroy();
+    }
+
     @Override
     protected Dialog onCreateDialog(int id) {
         switch (id) {
             case R.id.search_dup_dialog: {
                 mProgressDialog = initSearchingDialog();
-                DuplicatesUtils.setDialog(mProgressDialog);
-                Thread thread = new SearchDuplicatedThread();
-                DuplicatesUtils.mSearchState = true;
-                thread.start();
+                List<AccountWithDataSet> list = AccountTypeManager
+                        .getInstance(SearchDupActivity.this).getAccounts(true);
+                ArrayList<Account> accountsList = new ArrayList<>();
+                for (int i = 0; i < list.size(); i++) {
+                    accountsList.add(list.get(i).getAccountOrNull());
+                }
+                /* calculate the contacts which can be merged. */
+                mScanTask = new DuplicateScanTask(this, accountsList, this);
+                mScanTask.start();
                 return mProgressDialog;
             }
         }
         return super.onCreateDialog(id);
     }
 
-    private class SearchDuplicatedThread extends Thread {
-        @Override
-        public void run() {
-            List<AccountWithDataSet> list = AccountTypeManager
-                    .getInstance(SearchDupActivity.this).getAccounts(true);
-            ArrayList<Account> accountsList = new ArrayList<>();
-            for (int i = 0; i < list.size(); i++) {
-                accountsList.add(list.get(i).getAccountOrNull());
-            }
+    private void cancelSearch() {
+        if (mScanTask != null) {
+            mScanTask.cancel();
+        }
+    }
 
-            /* calculate the contacts which can be merged. */
-            boolean isComplete = DuplicatesUtils
-                    .calculateMergeRawContacts(SearchDupActivity.this, accountsList,
-                            getContentResolver());
-            Message msg = Message.obtain();
-            if (isComplete) {
-                ArrayList<DuplicatesUtils.MergeContacts> mergeRawContacts =
-                        DuplicatesUtils.getMergeRawContacts();
-                if (mergeRawContacts != null && mergeRawContacts.size() > 0) {
-                    msg.what = FIND_DUPLICATED;
-                } else {
-                    msg.what = NO_DUPLICATED;
-                }
-                handler.sendMessage(msg);
-            }
+    @Override
+    public void onProgress(DuplicateScanTask.Progress progress) {
+        if (mProgressDialog != null) {
+            mProgressDialog.setProgress(progress.rawContactsScanned);
         }
     }
 
-    private class MyHandler extends Handler {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case NO_DUPLICATED:
-                    Toast.makeText(SearchDupActivity.this, R.string.no_duplicated_contacts,
-                            Toast.LENGTH_LONG).show();
-                    if (mProgressDialog != null && mProgressDialog.isShowing()) {
-                        finish();
-                    }
-                    break;
-                case FIND_DUPLICATED:
-                    Intent intent = new Intent(SearchDupActivity.this, MergeContactActivity.class);
-                    startActivity(intent);
-                    if (mProgressDialog != null && mProgressDialog.isShowing()) {
-                        finish();
-                    }
-                    break;
-            }
+    @Override
+    public void onComplete(ArrayList<DuplicatesUtils.MergeContacts> mergeContacts) {
+        if (mergeContacts.size() > 0) {
+            DuplicatesUtils.setMergeRawContacts(mergeContacts);
+            Intent intent = new Intent(SearchDupActivity.this, MergeContactActivity.class);
+            startActivity(intent);
+        } else {
+            Toast.makeText(SearchDupActivity.this, R.string.no_duplicated_contacts,
+                    Toast.LENGTH_LONG).show();
+        }
+        if (mProgressDialog != null && mProgressDialog.isShowing()) {
+            finish();
         }
     }
 
@@ -172,7 +167,7 @@ public class SearchDupActivity extends Activity {
 
         @Override
         public void onBackPressed() {
-            DuplicatesUtils.mSearchState = false;
+            cancelSearch();
             DuplicatesUtils.clearMergeRawContacts();
             finish();
         }
@@ -29,6 +29,8 @@
 
 package com.android.contacts.list;
 
+import com.android.contacts.util.CallLogNumberIndex;
+
 import java.util.List;
 
 public interface OnCheckListActionListener {
@@ -38,36 +40,46 @@ public interface OnCheckListActionListener {
      *
      * @key represent data id, contact id
      */
-    boolean onContainsKey(String key);
+    boolean onContainsKey(long key);
 
     /**
      * judge mChoiceNumberSet contain key
      *
      * @key represent call log id
      */
-    boolean onContainsNumberKey(String key);
+    boolean onContainsNumberKey(long key);
 
     /**
      * put value to mChoiceSet
      */
-    void putValue(String key, String[] value);
+    void putValue(long key, String[] value);
+
+    /**
+     * put all values of the store to mChoiceSet, keeping those already there
+     */
+    void putValues(SelectionStore values);
 
     /**
      * remove value from mChoiceSet
      */
-    void onRemove(String key);
+    void onRemove(long key);
+
+    /**
+     * remove all keys from mChoiceSet
+     */
+    void onRemoveAll(long[] keys);
 
     /**
      * put value to mChoiceNumberSet, only for call log value
      */
-    void putNumberValue(String key, String[] value);
+    void putNumberValue(long key, String[] value);
 
     /**
      * remove value from mChoiceNumberSet, only for call log value
      *
      * @key represent call log id
      */
-    void onNumberRemove(String key);
+    void onNumberRemove(long key);
 
     /**
      * pick phone mode, need to add groupId to mGroupSelected when selected
@@ -117,12 +129,7 @@ public interface OnCheckListActionListener {
     void exitSearch();
 
     /**
-     * add strange call log id
+     * get the numbers of strange call logs loaded by calllogfragment, searched by searchfragment
      */
-    void appendStrangeCallLogId(String callLogid);
-
-    /**
-    * get the ids queried by calllogfragment, then can show call log datas on searchfragment
-    */
-    String getCallLogSelection();
+    CallLogNumberIndex getStrangeCallLogIndex();
 }
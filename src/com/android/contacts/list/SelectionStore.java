@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.list;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+/**
+ * The selection of the multi-picker: values keyed by the id of the selected row.
+ *
+ * Ids and values are kept in two dense arrays, and an open-addressing table of indexes into
+ * them answers lookups in constant time without boxing the ids. Removing a row moves the last
+ * row into its place, so the order of {@link #keyAt(int)} is not the selection order.
+ *
+ * {@link #snapshot()} shares the arrays with the copy, and whichever of the two changes first
+ * copies them. Values are shared too and must not be changed once put.
+ *
+ * Not thread-safe. Hand a snapshot to background threads instead of the store itself.
+ */
+public class SelectionStore {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mIds;
+    private String[][] mValues;
+    // index + 1 into the dense arrays, 0 for an empty slot. Length is a power of two.
+    private int[] mTable;
+    private int mSize;
+    private boolean mShared;
+
+    public SelectionStore() {
+        this(MIN_CAPACITY);
+    }
+
+    public SelectionStore(int expectedSize) {
+        final int capacity = Math.max(expectedSize, MIN_CAPACITY);
+        mIds = new long[capacity];
+        mValues = new String[capacity][];
+        mTable = new int[tableSizeFor(capacity)];
+    }
+
+    private SelectionStore(SelectionStore other) {
+        mIds = other.mIds;
+        mValues = other.mValues;
+        mTable = other.mTable;
+        mSize = other.mSize;
+        mShared = true;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long id) {
+        return mTable[findSlot(id)] != 0;
+    }
+
+    /**
+     * @return the value of the id, or null if it is not selected or was put without a value.
+     */
+    public String[] get(long id) {
+        final int index = mTable[findSlot(id)] - 1;
+        return index < 0 ? null : mValues[index];
+    }
+
+    public long keyAt(int index) {
+        return mIds[index];
+    }
+
+    public String[] valueAt(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Selects the id, replacing its value if it is selected already.
+     */
+    public void put(long id, String[] value) {
+        ensureOwned();
+        final int slot = findSlot(id);
+        if (mTable[slot] != 0) {
+            mValues[mTable[slot] - 1] = value;
+            return;
+        }
+        if (mSize == mIds.length) {
+            grow(mSize + 1);
+            putNew(findSlot(id), id, value);
+        } else {
+            putNew(slot, id, value);
+        }
+    }
+
+    /**
+     * Selects all ids of the other store that are not selected here yet.
+     */
+    public void putAll(SelectionStore other) {
+        ensureCapacity(mSize + other.mSize);
+        for (int i = 0; i < other.mSize; i++) {
+            final int slot = findSlot(other.mIds[i]);
+            if (mTable[slot] == 0) {
+                putNew(slot, other.mIds[i], other.mValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Selects the ids with their values, keeping the values of ids that are selected already.
+     *
+     * @param values the value of each id, or null to put the ids without values.
+     */
+    public void putAll(long[] ids, String[][] values) {
+        ensureCapacity(mSize + ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            final int slot = findSlot(ids[i]);
+            if (mTable[slot] == 0) {
+                putNew(slot, ids[i], values == null ? null : values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return true if the id was selected.
+     */
+    public boolean remove(long id) {
+        final int slot = findSlot(id);
+        if (mTable[slot] == 0) {
+            return false;
+        }
+        ensureOwned();
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Unselects all given ids.
+     *
+     * @return the number of ids that were selected.
+     */
+    public int removeAll(long[] ids) {
+        ensureOwned();
+        int removed = 0;
+        for (long id : ids) {
+            final int slot = findSlot(id);
+            if (mTable[slot] != 0) {
+                removeSlot(slot);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        if (mShared) {
+            mIds = new long[MIN_CAPACITY];
+            mValues = new String[MIN_CAPACITY][];
+            mTable = new int[tableSizeFor(MIN_CAPACITY)];
+            mShared = false;
+        } else {
+            Arrays.fill(mValues, 0, mSize, null);
+            Arrays.fill(mTable, 0);
+        }
+        mSize = 0;
+    }
+
+    /**
+     * @return a copy of the selected ids.
+     */
+    public long[] getIds() {
+        return Arrays.copyOf(mIds, mSize);
+    }
+
+    /**
+     * @return a copy of the selection that costs nothing until either side changes.
+     */
+    public SelectionStore snapshot() {
+        mShared = true;
+        return new SelectionStore(this);
+    }
+
+    /**
+     * @return the selection in the form picker results are returned: the string form of each
+     *         id mapped to its value.
+     */
+    public Bundle toBundle() {
+        final Bundle bundle = new Bundle();
+        for (int i = 0; i < mSize; i++) {
+            bundle.putStringArray(String.valueOf(mIds[i]), mValues[i]);
+        }
+        return bundle;
+    }
+
+    private void putNew(int slot, long id, String[] value) {
+        mIds[mSize] = id;
+        mValues[mSize] = value;
+        mSize++;
+        mTable[slot] = mSize;
+    }
+
+    private void removeSlot(int slot) {
+        final int index = mTable[slot] - 1;
+        deleteSlot(slot);
+        final int last = mSize - 1;
+        if (index != last) {
+            mTable[findSlot(mIds[last])] = index + 1;
+            mIds[index] = mIds[last];
+            mValues[index] = mValues[last];
+        }
+        mValues[last] = null;
+        mSize--;
+    }
+
+    /**
+     * Empties a slot of the linear-probing table, moving later entries of its probe run back
+     * so that lookups never stop early at the hole.
+     */
+    private void deleteSlot(int slot) {
+        final int mask = mTable.length - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (mTable[next] == 0) {
+                break;
+            }
+            final int home = hash(mIds[mTable[next] - 1]) & mask;
+            final boolean homeInRange = hole <= next
+                    ? hole < home && home <= next
+                    : hole < home || home <= next;
+            if (!homeInRange) {
+                mTable[hole] = mTable[next];
+                hole = next;
+            }
+        }
+        mTable[hole] = 0;
+    }
+
+    private int findSlot(long id) {
+        final int mask = mTable.length - 1;
+        int slot = hash(id) & mask;
+        while (mTable[slot] != 0 && mIds[mTable[slot] - 1] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void ensureOwned() {
+        if (mShared) {
+            mIds = mIds.clone();
+            mValues = mValues.clone();
+            mTable = mTable.clone();
+            mShared = false;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        ensureOwned();
+        if (capacity > mIds.length) {
+            grow(capacity);
+        }
+    }
+
+    private void grow(int minCapacity) {
+        final int capacity = Math.max(minCapacity, mIds.length * 2);
+        mIds = Arrays.copyOf(mIds, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+        mTable = new int[tableSizeFor(capacity)];
+        final int mask = mTable.length - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = hash(mIds[i]) & mask;
+            while (mTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mTable[slot] = i + 1;
+        }
+    }
+
+    /**
+     * @return a power of two table size that keeps the load factor at or below one half.
+     */
+    private static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private static int hash(long id) {
+        final int h = (int) (id ^ (id >>> 32));
+        // spread sequential ids over the table.
+        return h * 0x9E3779B9;
+    }
+
+    /**
+     * @return the selection of a picker result bundle, skipping keys that are not ids.
+     */
+    public static SelectionStore fromBundle(Bundle bundle) {
+        final SelectionStore store = new SelectionStore(bundle.size());
+        for (String key : bundle.keySet()) {
+            try {
+                store.put(Long.parseLong(key), bundle.getStringArray(key));
+            } catch (NumberFormatException e) {
+                // not a selected row.
+            }
+        }
+        return store;
+    }
+}
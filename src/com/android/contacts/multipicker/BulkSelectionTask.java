@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.multipicker;
+
+import android.database.Cursor;
+import android.os.AsyncTask;
+
+import com.android.contacts.list.SelectionStore;
+
+/**
+ * Selects or deselects all rows of a multi-pick list off the main thread.
+ *
+ * The rows are read on a worker thread and handed to the list in chunks of
+ * {@link #CHUNK_SIZE}, so the selected count keeps moving while the list stays responsive.
+ * The list is refreshed once, after the last chunk or on cancel. The rows come from a cursor
+ * opened by the task itself, because the main thread moves the adapter's cursor while it
+ * binds views.
+ */
+abstract class BulkSelectionTask extends AsyncTask<Void, SelectionStore, Void> {
+    static final int CHUNK_SIZE = 500;
+
+    private final boolean mSelect;
+
+    /**
+     * @param select true to select the rows, false to deselect them.
+     */
+    BulkSelectionTask(boolean select) {
+        mSelect = select;
+    }
+
+    public boolean isSelect() {
+        return mSelect;
+    }
+
+    /**
+     * Opens the rows to walk. Called on the worker thread.
+     */
+    protected abstract Cursor openCursor();
+
+    /**
+     * @return the selection key of the current row. Called on the worker thread.
+     */
+    protected abstract long readKey(Cursor cursor);
+
+    /**
+     * @return the selection value of the current row. Called on the worker thread, and only
+     *         when selecting.
+     */
+    protected abstract String[] readValue(Cursor cursor, long key);
+
+    /**
+     * Selects or deselects the rows of one chunk. Called on the main thread.
+     */
+    protected abstract void onChunk(SelectionStore chunk);
+
+    /**
+     * Called once on the main thread when the task is done or canceled.
+     */
+    protected abstract void onFinished();
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        final Cursor cursor = openCursor();
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            SelectionStore chunk = new SelectionStore(CHUNK_SIZE);
+            while (!isCancelled() && cursor.moveToNext()) {
+                final long key = readKey(cursor);
+                chunk.put(key, mSelect ? readValue(cursor, key) : null);
+                if (chunk.size() == CHUNK_SIZE) {
+                    publishProgress(chunk);
+                    chunk = new SelectionStore(CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                publishProgress(chunk);
+            }
+        } finally {
+            cursor.close();
+        }
+        return null;
+    }
+
+    @Override
+    protected void onProgressUpdate(SelectionStore... chunks) {
+        // chunks published before a cancel still arrive, drop them.
+        if (!isCancelled()) {
+            onChunk(chunks[0]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Void result) {
+        onFinished();
+    }
+
+    @Override
+    protected void onCancelled(Void result) {
+        onFinished();
+    }
+}
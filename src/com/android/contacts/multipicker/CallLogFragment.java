@@ -37,10 +37,10 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
-import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.PhoneLookup;
 import android.provider.VoicemailContract.Voicemails;
@@ -62,10 +62,15 @@ import com.android.contacts.common.util.UriUtils;
 import com.android.contacts.common.widget.CheckableImageView;
 import com.android.contacts.list.ContactsPickMode;
 import com.android.contacts.list.OnCheckListActionListener;
+import com.android.contacts.list.SelectionStore;
+import com.android.contacts.util.PhoneNumberContactCache;
 import com.google.common.collect.Sets;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class CallLogFragment extends ListFragment {
@@ -110,33 +115,8 @@ public class CallLogFragment extends ListFragment {
     private static final int CACHED_PHOTO_URI = 8;
     private static final int DATA_ID = 9;
 
-    public static final String[] PHONE_LOOKUP_PROJECTION = new String[] {
-            PhoneLookup._ID, // 0
-            PhoneLookup.DATA_ID, // 1
-            PhoneLookup.CONTACT_ID, // 2
-            PhoneLookup.DISPLAY_NAME, // 3
-            PhoneLookup.TYPE, // 4
-            PhoneLookup.LABEL, // 5
-            PhoneLookup.NUMBER, // 6
-            PhoneLookup.NORMALIZED_NUMBER, // 7
-            PhoneLookup.PHOTO_ID, // 8
-            PhoneLookup.PHOTO_URI, // 9
-            PhoneLookup.LOOKUP_KEY // 10
-    };
-
-    private static final int PHONE_LOOKUP_ID = 0;
-    private static final int PHONE_LOOKUP_DATA_ID = 1;
-    private static final int PHONE_LOOKUP_CONTACT_ID = 2;
-    private static final int PHONE_LOOKUP_DISPLAY_NAME = 3;
-    private static final int PHONE_LOOKUP_TYPE = 4;
-    private static final int PHONE_LOOKUP_LABEL = 5;
-    private static final int PHONE_LOOKUP_NUMBER = 6;
-    private static final int PHONE_LOOKUP_NORMALIZED_NUMBER = 7;
-    private static final int PHONE_LOOKUP_PHOTO_ID = 8;
-    private static final int PHONE_LOOKUP_PHOTO_URI = 9;
-    private static final int PHONE_LOOKUP_KEY = 10;
-
     private QueryHandler mQueryHandler;
+    private BuildCursorTask mBuildCursorTask;
 
     private static final int QUERY_TOKEN = 42;
 
@@ -151,9 +131,9 @@ public class CallLogFragment extends ListFragment {
     private View mRootView;
 
     // Only in pick phone mode, use this to count selected items number.
-    private ArrayList<String> mContactsCheckedList;
+    private SelectionStore mContactsCheckedList;
 
-    private ArrayList<String> mStrangersCheckedList;
+    private SelectionStore mStrangersCheckedList;
 
     private ContentResolver resolver;
     private final ContentObserver mCallLogObserver = new CustomContentObserver();
@@ -182,8 +162,8 @@ public class CallLogFragment extends ListFragment {
         }
         if (mCallLogListAdapter == null) {
             mCallLogListAdapter = new CallLogItemListAdapter(mContext);
-            mContactsCheckedList = new ArrayList<String>();
-            mStrangersCheckedList = new ArrayList<String>();
+            mContactsCheckedList = new SelectionStore();
+            mStrangersCheckedList = new SelectionStore();
         }
         View view = new View(mContext);
         AbsListView.LayoutParams layoutParams = new AbsListView.LayoutParams(
@@ -216,6 +196,9 @@ public class CallLogFragment extends ListFragment {
     public void onDestroy() {
         resolver.unregisterContentObserver(mCallLogObserver);
         mQueryHandler.removeCallbacksAndMessages(QUERY_TOKEN);
+        if (mBuildCursorTask != null) {
+            mBuildCursorTask.cancel(false);
+        }
 
         if (mCallLogListAdapter.getCursor() != null) {
             mCallLogListAdapter.getCursor().close();
@@ -229,19 +212,19 @@ public class CallLogFragment extends ListFragment {
         mCheckListListener.onHideSoftKeyboard();
         PhoneCallDetails details = (PhoneCallDetails) v.getTag();
         if (details != null) {
-            String key;
+            long key;
             String[] value;
             // 0 is strangers, !0 is local contacts.
             if (details.mDataID == 0) {
                 // Use call Id to set the key
-                key = String.valueOf(details.mCallId);
+                key = details.mCallId;
                 value = new String[] {
                         details.mNumber
                 };
                 // Use to add or remove a strange contact.
                 if (!mCheckListListener.onContainsNumberKey(key)) {
                     mCheckListListener.putNumberValue(key, value);
-                    mStrangersCheckedList.add(key);
+                    mStrangersCheckedList.put(key, null);
                 } else {
                     mCheckListListener.onNumberRemove(key);
                     mStrangersCheckedList.remove(key);
@@ -249,7 +232,7 @@ public class CallLogFragment extends ListFragment {
 
             } else {
                 // Use data Id to set the key.
-                key = String.valueOf(details.mDataID);
+                key = details.mDataID;
                 value = new String[] {
                         details.mName,
                         details.mNumber,
@@ -260,7 +243,7 @@ public class CallLogFragment extends ListFragment {
                 // Use to add or remove a stored contact.
                 if (!mCheckListListener.onContainsKey(key)) {
                     mCheckListListener.putValue(key, value);
-                    mContactsCheckedList.add(key);
+                    mContactsCheckedList.put(key, null);
                 } else {
                     mCheckListListener.onRemove(key);
                     mContactsCheckedList.remove(key);
@@ -307,84 +290,119 @@ public class CallLogFragment extends ListFragment {
             }
             final CallLogFragment fragment = mFragment.get();
 
-            MatrixCursor matrixCursor = new MatrixCursor(CALL_LOG_AND_DATA_PROJECTION);
-            setMatrixCursor(matrixCursor, cursor);
+            if (mBuildCursorTask != null) {
+                mBuildCursorTask.cancel(false);
+            }
+            mBuildCursorTask = new BuildCursorTask(cursor);
+            mBuildCursorTask.execute();
+        }
+    }
+
+    /**
+     * Joins the call log rows with the contacts of their numbers off the main thread.
+     */
+    private class BuildCursorTask extends AsyncTask<Void, Void, MatrixCursor> {
+        private final Cursor mCallLogCursor;
+        private final PhoneNumberContactCache mContactCache;
+        private final ArrayList<Long> mStrangeCallIds = new ArrayList<Long>();
+        private final ArrayList<String> mStrangeNumbers = new ArrayList<String>();
+
+        public BuildCursorTask(Cursor callLogCursor) {
+            mCallLogCursor = callLogCursor;
+            mContactCache = PhoneNumberContactCache.getInstance(mContext);
+        }
+
+        @Override
+        protected MatrixCursor doInBackground(Void... params) {
+            try {
+                return buildMatrixCursor(mCallLogCursor, mContactCache, mStrangeCallIds,
+                        mStrangeNumbers);
+            } finally {
+                if (mCallLogCursor != null) {
+                    mCallLogCursor.close();
+                }
+            }
+        }
 
+        @Override
+        protected void onPostExecute(MatrixCursor matrixCursor) {
+            if (mBuildCursorTask == this) {
+                mBuildCursorTask = null;
+            }
+            if (mContext == null) {
+                matrixCursor.close();
+                return;
+            }
+            // only calls that came or went since the last load change the index.
+            final long[] callIds = new long[mStrangeCallIds.size()];
+            for (int i = 0; i < callIds.length; i++) {
+                callIds[i] = mStrangeCallIds.get(i);
+            }
+            mCheckListListener.getStrangeCallLogIndex().update(callIds,
+                    mStrangeNumbers.toArray(new String[0]));
             mCallLogListAdapter.changeCursor(matrixCursor);
         }
-    }
 
-    private void setMatrixCursor(MatrixCursor matrixCursor, Cursor cursor) {
-        if (cursor == null)
-            return;
-        if (!cursor.moveToFirst())
-            return;
-        Object[] tabRows = new Object[10];
+        @Override
+        protected void onCancelled(MatrixCursor matrixCursor) {
+            if (matrixCursor != null) {
+                matrixCursor.close();
+            }
+            // canceled before it ran.
+            if (mCallLogCursor != null && !mCallLogCursor.isClosed()) {
+                mCallLogCursor.close();
+            }
+        }
+    }
 
+    /**
+     * Copies the call log rows into a cursor of {@link #CALL_LOG_AND_DATA_PROJECTION}, with the
+     * contact details of each number that belongs to a contact.
+     *
+     * @param strangeCallIds receives the ids of the calls from numbers without a contact.
+     * @param strangeNumbers receives the numbers of those calls.
+     */
+    private static MatrixCursor buildMatrixCursor(Cursor cursor,
+            PhoneNumberContactCache contactCache, List<Long> strangeCallIds,
+            List<String> strangeNumbers) {
+        MatrixCursor matrixCursor = new MatrixCursor(CALL_LOG_AND_DATA_PROJECTION);
+        if (cursor == null || !cursor.moveToFirst()) {
+            return matrixCursor;
+        }
+        // resolve all numbers at once.
+        ArrayList<String> numbers = new ArrayList<String>(cursor.getCount());
         do {
+            numbers.add(cursor.getString(NUMBER));
+        } while (cursor.moveToNext());
+        Map<String, PhoneNumberContactCache.Contact> contacts = contactCache.resolve(numbers);
+
+        Object[] tabRows = new Object[10];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
             long dataId = 0;
             long callId = cursor.getLong(ID);
             String number = cursor.getString(NUMBER);
             int type = cursor.getInt(CALL_TYPE);
-            String name = cursor.getString(CACHED_NAME);
-            int numberType = cursor.getInt(CACHED_NUMBER_TYPE);
-            String numberLabel = cursor.getString(CACHED_NUMBER_LABEL);
+            String name = null;
+            int numberType = 0;
+            String numberLabel = null;
             String lookupUri = cursor.getString(CACHED_LOOKUP_URI);
-            int photoId = cursor.getInt(CACHED_PHOTO_ID);
-            Uri photoUri = UriUtils.parseUriOrNull(cursor.getString(CACHED_PHOTO_URI));
-
-            if (TextUtils.isEmpty(number)) {
-                name = null;
-                numberType = 0;
-                numberLabel = null;
-                photoId = 0;
-                photoUri = null;
-                mCheckListListener.appendStrangeCallLogId(String
-                        .valueOf(callId));
+            long photoId = 0;
+            Uri photoUri = null;
+
+            PhoneNumberContactCache.Contact contact =
+                    TextUtils.isEmpty(number) ? null : contacts.get(number);
+            if (contact == null) {
+                strangeCallIds.add(callId);
+                strangeNumbers.add(number);
             } else {
-                Uri uri = PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI.buildUpon()
-                        .appendPath(number).build();
-                Cursor phoneLookupCursor = null;
-                try {
-                    phoneLookupCursor = mContext.getContentResolver().query(
-                            uri, PHONE_LOOKUP_PROJECTION, null, null, null);
-                    if (phoneLookupCursor == null
-                            || !phoneLookupCursor.moveToFirst()) {
-                        name = null;
-                        numberType = 0;
-                        numberLabel = null;
-                        photoId = 0;
-                        photoUri = null;
-                        mCheckListListener.appendStrangeCallLogId(String
-                                .valueOf(callId));
-                    } else {
-                        dataId = phoneLookupCursor
-                                .getLong(PHONE_LOOKUP_DATA_ID);
-                        name = phoneLookupCursor
-                                .getString(PHONE_LOOKUP_DISPLAY_NAME);
-                        numberType = phoneLookupCursor
-                                .getInt(PHONE_LOOKUP_TYPE);
-                        numberLabel = phoneLookupCursor
-                                .getString(PHONE_LOOKUP_LABEL);
-                        photoId = phoneLookupCursor
-                                .getInt(PHONE_LOOKUP_PHOTO_ID);
-                        photoUri = UriUtils.parseUriOrNull(phoneLookupCursor
-                                .getString(PHONE_LOOKUP_PHOTO_URI));
-                        String lookupKey = phoneLookupCursor
-                                .getString(PHONE_LOOKUP_KEY);
-                        long contact_id = phoneLookupCursor
-                                .getLong(PHONE_LOOKUP_CONTACT_ID);
-                        lookupUri = Contacts
-                                .getLookupUri(contact_id, lookupKey).toString();
-                    }
-
-                } catch (Exception e) {
-                    return;
-                } finally {
-                    if (phoneLookupCursor != null) {
-                        phoneLookupCursor.close();
-                    }
-                }
+                dataId = contact.dataId;
+                name = contact.name;
+                numberType = contact.numberType;
+                numberLabel = contact.label;
+                photoId = contact.photoId;
+                photoUri = UriUtils.parseUriOrNull(contact.photoUri);
+                lookupUri = contact.getLookupUri().toString();
             }
             tabRows[0] = callId;
             tabRows[1] = number;
@@ -398,8 +416,8 @@ public class CallLogFragment extends ListFragment {
             tabRows[9] = dataId;
 
             matrixCursor.addRow(tabRows);
-
-        } while (cursor.moveToNext());
+        }
+        return matrixCursor;
     }
 
     @Override
@@ -493,9 +511,9 @@ public class CallLogFragment extends ListFragment {
             // The key is first call id in every group or stand alone view item.
             boolean isChecked;
             if (details.mDataID == 0) {
-                isChecked = mCheckListListener.onContainsNumberKey(String.valueOf(details.mCallId));
+                isChecked = mCheckListListener.onContainsNumberKey(details.mCallId);
             } else {
-                isChecked = mCheckListListener.onContainsKey(String.valueOf(details.mDataID));
+                isChecked = mCheckListListener.onContainsKey(details.mDataID);
             }
             photoView.setChecked(isChecked, false);
 
@@ -544,18 +562,20 @@ public class CallLogFragment extends ListFragment {
             return;
         }
         PhoneCallDetails details = new PhoneCallDetails(null);
-        String key;
+        long key;
         String[] value;
         // selected all contacts
         if (isSelectedAll) {
             int count = cursor.getCount();
+            // stored contacts are collected first and handed over at once.
+            SelectionStore selected = new SelectionStore(count);
             for (int i = 0; i < count; i++) {
                 cursor.moveToPosition(i);
 
                 long dataId = cursor.getLong(DATA_ID);
                 details.mNumber = cursor.getString(NUMBER);
                 if (dataId != 0) {
-                    key = String.valueOf(dataId);
+                    key = dataId;
                     if (!mCheckListListener.onContainsKey(key)) {
                         details.mName = cursor.getString(CACHED_NAME);
                         details.mNumberLabel = cursor.getString(CACHED_NUMBER_LABEL);
@@ -564,43 +584,40 @@ public class CallLogFragment extends ListFragment {
                                 details.mName, details.mNumber, String.valueOf(details.mNumberType),
                                 String.valueOf(details.mNumberLabel),
                                 /* details.contact_id */ };
-                        mCheckListListener.putValue(key, value);
-                        if (!mContactsCheckedList.contains(key)) {
-                            mContactsCheckedList.add(key);
-                        }
+                        selected.put(key, value);
+                        mContactsCheckedList.put(key, null);
                     }
                 } else {
-                    key = String.valueOf(cursor.getInt(ID));
+                    key = cursor.getLong(ID);
                     if (!mCheckListListener.onContainsNumberKey(key)) {
                         value = new String[] {
                                 details.mNumber
                         };
                         mCheckListListener.putNumberValue(key, value);
-                        if (!mStrangersCheckedList.contains(key)) {
-                            mStrangersCheckedList.add(key);
-                        }
+                        mStrangersCheckedList.put(key, null);
                     }
                 }
 
             }
+            mCheckListListener.putValues(selected);
         } else {
             // deselected all contacts
             int count = cursor.getCount();
+            long[] dataIds = new long[count];
+            int dataIdCount = 0;
             for (int i = 0; i < count; i++) {
                 cursor.moveToPosition(i);
                 long dataId = cursor.getLong(DATA_ID);
                 if (dataId != 0) {
-                    key = String.valueOf(dataId);
-                    if (mCheckListListener.onContainsKey(key)) {
-                        mCheckListListener.onRemove(key);
-                    }
+                    dataIds[dataIdCount++] = dataId;
                 } else {
-                    key = String.valueOf(cursor.getLong(ID));
+                    key = cursor.getLong(ID);
                     if (mCheckListListener.onContainsNumberKey(key)) {
                         mCheckListListener.onNumberRemove(key);
                     }
                 }
             }
+            mCheckListListener.onRemoveAll(Arrays.copyOf(dataIds, dataIdCount));
             // clear checked item numbers
             mContactsCheckedList.clear();
             mStrangersCheckedList.clear();
@@ -622,32 +639,24 @@ public class CallLogFragment extends ListFragment {
                 Cursor cursor = mCallLogListAdapter.getCursor();
                 if (cursor == null)
                     return;
-                String key;
+                long key;
                 for (int i = 0; i < cursor.getCount(); i++) {
                     cursor.moveToPosition(i);
 
                     long dataId = cursor.getLong(DATA_ID);
                     if (dataId != 0) {
-                        key = String.valueOf(dataId);
+                        key = dataId;
                         if (mCheckListListener.onContainsKey(key)) {
-                            if (!mContactsCheckedList.contains(key)) {
-                                mContactsCheckedList.add(key);
-                            }
+                            mContactsCheckedList.put(key, null);
                         } else {
-                            if (mContactsCheckedList.contains(key)) {
-                                mContactsCheckedList.remove(key);
-                            }
+                            mContactsCheckedList.remove(key);
                         }
                     } else {
-                        key = String.valueOf(cursor.getLong(ID));
+                        key = cursor.getLong(ID);
                         if (mCheckListListener.onContainsNumberKey(key)) {
-                            if (!mStrangersCheckedList.contains(key)) {
-                                mStrangersCheckedList.add(key);
-                            }
+                            mStrangersCheckedList.put(key, null);
                         } else {
-                            if (mStrangersCheckedList.contains(key)) {
-                                mStrangersCheckedList.remove(key);
-                            }
+                            mStrangersCheckedList.remove(key);
                         }
                     }
                 }
@@ -33,14 +33,17 @@ import android.accounts.Account;
 import android.app.Activity;
 import android.app.ListFragment;
 import android.content.AsyncQueryHandler;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Typeface;
 import android.net.Uri;
 import android.net.Uri.Builder;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Contactables;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -80,10 +83,11 @@ import com.android.contacts.common.util.UriUtils;
 import com.android.contacts.common.widget.CheckableImageView;
 import com.android.contacts.list.ContactsPickMode;
 import com.android.contacts.list.OnCheckListActionListener;
+import com.android.contacts.list.SelectionStore;
+import com.android.contacts.util.SimContactsMirror;
 import com.android.contacts.R;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -178,6 +182,18 @@ public class ContactsFragment extends ListFragment {
     private int subscription;
 
     private QueryHandler mQueryHandler;
+    private SimQueryTask mSimQueryTask;
+    private BulkSelectionTask mSelectAllTask;
+    // Cookie of the latest list query, results of older queries are dropped.
+    private int mQueryGeneration;
+
+    // The query behind the list, run again by select all to walk the rows off the main thread.
+    private Uri mQueryUri;
+    private String[] mQueryProjection;
+    private String mQuerySelection;
+    private String[] mQuerySelectionArgs;
+    private String mQuerySortOrder;
+    private String mSimQueryFilter;
     private Bundle mChoiceSet;
     private TextView mSelectAllLabel;
 
@@ -207,7 +223,7 @@ public class ContactsFragment extends ListFragment {
     private View mHeaderView;
 
     // Only in pick phone mode, use this to count selected items number.
-    private ArrayList<String> checkedList;
+    private SelectionStore checkedList;
 
     private static final String[] COLUMN_NAMES = new String[] {
             "name",
@@ -251,7 +267,7 @@ public class ContactsFragment extends ListFragment {
         if (mContactListAdapter == null) {
             mContactListAdapter = new ContactItemListAdapter(mContext);
             if (mPickMode.isPickPhone()) {
-                checkedList = new ArrayList<String>();
+                checkedList = new SelectionStore();
             }
         }
         if (mCheckListListener == null)
@@ -299,13 +315,13 @@ public class ContactsFragment extends ListFragment {
         mCheckListListener.onHideSoftKeyboard();
 
         ContactItemCache cache = (ContactItemCache) v.getTag();
-        String key = String.valueOf(cache.id);
+        long key = cache.id;
 
         if (!mCheckListListener.onContainsKey(key)) {
             String[] value = null;
             if (mPickMode.isPickContact()) {
                 value = new String[] {
-                        cache.lookupKey, key,
+                        cache.lookupKey, String.valueOf(key),
                         String.valueOf(cache.nameRawContactId),
                         cache.photoUri == null ?
                         null : String.valueOf(cache.photoUri),
@@ -317,9 +333,7 @@ public class ContactsFragment extends ListFragment {
                         cache.type, cache.label,
                         cache.contact_id
                 };
-                if (!checkedList.contains(key)) {
-                    checkedList.add(key);
-                }
+                checkedList.put(key, null);
             } else if (mPickMode.isPickEmail()) {
                 value = new String[] {
                         cache.name,
@@ -363,6 +377,12 @@ public class ContactsFragment extends ListFragment {
     @Override
     public void onDestroy() {
         mQueryHandler.removeCallbacksAndMessages(QUERY_TOKEN);
+        if (mSimQueryTask != null) {
+            mSimQueryTask.cancel(false);
+        }
+        if (mSelectAllTask != null) {
+            mSelectAllTask.cancel(false);
+        }
 
         if (mContactListAdapter.getCursor() != null) {
             mContactListAdapter.getCursor().close();
@@ -409,14 +429,6 @@ public class ContactsFragment extends ListFragment {
                         .appendQueryParameter(ContactsContract.REMOVE_DUPLICATE_ENTRIES, "true")
                         .build();
                 break;
-            case ContactsPickMode.MODE_DEFAULT_SIM:
-            case ContactsPickMode.MODE_SEARCH_SIM: {
-                mIntent = mPickMode.getIntent();
-                subscription = mIntent.getIntExtra(SimContactsConstants.SLOT_KEY,
-                        SimContactsConstants.SLOT1);
-                uri = querySimContacts(subscription);
-            }
-                break;
             case ContactsPickMode.MODE_DEFAULT_CONTACT_INFO:
             case ContactsPickMode.MODE_SEARCH_CONTACT_INFO:
                 uri = Data.CONTENT_URI;
@@ -544,7 +556,7 @@ public class ContactsFragment extends ListFragment {
                 return null;
             case ContactsPickMode.MODE_DEFAULT_CONTACT_INFO:
             case ContactsPickMode.MODE_SEARCH_CONTACT_INFO:
-                return createEmailOrNumberSelection(query);
+                return createEmailOrNumberSelection();
             default:
                 return null;
         }
@@ -593,6 +605,10 @@ public class ContactsFragment extends ListFragment {
     }
 
     public void startQuery() {
+        if (mPickMode.isPickSim()) {
+            startSimQuery(null);
+            return;
+        }
         Uri uri = getUriToQuery();
         if(uri == null)
             return;
@@ -622,8 +638,7 @@ public class ContactsFragment extends ListFragment {
         String[] projection = getProjectionForQuery();
         String selection = getSelectionForQuery();
         String[] selectionArgs = getSelectionArgsForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, selection, selectionArgs,
-                getSortOrder(projection));
+        startListQuery(uri, projection, selection, selectionArgs, getSortOrder(projection));
     }
 
     public void doFilter(String s) {
@@ -631,21 +646,42 @@ public class ContactsFragment extends ListFragment {
         if (TextUtils.isEmpty(s)) {
             // mPickMode.exitSearchMode();
             // startQuery();
+            mQueryHandler.cancelOperation(QUERY_TOKEN);
+            mQueryGeneration++;
             mContactListAdapter.changeCursor(null);
             return;
         }
+        if (mPickMode.isPickSim()) {
+            startSimQuery(query);
+            return;
+        }
 
         Uri uri;
         if (mPickMode.isPickContactInfo()) {
-            uri = Data.CONTENT_URI;
+            // the provider matches the filter, so no contact ids are looked up here.
+            uri = Uri.withAppendedPath(Contactables.CONTENT_FILTER_URI, Uri.encode(query));
         } else {
             uri = Uri.withAppendedPath(getFilterUri(), Uri.encode(query));
         }
         String[] projection = getProjectionForQuery();
         String selection = getSelectionForQuery();
         String[] selectionArgs = getSelectionArgsForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, selection, selectionArgs,
-                getSortOrder(projection));
+        startListQuery(uri, projection, selection, selectionArgs, getSortOrder(projection));
+    }
+
+    private void startListQuery(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        mQueryUri = uri;
+        mQueryProjection = projection;
+        mQuerySelection = selection;
+        mQuerySelectionArgs = selectionArgs;
+        mQuerySortOrder = sortOrder;
+        // drop the query of the previous keystroke if it has not started yet, and its result
+        // if it has.
+        mQueryHandler.cancelOperation(QUERY_TOKEN);
+        mQueryGeneration++;
+        mQueryHandler.startQuery(QUERY_TOKEN, mQueryGeneration, uri, projection, selection,
+                selectionArgs, sortOrder);
     }
 
     private class QueryHandler extends AsyncQueryHandler {
@@ -665,10 +701,72 @@ public class ContactsFragment extends ListFragment {
                 mFragment = new WeakReference<ContactsFragment>(ContactsFragment.this);
             }
             final ContactsFragment fragment = mFragment.get();
-            if (mHeaderView != null && mPickMode.isSearchMode()) {
-                getListView().removeHeaderView(mHeaderView);
+            if (!Integer.valueOf(mQueryGeneration).equals(cookie)) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+            onCursorLoaded(cursor);
+        }
+    }
+
+    private void onCursorLoaded(Cursor cursor) {
+        if (mHeaderView != null && mPickMode.isSearchMode()) {
+            getListView().removeHeaderView(mHeaderView);
+        }
+        mContactListAdapter.changeCursor(cursor);
+    }
+
+    /**
+     * Serves SIM contacts from {@link SimContactsMirror}, which only reads the card when it is
+     * not in memory yet.
+     */
+    private void startSimQuery(String filter) {
+        mIntent = mPickMode.getIntent();
+        subscription = mIntent.getIntExtra(SimContactsConstants.SLOT_KEY,
+                SimContactsConstants.SLOT1);
+        if (mSimQueryTask != null) {
+            mSimQueryTask.cancel(false);
+        }
+        mSimQueryFilter = filter;
+        mSimQueryTask = new SimQueryTask(subscription, filter);
+        mSimQueryTask.execute();
+    }
+
+    private class SimQueryTask extends AsyncTask<Void, Void, Cursor> {
+        private final SimContactsMirror mMirror;
+        private final int mSubscription;
+        private final String mFilter;
+
+        public SimQueryTask(int subscription, String filter) {
+            mMirror = SimContactsMirror.getInstance(mContext);
+            mSubscription = subscription;
+            mFilter = filter;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            return mMirror.query(mSubscription, mFilter);
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            if (mSimQueryTask == this) {
+                mSimQueryTask = null;
+            }
+            if (mContext == null) {
+                cursor.close();
+                return;
+            }
+            onCursorLoaded(cursor);
+        }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
             }
-            mContactListAdapter.changeCursor(cursor);
         }
     }
 
@@ -877,7 +975,7 @@ public class ContactsFragment extends ListFragment {
             } else {
                 view.getLayoutParams().height = mContext.getResources()
                         .getDimensionPixelSize(R.dimen.pick_contact_same_item_height);
-                if (mCheckListListener.onContainsKey(String.valueOf(cache.id))) {
+                if (mCheckListListener.onContainsKey(cache.id)) {
                     photoView.setVisibility(View.VISIBLE);
                 } else {
                     photoView.setVisibility(View.INVISIBLE);
@@ -900,7 +998,7 @@ public class ContactsFragment extends ListFragment {
                     "".equals(cache.name) ? null : cache.name, String.valueOf(cache.id), true);
             mContactPhotoManager.loadThumbnail(photoView, 0, account, false, true, request);
 
-            photoView.setChecked(mCheckListListener.onContainsKey(String.valueOf(cache.id)),
+            photoView.setChecked(mCheckListListener.onContainsKey(cache.id),
                     false);
             if (photoView.isChecked()) {
                 view.setActivated(true);
@@ -958,7 +1056,7 @@ public class ContactsFragment extends ListFragment {
                         request);
             }
 
-            photoView.setChecked(mCheckListListener.onContainsKey(String.valueOf(cache.id)), false);
+            photoView.setChecked(mCheckListListener.onContainsKey(cache.id), false);
 
             if ((mPickMode.isPickContact() || mPickMode.isPickContactVcard())) {
                 if (!photoView.isChecked()) {
@@ -1127,29 +1225,14 @@ public class ContactsFragment extends ListFragment {
             Log.d(TAG, msg);
     }
 
-    private Uri querySimContacts(int subscription) {
-        Uri uri = null;
-
-        if (subscription != SimContactsConstants.SLOT1
-                && subscription != SimContactsConstants.SLOT2) {
-            return uri;
-        }
-        int subId = MoreContactUtils.getActiveSubId(mContext, subscription);
-        if (subId > 0) {
-            uri = Uri.parse(SimContactsConstants.SIM_SUB_URI + subId);
-        }
-
-        return uri;
-    }
-
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedState) {
         mRootView = inflater.inflate(R.layout.multi_pick_contacts_fragment, container, false);
         return mRootView;
     }
 
-    // support filter email and phone types together
-    private String createEmailOrNumberSelection(String s) {
+    // support filter email and phone types together, the search filter is part of the uri
+    private String createEmailOrNumberSelection() {
         StringBuilder selection = new StringBuilder();
         selection.append("(");
         selection
@@ -1159,150 +1242,159 @@ public class ContactsFragment extends ListFragment {
                 .append(Data.MIMETYPE + "='"
                         + Phone.CONTENT_ITEM_TYPE + "'");
         selection.append(")");
-        if (s == null || !mPickMode.isSearchMode()) {
-            return selection.toString();
-        }
-        selection.append(" AND ");
-        selection.append("(");
-        selection.append(Data.CONTACT_ID);
-        selection.append(" IN ");
-        queryContactsIDByFilter(selection, s);
-        selection.append(")");
         return selection.toString();
     }
 
-    private void queryContactsIDByFilter(StringBuilder sb, String query) {
-        Uri uri = Uri.withAppendedPath(Contacts.CONTENT_FILTER_URI, query);
-        Cursor cursor = getActivity().getContentResolver().query(uri, new String[]{Contacts._ID},
-                null, null, null);
-        sb.append("( ");
-        if (cursor != null && cursor.getCount() != 0) {
-            cursor.moveToPosition(-1);
-            while (cursor.moveToNext()) {
-                int contact_id = cursor.getInt(0);
-                sb.append(contact_id);
-                sb.append(",");
-            }
-            cursor.close();
-            sb.deleteCharAt(sb.length() - 1);
-        }
-        sb.append(")");
-    }
-
     /**
      * @param isSelectedAll isSelectedAll is true, selected all contacts
      * isSelectedAll is False, deselected all contacts
      */
     public void setSelectedAll(boolean isSelectedAll) {
-        Cursor cursor = mContactListAdapter.getCursor();
-        if (cursor == null) {
+        if (mContactListAdapter.getCursor() == null) {
             return;
         }
-        ContactItemCache cache = new ContactItemCache();
-        String key;
-        // selected all contacts
-        if (isSelectedAll) {
-            int count = cursor.getCount();
-            for (int i = 0; i < count; i++) {
-                cursor.moveToPosition(i);
-                // only pick sim mode, id index is SIM_COLUMN_ID
-                // other mode, id index is 0
-                if (mPickMode.isPickSim()) {
-                    key = String.valueOf(cursor.getLong(SIM_COLUMN_ID));
-                } else {
-                    key = String.valueOf(cursor.getLong(0));
-                }
-                if (!mCheckListListener.onContainsKey(key)) {
-                    String[] value = null;
-                    if (mPickMode.isPickContact()) {
-                        cache.lookupKey = cursor
-                                .getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX);
-                        cache.name = cursor
-                                .getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX);
-                        cache.nameRawContactId = cursor
-                                .getLong(SUMMARY_CONTACT_COLUMN_RAW_CONTACT_ID);
-                        String photoUri = cursor.getString(SUMMARY_CONTACT_COLUMN_PHOTO_URI);
-                        cache.photoUri = UriUtils.parseUriOrNull(photoUri);
-                        value = new String[] {
-                                cache.lookupKey,
-                                key, String.valueOf(cache.nameRawContactId),
-                                photoUri, cache.name
-                        };
-                    } else if (mPickMode.isPickPhone()) {
-                        cache.name = cursor
-                                .getString(PHONE_COLUMN_DISPLAY_NAME);
-                        cache.number = cursor.getString(PHONE_COLUMN_NUMBER);
-                        cache.label = cursor.getString(PHONE_COLUMN_LABEL);
-                        cache.type = String.valueOf(cursor
-                                .getInt(PHONE_COLUMN_TYPE));
-                        value = new String[] {
-                                cache.name, cache.number,
-                                cache.type, cache.label, cache.contact_id
-                        };
-                        if (!checkedList.contains(key)) {
-                            checkedList.add(key);
-                        }
-                    } else if (mPickMode.isPickEmail()) {
-                        cache.name = cursor
-                                .getString(EMAIL_COLUMN_DISPLAY_NAME);
-                        cache.email = cursor.getString(EMAIL_COLUMN_ADDRESS);
-                        value = new String[] {
-                                cache.name, cache.email
-                        };
-                    } else if (mPickMode.isPickSim()) {
-                        cache.name = cursor.getString(SIM_COLUMN_DISPLAY_NAME);
-                        cache.number = cursor.getString(SIM_COLUMN_NUMBER);
-                        cache.email = cursor.getString(SIM_COLUMN_EMAILS);
-                        cache.anrs = cursor.getString(SIM_COLUMN_ANRS);
-                        value = new String[] {
-                                cache.name, cache.number,
-                                cache.email, cache.anrs
-                        };
-                    } else if (mPickMode.isPickContactInfo()) {
-                        cache.name = cursor.getString(DATA_DISPLAY_NAME);
-                        cache.type = cursor.getString(DATA_MIMETYPE_COLUMN);
-                        if (cache.type.equals(Phone.CONTENT_ITEM_TYPE)) {
-                            cache.number = cursor.getString(DATA_DATA1_COLUMN);
-                        } else if (cache.type.equals(Email.CONTENT_ITEM_TYPE)) {
-                            cache.email = cursor.getString(DATA_DATA1_COLUMN);
-                        }
-                        cache.label = cursor.getString(DATA_DATA3_COLUMN);
-                        cache.contact_id = cursor.getString(DATA_CONTACT_ID);
-                        value = new String[] {
-                                cache.contact_id, cache.name,
-                                cache.number, cache.email
-                        };
-                    } else if (mPickMode.isPickContactVcard()) {
-                        cache.name = cursor.getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX);
-                        cache.lookupKey = cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX);
-                        value = new String[] {
-                                cache.name, cache.lookupKey
-                        };
-                    }
-                    mCheckListListener.putValue(key, value);
-                }
-            }
-        } else {
-            // deselected all contacts
+        if (mSelectAllTask != null) {
+            mSelectAllTask.cancel(false);
+        }
+        if (!isSelectedAll) {
             if (!mPickMode.isPickPhone()) {
+                // deselected all contacts
                 mCheckListListener.onClear();
-            } else {
-                int count = cursor.getCount();
-                for (int i = 0; i < count; i++) {
-                    cursor.moveToPosition(i);
-                    key = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                    if (mCheckListListener.onContainsKey(key)) {
-                        mCheckListListener.onRemove(key);
-                    }
+                mCheckListListener.onUpdateActionBar();
+                mContactListAdapter.notifyDataSetChanged();
+                return;
+            }
+            // clear checked item numbers
+            checkedList.clear();
+        }
+        mSelectAllTask = new SelectAllTask(isSelectedAll);
+        mSelectAllTask.execute();
+    }
+
+    /**
+     * Selects or deselects all rows of the list, reading them with the query behind the list.
+     */
+    private class SelectAllTask extends BulkSelectionTask {
+        private final ContentResolver mResolver;
+        private final SimContactsMirror mMirror;
+        private final Uri mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+        private final int mSubscription;
+        private final String mSimFilter;
+
+        public SelectAllTask(boolean select) {
+            super(select);
+            mResolver = mContext.getContentResolver();
+            mMirror = SimContactsMirror.getInstance(mContext);
+            mUri = mQueryUri;
+            mProjection = mQueryProjection;
+            mSelection = mQuerySelection;
+            mSelectionArgs = mQuerySelectionArgs;
+            mSortOrder = mQuerySortOrder;
+            mSubscription = subscription;
+            mSimFilter = mSimQueryFilter;
+        }
+
+        @Override
+        protected Cursor openCursor() {
+            if (mPickMode.isPickSim()) {
+                return mMirror.query(mSubscription, mSimFilter);
+            }
+            if (mUri == null) {
+                return null;
+            }
+            return mResolver.query(mUri, mProjection, mSelection, mSelectionArgs, mSortOrder);
+        }
+
+        @Override
+        protected long readKey(Cursor cursor) {
+            // only pick sim mode, id index is SIM_COLUMN_ID
+            // other mode, id index is 0
+            if (mPickMode.isPickSim()) {
+                return cursor.getLong(SIM_COLUMN_ID);
+            }
+            return cursor.getLong(0);
+        }
+
+        @Override
+        protected String[] readValue(Cursor cursor, long key) {
+            if (mPickMode.isPickContact()) {
+                return new String[] {
+                        cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX),
+                        String.valueOf(key),
+                        String.valueOf(cursor.getLong(SUMMARY_CONTACT_COLUMN_RAW_CONTACT_ID)),
+                        cursor.getString(SUMMARY_CONTACT_COLUMN_PHOTO_URI),
+                        cursor.getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX)
+                };
+            } else if (mPickMode.isPickPhone()) {
+                return new String[] {
+                        cursor.getString(PHONE_COLUMN_DISPLAY_NAME),
+                        cursor.getString(PHONE_COLUMN_NUMBER),
+                        String.valueOf(cursor.getInt(PHONE_COLUMN_TYPE)),
+                        cursor.getString(PHONE_COLUMN_LABEL),
+                        null
+                };
+            } else if (mPickMode.isPickEmail()) {
+                return new String[] {
+                        cursor.getString(EMAIL_COLUMN_DISPLAY_NAME),
+                        cursor.getString(EMAIL_COLUMN_ADDRESS)
+                };
+            } else if (mPickMode.isPickSim()) {
+                return new String[] {
+                        cursor.getString(SIM_COLUMN_DISPLAY_NAME),
+                        cursor.getString(SIM_COLUMN_NUMBER),
+                        cursor.getString(SIM_COLUMN_EMAILS),
+                        cursor.getString(SIM_COLUMN_ANRS)
+                };
+            } else if (mPickMode.isPickContactInfo()) {
+                String number = null;
+                String email = null;
+                String mimeType = cursor.getString(DATA_MIMETYPE_COLUMN);
+                if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    number = cursor.getString(DATA_DATA1_COLUMN);
+                } else if (Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    email = cursor.getString(DATA_DATA1_COLUMN);
+                }
+                return new String[] {
+                        cursor.getString(DATA_CONTACT_ID),
+                        cursor.getString(DATA_DISPLAY_NAME),
+                        number, email
+                };
+            } else if (mPickMode.isPickContactVcard()) {
+                return new String[] {
+                        cursor.getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX),
+                        cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX)
+                };
+            }
+            return null;
+        }
+
+        @Override
+        protected void onChunk(SelectionStore chunk) {
+            if (isSelect()) {
+                mCheckListListener.putValues(chunk);
+                if (mPickMode.isPickPhone()) {
+                    checkedList.putAll(chunk);
                 }
-                // clear checked item numbers
-                checkedList.clear();
+            } else {
+                mCheckListListener.onRemoveAll(chunk.getIds());
             }
+            // update actionbar selected button to display selected item numbers
+            mCheckListListener.onUpdateActionBar();
         }
 
-        // update actionbar selected button to display selected item numbers
-        mCheckListListener.onUpdateActionBar();
-        mContactListAdapter.notifyDataSetChanged();
+        @Override
+        protected void onFinished() {
+            if (mSelectAllTask == this) {
+                mSelectAllTask = null;
+            }
+            if (mContext != null) {
+                mContactListAdapter.notifyDataSetChanged();
+            }
+        }
     }
 
     @Override
@@ -1317,22 +1409,18 @@ public class ContactsFragment extends ListFragment {
                     return;
                 for (int i = 0; i < mCursor.getCount(); i++) {
                     mCursor.moveToPosition(i);
-                    String key;
+                    long key;
                     if (mPickMode.isPickSim()) {
-                        key = String.valueOf(mCursor.getLong(SIM_COLUMN_ID));
+                        key = mCursor.getLong(SIM_COLUMN_ID);
                     } else {
-                        key = String.valueOf(mCursor.getLong(0));
+                        key = mCursor.getLong(0);
                     }
                     if (mCheckListListener.onContainsKey(key)) {
                         if (mPickMode.isPickPhone()) {
-                            if (!checkedList.contains(key)) {
-                                checkedList.add(key);
-                            }
+                            checkedList.put(key, null);
                         }
                     } else {
-                        if (checkedList.contains(key)) {
-                            checkedList.remove(key);
-                        }
+                        checkedList.remove(key);
                     }
                 }
                 mCheckListListener.onUpdateActionBar();
@@ -537,7 +537,7 @@ public class DelCallLogAdapter extends GroupingListAdapter implements View.OnCli
 
         // The key is first call id in every group or stand alone view item.
         photoView.setChecked(
-                mCheckListListener.onContainsKey(String.valueOf(details.mCallId)), false);
+                mCheckListListener.onContainsKey(details.mCallId), false);
 
         // Activate photo when photo is check.
         if (photoView.isChecked()) {
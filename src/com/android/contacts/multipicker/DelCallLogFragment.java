@@ -44,6 +44,9 @@ import android.widget.AbsListView;
 import com.android.contacts.R;
 import com.android.contacts.activities.MultiPickContactsActivity;
 import com.android.contacts.list.OnCheckListActionListener;
+import com.android.contacts.list.SelectionStore;
+
+import java.util.Arrays;
 
 public class DelCallLogFragment extends ListFragment
         implements CallLogQueryHandler.Listener, DelCallLogAdapter.CallFetcher {
@@ -131,7 +134,7 @@ public class DelCallLogFragment extends ListFragment
         PhoneCallDetails details = (PhoneCallDetails) v.getTag();
 
         if (null != details) {
-            String key = String.valueOf(details.mCallId);
+            long key = details.mCallId;
             if (!mCheckListListener.onContainsKey(key)) {
                 mCheckListListener.putValue(key, details.mCallIds);
             } else {
@@ -159,10 +162,12 @@ public class DelCallLogFragment extends ListFragment
             return;
         }
 
-        String key;
+        long key;
         String[] value;
 
         if (isSelectedAll) {
+            // collect the new rows first and hand them over at once.
+            SelectionStore selected = new SelectionStore(count);
             for (int position = 0; position < count; position++) {
                 Cursor cursor = (Cursor) mDelCallLogAdapter.getItem(position);
                 if (cursor == null) {
@@ -172,22 +177,25 @@ public class DelCallLogFragment extends ListFragment
                         ? mDelCallLogAdapter.getGroupSize(position)
                         : mDelCallLogAdapter.STAND_ALONE_ITEM_SIZE;
 
-                value = mDelCallLogAdapter.getCallIds(cursor, groupSize);
-                key = String.valueOf(cursor.getInt(CallLogQueryHandler.ID));
+                key = cursor.getInt(CallLogQueryHandler.ID);
 
                 if (!mCheckListListener.onContainsKey(key)) {
-                    mCheckListListener.putValue(key, value);
+                    value = mDelCallLogAdapter.getCallIds(cursor, groupSize);
+                    selected.put(key, value);
                 }
             }
+            mCheckListListener.putValues(selected);
         } else {
+            long[] keys = new long[count];
+            int keyCount = 0;
             for (int position = 0; position < count; position++) {
                 Cursor cursor = (Cursor) mDelCallLogAdapter.getItem(position);
                 if (cursor == null) {
                     continue;
                 }
-                key = String.valueOf(cursor.getInt(CallLogQueryHandler.ID));
-                mCheckListListener.onRemove(key);
+                keys[keyCount++] = cursor.getInt(CallLogQueryHandler.ID);
             }
+            mCheckListListener.onRemoveAll(Arrays.copyOf(keys, keyCount));
         }
         mCheckListListener.onUpdateActionBar();
         mDelCallLogAdapter.notifyDataSetChanged();
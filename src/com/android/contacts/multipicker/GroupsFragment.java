@@ -36,10 +36,13 @@ import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -51,6 +54,7 @@ import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -79,14 +83,14 @@ import com.android.contacts.common.model.account.PhoneAccountType;
 import com.android.contacts.common.util.UriUtils;
 import com.android.contacts.common.widget.CheckableImageView;
 import com.android.contacts.list.OnCheckListActionListener;
+import com.android.contacts.list.SelectionStore;
+import com.android.contacts.util.LongList;
 import com.google.common.base.Objects;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -100,15 +104,44 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
 
     private static final int QUERY_TOKEN = 44;
 
+    private static final String[] MEMBERS_PROJECTION = new String[] {
+            Data._ID,
+            Data.RAW_CONTACT_ID,
+            Data.MIMETYPE,
+            GroupMembership.GROUP_ROW_ID
+    };
+
     private Cursor allContactsInGroups;
+    private BulkSelectionTask mSelectAllTask;
 
     private ExpandableListView mList = null;
     private GroupsAdapter mAdapter = null;
     private Cursor mGroupsCursor = null;
 
-    private Map<Long, String[]> mAllContactsCurosrMap;
+    // Phone data ids of each visible group, filled in the background by LoadMembersTask.
+    private LongSparseArray<long[]> mAllContactsCurosrMap;
+    private LoadMembersTask mLoadMembersTask;
+    private final Handler mHandler = new Handler();
 
-    private ArrayList<String> checkedList;
+    // Contacts notify changes in bursts, reload the members once the burst is over.
+    private static final long MEMBERS_RELOAD_DELAY_MS = 500;
+
+    private final Runnable mReloadMembers = new Runnable() {
+        @Override
+        public void run() {
+            fillAllContactsCursorMap();
+        }
+    };
+
+    private final ContentObserver mContactsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mHandler.removeCallbacks(mReloadMembers);
+            mHandler.postDelayed(mReloadMembers, MEMBERS_RELOAD_DELAY_MS);
+        }
+    };
+
+    private SelectionStore checkedList;
 
     private static final String[] PHONES_PROJECTION = new String[] {
             Phone._ID, // 0
@@ -193,7 +226,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         }
         if (mAdapter == null) {
             if (mAllContactsCurosrMap == null) {
-                mAllContactsCurosrMap = new HashMap<Long, String[]>();
+                mAllContactsCurosrMap = new LongSparseArray<long[]>();
             }
             mAdapter = new GroupsAdapter(mContext, null, R.layout.pick_group_list_item_view,
                     new String[] {}, new int[] {}, R.layout.pick_child_list_item_view,
@@ -206,7 +239,9 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
             mList.addHeaderView(view, null, false);
             setListAdapter(mAdapter);
             getGroupsCursor(mAdapter.getQueryHandler());
-            checkedList = new ArrayList<String>();
+            checkedList = new SelectionStore();
+            mContext.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI,
+                    true, mContactsObserver);
         }
     }
 
@@ -215,7 +250,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         super.onAttach(activity);
         mContext = activity;
 
-        allContactsInGroups = getAllContactsCursorInGroups();
+        allContactsInGroups = getAllContactsCursorInGroups(mContext.getContentResolver());
     }
 
     @Override
@@ -233,6 +268,14 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
     @Override
     public void onDestroy() {
         mAdapter.getQueryHandler().removeCallbacksAndMessages(QUERY_TOKEN);
+        if (mSelectAllTask != null) {
+            mSelectAllTask.cancel(false);
+        }
+        if (mLoadMembersTask != null) {
+            mLoadMembersTask.cancel(false);
+        }
+        mHandler.removeCallbacks(mReloadMembers);
+        mContext.getContentResolver().unregisterContentObserver(mContactsObserver);
 
         if (mAdapter.getCursor() != null) {
             mAdapter.getCursor().close();
@@ -269,10 +312,10 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
             return false;
         }
 
-        String[] dataIds = new String[cursor.getCount()];
+        long[] dataIds = new long[cursor.getCount()];
         for (int i = 0; i < cursor.getCount(); i++) {
             cursor.moveToPosition(i);
-            dataIds[i] = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
+            dataIds[i] = cursor.getLong(PHONE_COLUMN_ID);
         }
         if (!Arrays.equals(mAllContactsCurosrMap.get(groupCache.id), dataIds)) {
             mAllContactsCurosrMap.put(groupCache.id, dataIds);
@@ -285,7 +328,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         try {
             // iterate over contacts information for current group
             do {
-                String key = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
+                long key = cursor.getLong(PHONE_COLUMN_ID);
                 ContactItemCache cache = new ContactItemCache();
                 cache.id = cursor.getLong(PHONE_COLUMN_ID);
                 cache.name = cursor.getString(PHONE_COLUMN_DISPLAY_NAME);
@@ -302,16 +345,12 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
                                 cache.contact_id
                         };
                         mCheckListListener.putValue(key, value);
-                        if (!checkedList.contains(key)) {
-                            checkedList.add(key);
-                        }
+                        checkedList.put(key, null);
                     }
                 } else {
                     if (mCheckListListener.onContainsKey(key)) {
                         mCheckListListener.onRemove(key);
-                        if (checkedList.contains(key)) {
-                            checkedList.remove(key);
-                        }
+                        checkedList.remove(key);
                     }
                 }
             } while (cursor.moveToNext());
@@ -343,7 +382,10 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         // iterate list
         while (it.hasNext()) {
             long groupId = (long) it.next();
-            String[] dataIds = mAllContactsCurosrMap.get(groupId);
+            long[] dataIds = mAllContactsCurosrMap.get(groupId);
+            if (dataIds == null) {
+                continue;
+            }
             for (int i = 0; i < dataIds.length; i++) {
                 // group contacts not in checked items
                 if (!checkedList.contains(dataIds[i])) {
@@ -359,14 +401,20 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
      * add checked group item for groups
      */
     private void addGroupsChecked() {
-        for (int groupPosition = 0; groupPosition < mAllContactsCurosrMap.size(); groupPosition++) {
+        if (mGroupsCursor == null || mGroupsCursor.isClosed()) {
+            return;
+        }
+        for (int groupPosition = 0; groupPosition < mGroupsCursor.getCount(); groupPosition++) {
             mGroupsCursor.moveToPosition(groupPosition);
             long groupCacheId = mGroupsCursor.getLong(GROUP_ID);
             // group item is checked status
             if (!mCheckListListener.onContainsGroupId(groupCacheId)) {
                 boolean isGroupChecked = true;
-                // get contacts dataId for group
-                String[] dataIds = mAllContactsCurosrMap.get(groupCacheId);
+                // get contacts dataId for group, not known until LoadMembersTask is done
+                long[] dataIds = mAllContactsCurosrMap.get(groupCacheId);
+                if (dataIds == null) {
+                    continue;
+                }
                 // determine all selected status of the group contacts
                 for (int i = 0; i < dataIds.length; i++) {
                     if (!checkedList.contains(dataIds[i])) {
@@ -387,7 +435,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
     public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
             int childPosition, long id) {
         ContactItemCache cache = (ContactItemCache) v.getTag();
-        String key = String.valueOf(cache.id);
+        long key = cache.id;
 
         // is contact item checked
         if (!mCheckListListener.onContainsKey(key)) {
@@ -396,9 +444,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
                     cache.name, cache.number, cache.type, cache.label,
                     cache.contact_id
             };
-            if (!checkedList.contains(key)) {
-                checkedList.add(key);
-            }
+            checkedList.put(key, null);
             // add contact item for contacts list, contact item setting selected
             // status
             mCheckListListener.putValue(key, value);
@@ -406,9 +452,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         } else {
             // remove checked contact item for contacts list
             mCheckListListener.onRemove(key);
-            if (checkedList.contains(key)) {
-                checkedList.remove(key);
-            }
+            checkedList.remove(key);
             // remove checked group item for groups list
             removeGroupsChecked();
         }
@@ -471,12 +515,12 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         return allContactsInGroups;
     }
 
-    private Cursor getAllContactsCursorInGroups() {
+    private Cursor getAllContactsCursorInGroups(ContentResolver resolver) {
         StringBuilder selection = new StringBuilder();
         selection.append(Data.RAW_CONTACT_ID + " IN (" + " SELECT DISTINCT " + Data.RAW_CONTACT_ID
                 + " FROM view_data WHERE " + Data.MIMETYPE + "=?)");
 
-        Cursor cursor = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONES_PROJECTION,
+        Cursor cursor = resolver.query(Phone.CONTENT_URI, PHONES_PROJECTION,
                 selection.toString(), createSelectionArgs(), null);
 
         return cursor;
@@ -649,10 +693,9 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
             tv.setText(name);
             TextView cv = (TextView) view.findViewById(R.id.number_count);
             groupCache.id = cursor.getLong(GROUP_ID);
-            if (groupCache.phone_numbers == 0) {
-                String[] dataIds = mAllContactsCurosrMap.get(groupCache.id);
-                if (dataIds != null)
-                    groupCache.phone_numbers = dataIds.length;
+            long[] dataIds = mAllContactsCurosrMap.get(groupCache.id);
+            if (dataIds != null) {
+                groupCache.phone_numbers = dataIds.length;
             }
             String summary_count = context.getResources().getString(R.string.summary_count_numbers,
                     String.valueOf(groupCache.phone_numbers));
@@ -728,7 +771,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
                 mContactPhotoManager.loadDirectoryPhoto(photoView, photoUri, account, false, true,
                         request);
             }
-            photoView.setChecked(mCheckListListener.onContainsKey(String.valueOf(cache.id)),
+            photoView.setChecked(mCheckListListener.onContainsKey(cache.id),
                     false);
         }
 
@@ -758,7 +801,7 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
             } else {
                 view.getLayoutParams().height = mContext.getResources()
                         .getDimensionPixelSize(R.dimen.pick_contact_same_item_height);
-                if (mCheckListListener.onContainsKey(String.valueOf(cache.id))) {
+                if (mCheckListListener.onContainsKey(cache.id)) {
                     photoView.setVisibility(View.VISIBLE);
                 } else {
                     photoView.setVisibility(View.INVISIBLE);
@@ -803,36 +846,24 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
         }
     }
 
-        /**
-         * all contacts cursor fill to map
-         */
-        private void fillAllContactsCursorMap() {
-            mAllContactsCurosrMap.clear();
-            Cursor cursor = null;
-            if (mGroupsCursor == null || mGroupsCursor.isClosed())
-                return;
-            for (int groupPosition = 0; groupPosition < mGroupsCursor.getCount(); groupPosition++) {
-                mGroupsCursor.moveToPosition(groupPosition);
-                long groupCacheId = mGroupsCursor.getLong(GROUP_ID);
-                // get the all contacts data in current group
-                cursor = getContactsDetailCursor(groupCacheId);
-                if (cursor == null) {
-                    continue;
-                }
-                if (!cursor.moveToFirst()) {
-                    continue;
-                }
-                String[] dataIds = new String[cursor.getCount()];
-                for (int i = 0; i < cursor.getCount(); i++) {
-                    cursor.moveToPosition(i);
-                    dataIds[i] = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                }
-                mAllContactsCurosrMap.put(groupCacheId, dataIds);
-            }
-
-            if (cursor != null) {
-                cursor.close();
-            }
+    /**
+     * Loads the phone data ids of every visible group in the background. The map is kept until
+     * the new one is ready, so the checked state of groups does not flicker on reloads.
+     */
+    private void fillAllContactsCursorMap() {
+        if (mGroupsCursor == null || mGroupsCursor.isClosed() || mContext == null) {
+            return;
+        }
+        final long[] groupIds = new long[mGroupsCursor.getCount()];
+        for (int groupPosition = 0; groupPosition < groupIds.length; groupPosition++) {
+            mGroupsCursor.moveToPosition(groupPosition);
+            groupIds[groupPosition] = mGroupsCursor.getLong(GROUP_ID);
+        }
+        if (mLoadMembersTask != null) {
+            mLoadMembersTask.cancel(false);
+        }
+        mLoadMembersTask = new LoadMembersTask(mContext.getContentResolver(), groupIds);
+        mLoadMembersTask.execute();
     }
 
     @Override
@@ -847,19 +878,14 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
                     return;
                 }
                 int count = cursor.getCount();
-                String key;
+                long key;
                 for (int i = 0; i < count; i++) {
                     cursor.moveToPosition(i);
-                    long id = cursor.getLong(PHONE_COLUMN_ID);
-                    key = String.valueOf(id);
+                    key = cursor.getLong(PHONE_COLUMN_ID);
                     if (mCheckListListener.onContainsKey(key)) {
-                        if (!checkedList.contains(key)) {
-                            checkedList.add(key);
-                        }
+                        checkedList.put(key, null);
                     } else {
-                        if (checkedList.contains(key)) {
-                            checkedList.remove(key);
-                        }
+                        checkedList.remove(key);
                     }
                 }
                 for (int groupPosition = 0; groupPosition < mGroupsCursor
@@ -867,7 +893,10 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
                     mGroupsCursor.moveToPosition(groupPosition);
                     long groupCacheId = mGroupsCursor.getLong(GROUP_ID);
                     boolean isGroupChecked = true;
-                    String[] dataIds = mAllContactsCurosrMap.get(groupCacheId);
+                    long[] dataIds = mAllContactsCurosrMap.get(groupCacheId);
+                    if (dataIds == null) {
+                        continue;
+                    }
                     for (int i = 0; i < dataIds.length; i++) {
                         if (!checkedList.contains(dataIds[i])) {
                             isGroupChecked = false;
@@ -896,13 +925,12 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
      * is False, deselected all groups and contacts
      */
     public void setSelectedAll(boolean isSelectedAll) {
-        Cursor cursor = allContactsInGroups;
-        if (cursor == null) {
+        if (allContactsInGroups == null) {
             return;
         }
-        ContactItemCache cache = new ContactItemCache();
-        String key;
-        int count = cursor.getCount();
+        if (mSelectAllTask != null) {
+            mSelectAllTask.cancel(false);
+        }
         if (isSelectedAll) {
             // all groups selected
             for (int position = 0; position < mGroupsCursor.getCount(); position++) {
@@ -912,42 +940,173 @@ public class GroupsFragment extends ExpandableListFragment implements OnGroupCli
                     mCheckListListener.addGroupId(groupCacheId);
                 }
             }
-            // all contacts selected
-            for (int i = 0; i < count; i++) {
-                cursor.moveToPosition(i);
-                cache.id = cursor.getLong(PHONE_COLUMN_ID);
-                key = String.valueOf(cache.id);
-                if (!mCheckListListener.onContainsKey(key)) {
-                    cache.name = cursor.getString(PHONE_COLUMN_DISPLAY_NAME);
-                    cache.number = cursor.getString(PHONE_COLUMN_NUMBER);
-                    cache.type = cursor.getString(PHONE_COLUMN_TYPE);
-                    cache.label = cursor.getString(PHONE_COLUMN_LABEL);
-                    cache.contact_id = cursor.getString(PHONE_COLUMN_CONTACT_ID);
-                    String[] value = new String[] {
-                            cache.name, cache.number, cache.type,
-                            cache.label, cache.contact_id
-                    };
-                    if (!checkedList.contains(key)) {
-                        checkedList.add(key);
-                    }
-                    mCheckListListener.putValue(key, value);
-                }
-            }
         } else {
             // clear groups selected numbers
             mCheckListListener.onGroupClear();
-            for (int i = 0; i < count; i++) {
-                cursor.moveToPosition(i);
-                key = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                if (mCheckListListener.onContainsKey(key)) {
-                    mCheckListListener.onRemove(key);
-                }
-            }
             // clear contacts selected numbers
             checkedList.clear();
         }
         mCheckListListener.onUpdateActionBar();
         mAdapter.notifyDataSetChanged();
+        mSelectAllTask = new SelectAllTask(isSelectedAll);
+        mSelectAllTask.execute();
+    }
+
+    /**
+     * Reads the group memberships and phone numbers of all visible groups with one query and
+     * joins them by raw contact in memory.
+     */
+    private class LoadMembersTask extends AsyncTask<Void, Void, LongSparseArray<long[]>> {
+        private static final int COLUMN_DATA_ID = 0;
+        private static final int COLUMN_RAW_CONTACT_ID = 1;
+        private static final int COLUMN_MIMETYPE = 2;
+        private static final int COLUMN_GROUP_ID = 3;
+
+        private final ContentResolver mResolver;
+        private final long[] mGroupIds;
+
+        LoadMembersTask(ContentResolver resolver, long[] groupIds) {
+            mResolver = resolver;
+            mGroupIds = groupIds;
+        }
+
+        @Override
+        protected LongSparseArray<long[]> doInBackground(Void... params) {
+            final LongSparseArray<long[]> members = new LongSparseArray<long[]>(mGroupIds.length);
+            if (mGroupIds.length == 0) {
+                return members;
+            }
+            final StringBuilder groupIds = new StringBuilder();
+            for (int i = 0; i < mGroupIds.length; i++) {
+                groupIds.append(i == 0 ? "" : ",").append(mGroupIds[i]);
+            }
+            final String selection = "(" + Data.MIMETYPE + "=? AND " + Data.RAW_CONTACT_ID
+                    + " IN (SELECT DISTINCT " + Data.RAW_CONTACT_ID + " FROM view_data WHERE "
+                    + Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + " IN ("
+                    + groupIds + "))) OR (" + Data.MIMETYPE + "=? AND "
+                    + GroupMembership.GROUP_ROW_ID + " IN (" + groupIds + "))";
+            final String[] selectionArgs = new String[] {
+                    Phone.CONTENT_ITEM_TYPE,
+                    GroupMembership.CONTENT_ITEM_TYPE,
+                    GroupMembership.CONTENT_ITEM_TYPE
+            };
+
+            // raw contact id -> its groups, and the phone rows in list order.
+            final LongSparseArray<LongList> groupsOfRawContact = new LongSparseArray<LongList>();
+            final LongList phoneIds = new LongList();
+            final LongList phoneRawContactIds = new LongList();
+            final Cursor cursor = mResolver.query(Data.CONTENT_URI, MEMBERS_PROJECTION, selection,
+                    selectionArgs, getSortOrder());
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    final long rawContactId = cursor.getLong(COLUMN_RAW_CONTACT_ID);
+                    if (GroupMembership.CONTENT_ITEM_TYPE.equals(
+                            cursor.getString(COLUMN_MIMETYPE))) {
+                        LongList groups = groupsOfRawContact.get(rawContactId);
+                        if (groups == null) {
+                            groups = new LongList();
+                            groupsOfRawContact.put(rawContactId, groups);
+                        }
+                        groups.add(cursor.getLong(COLUMN_GROUP_ID));
+                    } else {
+                        phoneIds.add(cursor.getLong(COLUMN_DATA_ID));
+                        phoneRawContactIds.add(rawContactId);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            final LongSparseArray<LongList> phonesOfGroup = new LongSparseArray<LongList>();
+            for (int i = 0; i < phoneIds.size(); i++) {
+                final LongList groups = groupsOfRawContact.get(phoneRawContactIds.get(i));
+                if (groups == null) {
+                    continue;
+                }
+                for (int j = 0; j < groups.size(); j++) {
+                    LongList phones = phonesOfGroup.get(groups.get(j));
+                    if (phones == null) {
+                        phones = new LongList();
+                        phonesOfGroup.put(groups.get(j), phones);
+                    }
+                    phones.add(phoneIds.get(i));
+                }
+            }
+            for (long groupId : mGroupIds) {
+                final LongList phones = phonesOfGroup.get(groupId);
+                members.put(groupId, phones == null ? new long[0] : phones.toArray());
+            }
+            return members;
+        }
+
+        @Override
+        protected void onPostExecute(LongSparseArray<long[]> members) {
+            if (members == null || mAdapter == null) {
+                return;
+            }
+            mAllContactsCurosrMap = members;
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Selects or deselects the contacts of all groups.
+     */
+    private class SelectAllTask extends BulkSelectionTask {
+        private final ContentResolver mResolver;
+
+        public SelectAllTask(boolean select) {
+            super(select);
+            mResolver = mContext.getContentResolver();
+        }
+
+        @Override
+        protected Cursor openCursor() {
+            return getAllContactsCursorInGroups(mResolver);
+        }
+
+        @Override
+        protected long readKey(Cursor cursor) {
+            return cursor.getLong(PHONE_COLUMN_ID);
+        }
+
+        @Override
+        protected String[] readValue(Cursor cursor, long key) {
+            return new String[] {
+                    cursor.getString(PHONE_COLUMN_DISPLAY_NAME),
+                    cursor.getString(PHONE_COLUMN_NUMBER),
+                    cursor.getString(PHONE_COLUMN_TYPE),
+                    cursor.getString(PHONE_COLUMN_LABEL),
+                    cursor.getString(PHONE_COLUMN_CONTACT_ID)
+            };
+        }
+
+        @Override
+        protected void onChunk(SelectionStore chunk) {
+            if (isSelect()) {
+                mCheckListListener.putValues(chunk);
+                checkedList.putAll(chunk);
+            } else {
+                mCheckListListener.onRemoveAll(chunk.getIds());
+            }
+            mCheckListListener.onUpdateActionBar();
+        }
+
+        @Override
+        protected void onFinished() {
+            if (mSelectAllTask == this) {
+                mSelectAllTask = null;
+            }
+            if (mContext != null) {
+                mAdapter.notifyDataSetChanged();
+            }
+        }
     }
 
     public int getAllCheckedListSize() {
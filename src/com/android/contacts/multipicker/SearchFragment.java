@@ -32,14 +32,15 @@ package com.android.contacts.multipicker;
 import android.accounts.Account;
 import android.app.Activity;
 import android.app.ListFragment;
-import android.content.AsyncQueryHandler;
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MergeCursor;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
@@ -83,7 +84,6 @@ import com.android.contacts.list.ContactsPickMode;
 import com.android.contacts.list.OnCheckListActionListener;
 import com.google.common.collect.Sets;
 
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -163,15 +163,21 @@ public class SearchFragment extends ListFragment {
     public static final int CACHED_PHOTO_URI = 4;
     public static final int CACHED_FORMATTED_NUMBER = 5;
 
-    private static final int QUERY_TOKEN = 42;
-    private static final int CONTACT_QUERY_TOKEN = 43;
-    private static final int GROUP_QUERY_TOKEN = 44;
-    private static final int CALLLOG_QUERY_TOKEN = 45;
+    // Sources of a search, in the order their rows are listed.
+    private static final int SOURCE_GROUPS = 0;
+    private static final int SOURCE_PHONES = 1;
+    private static final int SOURCE_CALLLOG = 2;
+    private static final int SOURCE_COUNT = 3;
 
     // Include PHONE, GROUPS and CALL
     private static final int VIEW_TYPE_COUNT = 3;
 
-    private QueryHandler mQueryHandler;
+    // The latest search, and the one whose rows are on screen.
+    private SearchRequest mSearch;
+    private SearchRequest mShownSearch;
+    private int mSearchGeneration;
+    // Ids of the strange calls matching the current filter.
+    private long[] mCallLogMatches;
 
     private Context mContext;
 
@@ -188,8 +194,6 @@ public class SearchFragment extends ListFragment {
 
     private View mRootView;
 
-    private ArrayList<Cursor> mCursors;
-
     private static final int TYPE_CONTACTS = 0;
     private static final int TYPE_GROUP = 1;
     private static final int TYPE_CALLLOG = 2;
@@ -208,10 +212,8 @@ public class SearchFragment extends ListFragment {
 
         if (mContactListAdapter == null) {
             mContactListAdapter = new ContactItemListAdapter(mContext);
-            mCursors = new ArrayList<Cursor>();
         }
         setListAdapter(mContactListAdapter);
-        mQueryHandler = new QueryHandler(mContext);
     }
 
     @Override
@@ -246,7 +248,7 @@ public class SearchFragment extends ListFragment {
                     break;
                 }
                 do {
-                    String key = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
+                    long key = cursor.getLong(PHONE_COLUMN_ID);
                     if (mCheckListListener.onContainsGroupId(groupCache.id)) {
                         if (!mCheckListListener.onContainsKey(key)) {
                             ContactItemCache cache = new ContactItemCache();
@@ -274,7 +276,7 @@ public class SearchFragment extends ListFragment {
                 break;
             case TYPE_CONTACTS:
                 ContactItemCache cache = (ContactItemCache) v.getTag();
-                String key = String.valueOf(cache.id);
+                long key = cache.id;
 
                 if (!mCheckListListener.onContainsKey(key)) {
                     String[] value = null;
@@ -290,8 +292,8 @@ public class SearchFragment extends ListFragment {
             case TYPE_CALLLOG:
                 /* Click searched call log */
                 PhoneCallDetails details = (PhoneCallDetails) v.getTag();
-                String callLogKey = String.valueOf(details.mCallId);
                 if (null != details) {
+                    long callLogKey = details.mCallId;
 
                     if (!mCheckListListener.onContainsNumberKey(callLogKey)) {
                         String[] value;
@@ -321,13 +323,11 @@ public class SearchFragment extends ListFragment {
 
     @Override
     public void onDestroy() {
-        mQueryHandler.removeCallbacksAndMessages(QUERY_TOKEN);
-        mQueryHandler.removeCallbacksAndMessages(CONTACT_QUERY_TOKEN);
-        mQueryHandler.removeCallbacksAndMessages(GROUP_QUERY_TOKEN);
-        mQueryHandler.removeCallbacksAndMessages(CALLLOG_QUERY_TOKEN);
-
-        if (mContactListAdapter.getCursor() != null) {
-            mContactListAdapter.getCursor().close();
+        cancelSearch();
+        mContactListAdapter.swapCursor(null);
+        if (mShownSearch != null) {
+            mShownSearch.close();
+            mShownSearch = null;
         }
 
         super.onDestroy();
@@ -394,31 +394,7 @@ public class SearchFragment extends ListFragment {
             case ContactsPickMode.MODE_SEARCH_GROUP:
                 return createGroupSelection(query);
             case ContactsPickMode.MODE_SEARCH_CALL:
-                return createCallLogSelection(query);
-            default:
-                return null;
-        }
-    }
-
-    private int getQueryToken() {
-        switch (mMode) {
-            case ContactsPickMode.MODE_SEARCH_GROUP:
-                return GROUP_QUERY_TOKEN;
-            case ContactsPickMode.MODE_SEARCH_PHONE:
-                return CONTACT_QUERY_TOKEN;
-            case ContactsPickMode.MODE_SEARCH_CALL:
-                return CALLLOG_QUERY_TOKEN;
-            default:
-                return QUERY_TOKEN;
-        }
-    }
-
-    private String getQueryStr() {
-        switch (mMode) {
-            case ContactsPickMode.MODE_SEARCH_GROUP:
-            case ContactsPickMode.MODE_SEARCH_PHONE:
-            case ContactsPickMode.MODE_SEARCH_CALL:
-                return query;
+                return createCallLogSelection(mCallLogMatches);
             default:
                 return null;
         }
@@ -442,98 +418,168 @@ public class SearchFragment extends ListFragment {
         return !mPickMode.getIntent().hasExtra(EXT_NOT_SHOW_SIM_FLAG);
     }
 
-    public void doFilter(int mode, String s) {
+    /**
+     * Searches groups, phone numbers and the call log at the same time. The rows of each
+     * source are listed as soon as it is done, results of older searches are dropped.
+     */
+    public void doFilter(String s) {
         query = s;
+        cancelSearch();
 
         if (TextUtils.isEmpty(s)) {
-            mContactListAdapter.changeCursor(null);
+            mContactListAdapter.swapCursor(null);
+            if (mShownSearch != null) {
+                mShownSearch.close();
+                mShownSearch = null;
+            }
             return;
         }
 
-        Uri uri = null;
-        switch (mode) {
-            case ContactsPickMode.MODE_SEARCH_GROUP:
-                mMode = mode;
-                uri = Groups.CONTENT_SUMMARY_URI;
-                break;
-            case ContactsPickMode.MODE_SEARCH_PHONE:
-                mMode = mode;
-                uri = Uri.withAppendedPath(getFilterUri(), query);
-                break;
-            case ContactsPickMode.MODE_SEARCH_CALL:
-                mMode = mode;
-                uri = getUriToQuery();
-                break;
-            default:
-                mMode = mode;
-                uri = Uri.withAppendedPath(getFilterUri(), query);
-                break;
+        mSearch = new SearchRequest(++mSearchGeneration);
+        startSourceQuery(SOURCE_GROUPS, ContactsPickMode.MODE_SEARCH_GROUP,
+                Groups.CONTENT_SUMMARY_URI);
+        startSourceQuery(SOURCE_PHONES, ContactsPickMode.MODE_SEARCH_PHONE,
+                Uri.withAppendedPath(getFilterUri(), query));
+        // the call log is matched in memory, only the matching calls are read.
+        mCallLogMatches = mCheckListListener.getStrangeCallLogIndex().search(query);
+        if (mCallLogMatches.length > 0) {
+            startSourceQuery(SOURCE_CALLLOG, ContactsPickMode.MODE_SEARCH_CALL,
+                    getUriToQuery());
+        } else {
+            onSourceLoaded(mSearch, SOURCE_CALLLOG, null);
         }
+        mMode = ContactsPickMode.MODE_SEARCH_PHONE;
+    }
 
-        mQueryHandler.startQuery(getQueryToken(), getQueryStr(), uri, getProjectionForQuery(),
-                getSelectionForQuery(),
-                getSelectionArgsForQuery(), getSortOrder());
+    private void startSourceQuery(int source, int mode, Uri uri) {
+        mMode = mode;
+        final SourceQueryTask task = new SourceQueryTask(mSearch, source, uri,
+                getProjectionForQuery(), getSelectionForQuery(), getSelectionArgsForQuery(),
+                getSortOrder());
+        mSearch.tasks[source] = task;
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
 
+    private void cancelSearch() {
+        if (mSearch == null) {
+            return;
+        }
+        for (SourceQueryTask task : mSearch.tasks) {
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+        if (mSearch != mShownSearch) {
+            mSearch.close();
+        }
+        mSearch = null;
     }
 
-    private class QueryHandler extends AsyncQueryHandler {
-        protected WeakReference<SearchFragment> mFragment;
+    private void onSourceLoaded(SearchRequest search, int source, Cursor cursor) {
+        if (mSearch == null || search.generation != mSearchGeneration || mContext == null) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        search.cursors[source] = cursor;
+        search.pending--;
 
-        public QueryHandler(Context context) {
-            super(context.getContentResolver());
-            mFragment = new WeakReference<SearchFragment>((SearchFragment) SearchFragment.this);
+        final ArrayList<Cursor> loaded = new ArrayList<Cursor>(SOURCE_COUNT);
+        for (Cursor c : search.cursors) {
+            if (c != null) {
+                loaded.add(c);
+            }
+        }
+        if (loaded.size() == 0) {
+            if (search.pending == 0) {
+                Toast.makeText(mContext, R.string.listFoundAllContactsZero,
+                        Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+
+        mPickMode.setMode(ContactsPickMode.MODE_SEARCH_PHONE);
+        // the old merge cursor shares its cursors with the new one, so it is swapped out
+        // without closing. Cursors of an older search are closed here instead.
+        mContactListAdapter.swapCursor(new MergeCursor(loaded.toArray(new Cursor[0])));
+        if (mShownSearch != null && mShownSearch != search) {
+            mShownSearch.close();
+        }
+        mShownSearch = search;
+    }
+
+    /**
+     * One search over all sources. Searches are numbered so that late results of an older
+     * search are recognized and dropped.
+     */
+    private static class SearchRequest {
+        final int generation;
+        final SourceQueryTask[] tasks = new SourceQueryTask[SOURCE_COUNT];
+        final Cursor[] cursors = new Cursor[SOURCE_COUNT];
+        int pending = SOURCE_COUNT;
+
+        SearchRequest(int generation) {
+            this.generation = generation;
+        }
+
+        void close() {
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i] != null) {
+                    cursors[i].close();
+                    cursors[i] = null;
+                }
+            }
+        }
+    }
+
+    private class SourceQueryTask extends AsyncTask<Void, Void, Cursor> {
+        private final SearchRequest mRequest;
+        private final int mSource;
+        private final Uri mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+        private final ContentResolver mResolver;
+
+        SourceQueryTask(SearchRequest request, int source, Uri uri, String[] projection,
+                String selection, String[] selectionArgs, String sortOrder) {
+            mRequest = request;
+            mSource = source;
+            mUri = uri;
+            mProjection = projection;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mSortOrder = sortOrder;
+            mResolver = mContext.getContentResolver();
         }
 
         @Override
-        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
-            // In the case of low memory, the WeakReference object may be
-            // recycled.
-            if (mFragment == null || mFragment.get() == null) {
-                mFragment = new WeakReference<SearchFragment>(SearchFragment.this);
+        protected Cursor doInBackground(Void... params) {
+            try {
+                final Cursor cursor = mResolver.query(mUri, mProjection, mSelection,
+                        mSelectionArgs, mSortOrder);
+                if (cursor != null) {
+                    // fill the window here rather than when the list first draws.
+                    cursor.getCount();
+                }
+                return cursor;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "search " + mRequest.generation + " failed for source " + mSource, e);
+                return null;
             }
-            final SearchFragment fragment = mFragment.get();
-            String filter = (String) cookie;
-            // setFilterString(filter);
-            switch (token) {
-                case QUERY_TOKEN:
-                    mContactListAdapter.changeCursor(cursor);
-                    break;
-                case GROUP_QUERY_TOKEN:
-                    if (cursor != null) {
-                        mCursors.add(cursor);
-                    }
-                    doFilter(ContactsPickMode.MODE_SEARCH_PHONE, filter);
-                    break;
-                case CONTACT_QUERY_TOKEN:
-                    if (cursor != null) {
-                        mCursors.add(cursor);
-                    }
-                    doFilter(ContactsPickMode.MODE_SEARCH_CALL, filter);
-                    break;
-                case CALLLOG_QUERY_TOKEN:
-                    // Call log query complete.
-                    if (cursor != null) {
-                        mCursors.add(cursor);
-                    }
-                    if (mCursors.size() == 0) {
-                        Toast.makeText(mContext, R.string.listFoundAllContactsZero,
-                                Toast.LENGTH_SHORT).show();
-                    } else {
-                        Cursor[] cursors = new Cursor[mCursors.size()];
-                        for (int i = 0; i < mCursors.size(); i++) {
-                            cursors[i] = mCursors.get(i);
-                        }
-                        Cursor mergeCursor = new MergeCursor(cursors);
-                        mMode = ContactsPickMode.MODE_SEARCH_PHONE;
-                        mPickMode.setMode(mMode);
-                        mContactListAdapter.changeCursor(mergeCursor);
-                        if (mCursors != null) {
-                            mCursors.clear();
-                        }
-                    }
-                    break;
-                default:
-                    break;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            onSourceLoaded(mRequest, mSource, cursor);
+        }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
             }
         }
     }
@@ -647,7 +693,7 @@ public class SearchFragment extends ListFragment {
             } else {
                 view.getLayoutParams().height = mContext.getResources()
                         .getDimensionPixelSize(R.dimen.pick_contact_same_item_height);
-                if (mCheckListListener.onContainsKey(String.valueOf(cache.id))) {
+                if (mCheckListListener.onContainsKey(cache.id)) {
                     photoView.setVisibility(View.VISIBLE);
                 } else {
                     photoView.setVisibility(View.INVISIBLE);
@@ -681,7 +727,7 @@ public class SearchFragment extends ListFragment {
             }
 
             photoView.setChecked(
-                    mCheckListListener.onContainsNumberKey(String.valueOf(details.mCallId)), false);
+                    mCheckListListener.onContainsNumberKey(details.mCallId), false);
 
             // Activate photo when photo is check.
             if (photoView.isChecked()) {
@@ -735,7 +781,7 @@ public class SearchFragment extends ListFragment {
                         request);
             }
 
-            photoView.setChecked(mCheckListListener.onContainsKey(String.valueOf(cache.id)), false);
+            photoView.setChecked(mCheckListListener.onContainsKey(cache.id), false);
             if (photoView.isChecked()) {
                 view.setActivated(true);
             } else {
@@ -984,11 +1030,13 @@ public class SearchFragment extends ListFragment {
             return Groups.SOURCE_ID;
     }
 
-    private String createCallLogSelection(String filter) {
-        String selection = Calls._ID + " in ( " + mCheckListListener.getCallLogSelection() + " )"
-                + " and (" + Calls.NUMBER + " like '%" + filter + "%' and "
-                + Calls.CACHED_NAME + " is null)";
-        return selection;
+    private String createCallLogSelection(long[] callIds) {
+        StringBuilder selection = new StringBuilder(Calls._ID + " in (");
+        for (int i = 0; i < callIds.length; i++) {
+            selection.append(i == 0 ? "" : ",").append(callIds[i]);
+        }
+        selection.append(") and " + Calls.CACHED_NAME + " is null");
+        return selection.toString();
     }
 
     private String createEmailOrNumberSelection() {
@@ -34,7 +34,6 @@ import android.content.pm.ResolveInfo;
 import android.content.res.ColorStateList;
 import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
@@ -181,6 +180,7 @@ import com.android.contacts.quickcontact.WebAddress.ParseException;
 import com.android.contacts.util.ImageViewDrawableSetter;
 import com.android.contacts.util.PhoneCapabilityTester;
 import com.android.contacts.util.SchedulingUtils;
+import com.android.contacts.util.SimExportPlanner;
 import com.android.contacts.util.StructuredPostalUtils;
 import com.android.contacts.widget.MultiShrinkScroller;
 import com.android.contacts.widget.MultiShrinkScroller.MultiShrinkScrollerListener;
@@ -754,12 +754,12 @@ public class QuickContactActivity extends ContactsActivity
                 return true;
             case ContextMenuIds.SET_DEFAULT:
                 final Intent setIntent = ContactSaveService.createSetSuperPrimaryIntent(this,
-                        menuInfo.getId());
+                        menuInfo.getId(), mContactData.getLookupUri());
                 this.startService(setIntent);
                 return true;
             case ContextMenuIds.CLEAR_DEFAULT:
                 final Intent clearIntent = ContactSaveService.createClearPrimaryIntent(this,
-                        menuInfo.getId());
+                        menuInfo.getId(), mContactData.getLookupUri());
                 this.startService(clearIntent);
                 return true;
             default:
@@ -3110,36 +3110,6 @@ public class QuickContactActivity extends ContactsActivity
         }
     }
 
-    //supply phone number and email which could stored in one ADN
-    class UsimEntity {
-        private ArrayList<String> mNumberList = new ArrayList<String>();
-        private ArrayList<String> mEmailList = new ArrayList<String>();
-
-        public ArrayList<String> getEmailList() {
-            return mEmailList;
-        }
-
-        public ArrayList<String> getNumberList() {
-            return mNumberList;
-        }
-
-        public void putEmailList(ArrayList<String> list) {
-            mEmailList = list;
-        }
-
-        public void putNumberList(ArrayList<String> list) {
-            mNumberList = list;
-        }
-
-        public boolean containsEmail() {
-            return !mEmailList.isEmpty();
-        }
-
-        public boolean containsNumber() {
-            return !mNumberList.isEmpty();
-        }
-    }
-
     private void copyToPhone() {
         String name = mContactData.getDisplayName();
         if (TextUtils.isEmpty(name)) {
@@ -3228,67 +3198,10 @@ public class QuickContactActivity extends ContactsActivity
         new Thread(new Runnable() {
             public void run() {
                 synchronized (this) {
-                    int adnCountInSimContact = 1;
-                    int anrCountInSimContact = 0;
-                    int emailCountInSimContact = 0;
-
-                    Cursor cr = null;
-                    // call query first, otherwise the count queries will fail
-                    try{
-                        int subId = MoreContactUtils.getActiveSubId(QuickContactActivity.this, sub);
-                        if (subId >= 0
-                            && tm.getPhoneCount() > 1) {
-                            cr = getContentResolver().query(
-                                Uri.parse(SimContactsConstants.SIM_SUB_URI
-                                    + subId), null, null, null, null);
-                        } else {
-                            cr = getContentResolver().query(
-                                Uri.parse(SimContactsConstants.SIM_URI), null,
-                                null, null, null);
-                        }
-                    } catch (NullPointerException e) {
-                        Log.e(TAG, "Exception:" + e);
-                    } finally {
-                        if (cr != null) {
-                            cr.close();
-                        }
-                    }
-
-                    if (MoreContactUtils.canSaveAnr(QuickContactActivity.this, sub)) {
-                        anrCountInSimContact = MoreContactUtils.getOneSimAnrCount(
-                                QuickContactActivity.this, sub);
-                    }
-                    if (MoreContactUtils.canSaveEmail(QuickContactActivity.this, sub)) {
-                        emailCountInSimContact = MoreContactUtils.getOneSimEmailCount(
-                                QuickContactActivity.this, sub);
-                    }
-                    int totalEmptyAdn = MoreContactUtils.getSimFreeCount(
-                            QuickContactActivity.this, sub);
-                    int totalEmptyAnr = MoreContactUtils.getSpareAnrCount(
-                            QuickContactActivity.this, sub);
-                    int totalEmptyEmail = MoreContactUtils.getSpareEmailCount(
-                            QuickContactActivity.this, sub);
-
-                    Message msg = Message.obtain();
-                    if (totalEmptyAdn <= 0) {
-                        msg.what = MSG_CARD_NO_SPACE;
-                        mHandler.sendMessage(msg);
-                        return;
-                    }
-
-                    //to indiacate how many number in one ADN can saved to SIM card,
-                    //1 means can only save one number,2,3 ... means can save anr
-                    int numEntitySize = adnCountInSimContact + anrCountInSimContact;
-
-                    //empty number is equals to the sum of adn and anr
-                    int emptyNumTotal = totalEmptyAdn + totalEmptyAnr;
-
                     // Get name string
                     String strName = mContactData.getDisplayName();
-
-                    ArrayList<String> arrayNumber = new ArrayList<String>();
-                    ArrayList<String> arrayEmail = new ArrayList<String>();
-
+                    final SimExportPlanner.Entry entry = new SimExportPlanner.Entry(
+                            mContactData.getId(), strName);
                     for (RawContact rawContact : mContactData.getRawContacts()) {
                         for (DataItem dataItem : rawContact.getDataItems()) {
                             if (dataItem.getMimeType() == null) {
@@ -3298,101 +3211,38 @@ public class QuickContactActivity extends ContactsActivity
                                 // Get phone string
                                 PhoneDataItem phoneNum = (PhoneDataItem) dataItem;
                                 final String number = phoneNum.getNumber();
-                                if (!TextUtils.isEmpty(number) && emptyNumTotal-- > 0) {
-                                    arrayNumber.add(number);
+                                if (!TextUtils.isEmpty(number)) {
+                                    entry.numbers.add(number);
                                 }
                             } else if (dataItem instanceof EmailDataItem) {
                                 // Get email string
                                 EmailDataItem emailData = (EmailDataItem) dataItem;
                                 final String address = emailData.getData();
-                                if (!TextUtils.isEmpty(address) && totalEmptyEmail-- > 0) {
-                                    arrayEmail.add(address);
+                                if (!TextUtils.isEmpty(address)) {
+                                    entry.emails.add(address);
                                 }
                             }
                         }
                     }
 
-                    //calculate how many ADN needed according to the number,name,phone,email,
-                    //then uses the max of them
-                    int nameCount = (strName != null && !strName.equals("")) ? 1 : 0;
-                    int groupNumCount = (arrayNumber.size() % numEntitySize) != 0 ? (arrayNumber
-                            .size() / numEntitySize + 1) : (arrayNumber.size() / numEntitySize);
-                    int groupEmailCount = emailCountInSimContact == 0 ? 0
-                            : ((arrayEmail.size() % emailCountInSimContact) != 0 ? (arrayEmail
-                                    .size() / emailCountInSimContact + 1)
-                                    : (arrayEmail.size() / emailCountInSimContact));
-
-                    int groupCount = Math.max(groupEmailCount, Math.max(nameCount, groupNumCount));
-
-                    ArrayList<UsimEntity> results = new ArrayList<UsimEntity>();
-                    for (int i = 0; i < groupCount; i++) {
-                        results.add(new UsimEntity());
-                    }
-
-                    UsimEntity value;
-                    //get the phone number for each ADN from arrayNumber,put them in UsimEntity
-                    for (int i = 0; i < groupNumCount; i++) {
-                        value = results.get(i);
-                        ArrayList<String> numberItem = new ArrayList<String>();
-                        for (int j = 0; j < numEntitySize; j++) {
-                            if ((i * numEntitySize + j) < arrayNumber.size()) {
-                                numberItem.add(arrayNumber.get(i * numEntitySize + j));
-                            }
-                        }
-                        value.putNumberList(numberItem);
-                    }
-
-                    for (int i = 0; i < groupEmailCount; i++) {
-                        value = results.get(i);
-                        ArrayList<String> emailItem = new ArrayList<String>();
-                        for (int j = 0; j < emailCountInSimContact; j++) {
-                            if ((i * emailCountInSimContact + j) < arrayEmail.size()) {
-                                emailItem.add(arrayEmail.get(i * emailCountInSimContact + j));
-                            }
-                        }
-                        value.putEmailList(emailItem);
+                    final SimExportPlanner.Plan plan = SimExportPlanner.plan(
+                            QuickContactActivity.this, sub, Collections.singletonList(entry));
+                    Message msg = Message.obtain();
+                    if (!plan.getUnfitContactIds().isEmpty()) {
+                        msg.what = MSG_CARD_NO_SPACE;
+                        mHandler.sendMessage(msg);
+                        return;
                     }
 
-                    ArrayList<String> emptyList = new ArrayList<String>();
-                    Uri itemUri = null;
-                    if (totalEmptyEmail < 0 && MoreContactUtils.canSaveEmail(
+                    if (plan.getDroppedEmailCount() > 0 && MoreContactUtils.canSaveEmail(
                             QuickContactActivity.this, sub)) {
                         Message e_msg = Message.obtain();
                         e_msg.what = MSG_NO_EMPTY_EMAIL;
                         mHandler.sendMessage(e_msg);
                     }
 
-                    //get phone number from UsimEntity,then insert to SIM card
-                    for (int i = 0; i < groupCount; i++) {
-                        value = results.get(i);
-                        if (value.containsNumber()) {
-                            arrayNumber = (ArrayList<String>) value.getNumberList();
-                        } else {
-                            arrayNumber = emptyList;
-                        }
-
-                        if (value.containsEmail()) {
-                            arrayEmail = (ArrayList<String>) value.getEmailList();
-                        } else {
-                            arrayEmail = emptyList;
-                        }
-                        String strNum = arrayNumber.size() > 0 ? arrayNumber.get(0) : null;
-                        StringBuilder strAnrNum = new StringBuilder();
-                        for (int j = 1; j < arrayNumber.size(); j++) {
-                            String s = arrayNumber.get(j);
-                            strAnrNum.append(s);
-                            strAnrNum.append(SimContactsConstants.ANR_SEP);
-                        }
-                        StringBuilder strEmail = new StringBuilder();
-                        for (int j = 0; j < arrayEmail.size(); j++) {
-                            String s = arrayEmail.get(j);
-                            strEmail.append(s);
-                            strEmail.append(SimContactsConstants.EMAIL_SEP);
-                        }
-                        itemUri = MoreContactUtils.insertToCard(QuickContactActivity.this, strName,
-                                strNum, strEmail.toString(), strAnrNum.toString(), sub);
-                    }
-                    if (itemUri != null) {
+                    int written = plan.write(QuickContactActivity.this, sub, null);
+                    if (written > 0) {
                         msg.what = MSG_COPY_DONE;
                         mHandler.sendMessage(msg);
                     } else {
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.util.LongSparseArray;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Finds calls whose number contains a run of digits, without going to the call log provider.
+ *
+ * Every run of {@link #GRAM} digits of a number is a key of the index, pointing to the calls
+ * whose number contains it. A search only checks the calls listed under the rarest key of
+ * the query. Shorter queries are checked against all calls. Punctuation is ignored on both
+ * sides, so "650-253" finds "+1 650 253 0000".
+ *
+ * Not thread safe, the multi-picker uses it from the main thread.
+ */
+public class CallLogNumberIndex {
+
+    @VisibleForTesting
+    static final int GRAM = 3;
+    private static final int GRAM_COUNT = 1000;
+
+    // digits of the number of each call.
+    private final LongSparseArray<String> mDigits = new LongSparseArray<>();
+    private final long[][] mPostings = new long[GRAM_COUNT][];
+    private final int[] mPostingSizes = new int[GRAM_COUNT];
+
+    /**
+     * Makes the index hold exactly the given calls, touching only those that were added,
+     * removed or changed their number.
+     */
+    public void update(long[] callIds, String[] numbers) {
+        final long[] sortedIds = callIds.clone();
+        Arrays.sort(sortedIds);
+        for (int i = mDigits.size() - 1; i >= 0; i--) {
+            final long callId = mDigits.keyAt(i);
+            if (Arrays.binarySearch(sortedIds, callId) < 0) {
+                remove(callId);
+            }
+        }
+        for (int i = 0; i < callIds.length; i++) {
+            put(callIds[i], numbers[i]);
+        }
+    }
+
+    public void put(long callId, String number) {
+        final String digits = digitsOf(number);
+        final String previous = mDigits.get(callId);
+        if (digits.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            remove(callId);
+        }
+        if (digits.isEmpty()) {
+            return;
+        }
+        mDigits.put(callId, digits);
+        for (int gram : gramsOf(digits)) {
+            addPosting(gram, callId);
+        }
+    }
+
+    /**
+     * @return true if the call was in the index.
+     */
+    public boolean remove(long callId) {
+        final String digits = mDigits.get(callId);
+        if (digits == null) {
+            return false;
+        }
+        mDigits.remove(callId);
+        for (int gram : gramsOf(digits)) {
+            removePosting(gram, callId);
+        }
+        return true;
+    }
+
+    public void clear() {
+        mDigits.clear();
+        Arrays.fill(mPostings, null);
+        Arrays.fill(mPostingSizes, 0);
+    }
+
+    public int size() {
+        return mDigits.size();
+    }
+
+    /**
+     * @return the calls whose number contains the digits of the filter, in ascending id order.
+     *         Empty if the filter has no digits or anything but digits and number punctuation.
+     */
+    public long[] search(String filter) {
+        if (filter == null || !isNumberFilter(filter)) {
+            return new long[0];
+        }
+        final String digits = digitsOf(filter);
+        final long[] matches;
+        int count = 0;
+        if (digits.length() < GRAM) {
+            matches = new long[mDigits.size()];
+            for (int i = 0; i < mDigits.size(); i++) {
+                if (mDigits.valueAt(i).contains(digits)) {
+                    matches[count++] = mDigits.keyAt(i);
+                }
+            }
+        } else {
+            int rarest = -1;
+            for (int gram : gramsOf(digits)) {
+                if (rarest < 0 || mPostingSizes[gram] < mPostingSizes[rarest]) {
+                    rarest = gram;
+                }
+            }
+            final int candidates = mPostingSizes[rarest];
+            matches = new long[candidates];
+            for (int i = 0; i < candidates; i++) {
+                final long callId = mPostings[rarest][i];
+                if (mDigits.get(callId).contains(digits)) {
+                    matches[count++] = callId;
+                }
+            }
+        }
+        final long[] result = Arrays.copyOf(matches, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void addPosting(int gram, long callId) {
+        long[] posting = mPostings[gram];
+        final int size = mPostingSizes[gram];
+        if (posting == null) {
+            posting = new long[4];
+            mPostings[gram] = posting;
+        } else if (size == posting.length) {
+            posting = Arrays.copyOf(posting, size * 2);
+            mPostings[gram] = posting;
+        }
+        posting[size] = callId;
+        mPostingSizes[gram] = size + 1;
+    }
+
+    private void removePosting(int gram, long callId) {
+        final long[] posting = mPostings[gram];
+        final int last = mPostingSizes[gram] - 1;
+        for (int i = 0; i <= last; i++) {
+            if (posting[i] == callId) {
+                // order within a posting does not matter, fill the hole with the last entry.
+                posting[i] = posting[last];
+                mPostingSizes[gram] = last;
+                if (last == 0) {
+                    mPostings[gram] = null;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the distinct keys of all runs of {@link #GRAM} digits, each in 0..999.
+     */
+    @VisibleForTesting
+    static int[] gramsOf(String digits) {
+        final int count = Math.max(digits.length() - GRAM + 1, 0);
+        final int[] grams = new int[count];
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            int gram = 0;
+            for (int j = i; j < i + GRAM; j++) {
+                gram = gram * 10 + (digits.charAt(j) - '0');
+            }
+            boolean seen = false;
+            for (int k = 0; k < distinct; k++) {
+                if (grams[k] == gram) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (!seen) {
+                grams[distinct++] = gram;
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    /**
+     * @return true if the filter has digits and nothing else but number punctuation.
+     */
+    private static boolean isNumberFilter(String filter) {
+        boolean hasDigit = false;
+        for (int i = 0; i < filter.length(); i++) {
+            final char c = filter.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hasDigit = true;
+            } else if ("+-() ".indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return hasDigit;
+    }
+
+    @VisibleForTesting
+    static String digitsOf(String value) {
+        if (value == null) {
+            return "";
+        }
+        final StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
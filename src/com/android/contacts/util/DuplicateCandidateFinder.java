@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.text.TextUtils;
+
+import com.android.contacts.util.DuplicateSignatureStore.Signature;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Groups raw contacts that are likely to be the same person.
+ *
+ * Raw contacts with the same name key are always grouped, as the duplicate search always did.
+ * Beyond that, every raw contact is put into blocks by its sorted name tokens, the phonetic
+ * key of its name, the min-match key of each number and the local part of each email. Only
+ * raw contacts sharing a block are compared with the {@link Scorer}, and blocks larger than
+ * {@link #MAX_BLOCK_SIZE} are skipped, so the work stays close to linear in the number of raw
+ * contacts.
+ */
+public class DuplicateCandidateFinder {
+
+    /** Blocks with more members than this are too unspecific to be worth comparing. */
+    @VisibleForTesting
+    static final int MAX_BLOCK_SIZE = 50;
+
+    private static final String BLOCK_TOKENS = "t:";
+    private static final String BLOCK_PHONETIC = "s:";
+    private static final String BLOCK_NUMBER = "n:";
+    private static final String BLOCK_EMAIL = "e:";
+
+    /**
+     * Decides how likely two raw contacts are the same person.
+     */
+    public interface Scorer {
+        /**
+         * @return a score between 0 and 1. Pairs scoring at least
+         *         {@link #getThreshold()} are grouped.
+         */
+        float score(Candidate a, Candidate b);
+
+        float getThreshold();
+    }
+
+    /**
+     * Default scorer: names must agree, either token for token or phonetically together with
+     * a shared number or email. A shared number or email alone is not enough, since families
+     * and companies often share them.
+     */
+    public static final Scorer DEFAULT_SCORER = new Scorer() {
+        @Override
+        public float score(Candidate a, Candidate b) {
+            if (!TextUtils.isEmpty(a.nameTokens) && a.nameTokens.equals(b.nameTokens)) {
+                return 1.0f;
+            }
+            final boolean sharesContact = intersects(a.signature.phoneKeys,
+                    b.signature.phoneKeys) || intersects(a.signature.emailKeys,
+                    b.signature.emailKeys);
+            if (!TextUtils.isEmpty(a.phoneticKey) && a.phoneticKey.equals(b.phoneticKey)) {
+                return sharesContact ? 0.9f : 0.6f;
+            }
+            return sharesContact ? 0.5f : 0f;
+        }
+
+        @Override
+        public float getThreshold() {
+            return 0.8f;
+        }
+    };
+
+    /**
+     * A raw contact together with the name keys derived from its signature.
+     */
+    public static class Candidate {
+        public final Signature signature;
+        /** Lower-cased name tokens in sorted order, separated by a space. */
+        public final String nameTokens;
+        /** Phonetic codes of the name tokens in sorted order, separated by a space. */
+        public final String phoneticKey;
+
+        Candidate(Signature signature) {
+            this.signature = signature;
+            final String[] tokens = tokenize(signature.nameKey);
+            this.nameTokens = TextUtils.join(" ", tokens);
+            final String[] codes = new String[tokens.length];
+            for (int i = 0; i < tokens.length; i++) {
+                codes[i] = soundex(tokens[i]);
+            }
+            Arrays.sort(codes);
+            this.phoneticKey = TextUtils.join(" ", codes);
+        }
+    }
+
+    private final Scorer mScorer;
+    private int mComparisons;
+
+    public DuplicateCandidateFinder(Scorer scorer) {
+        mScorer = scorer;
+    }
+
+    /** @return number of pairs handed to the scorer by the last {@link #findGroups} call. */
+    public int getComparisonCount() {
+        return mComparisons;
+    }
+
+    /**
+     * @return the raw contact ids of every group with at least two members.
+     */
+    public List<List<Long>> findGroups(Collection<Signature> signatures) {
+        mComparisons = 0;
+        final int size = signatures.size();
+        final Candidate[] candidates = new Candidate[size];
+        final int[] parents = new int[size];
+        final HashMap<String, Integer> names = new HashMap<>();
+        final HashMap<String, List<Integer>> blocks = new HashMap<>();
+
+        int index = 0;
+        for (Signature signature : signatures) {
+            final Candidate candidate = new Candidate(signature);
+            candidates[index] = candidate;
+            parents[index] = index;
+
+            // identical names are duplicates without asking the scorer.
+            final Integer sameName = names.get(signature.nameKey);
+            if (sameName == null) {
+                names.put(signature.nameKey, index);
+            } else {
+                union(parents, sameName, index);
+            }
+
+            addToBlock(blocks, BLOCK_TOKENS, candidate.nameTokens, index);
+            addToBlock(blocks, BLOCK_PHONETIC, candidate.phoneticKey, index);
+            for (String key : new HashSet<>(signature.phoneKeys)) {
+                addToBlock(blocks, BLOCK_NUMBER, key, index);
+            }
+            for (String key : new HashSet<>(signature.emailBlockKeys)) {
+                addToBlock(blocks, BLOCK_EMAIL, key, index);
+            }
+            index++;
+        }
+
+        final float threshold = mScorer.getThreshold();
+        for (List<Integer> block : blocks.values()) {
+            if (block.size() < 2 || block.size() > MAX_BLOCK_SIZE) {
+                continue;
+            }
+            for (int i = 0; i < block.size(); i++) {
+                final int a = block.get(i);
+                for (int j = i + 1; j < block.size(); j++) {
+                    final int b = block.get(j);
+                    if (find(parents, a) == find(parents, b)) {
+                        continue;
+                    }
+                    mComparisons++;
+                    if (mScorer.score(candidates[a], candidates[b]) >= threshold) {
+                        union(parents, a, b);
+                    }
+                }
+            }
+        }
+
+        final HashMap<Integer, List<Long>> groups = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            final int root = find(parents, i);
+            List<Long> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<>(1);
+                groups.put(root, group);
+            }
+            group.add(candidates[i].signature.rawId);
+        }
+        final List<List<Long>> result = new ArrayList<>();
+        for (List<Long> group : groups.values()) {
+            if (group.size() >= 2) {
+                result.add(group);
+            }
+        }
+        return result;
+    }
+
+    private static void addToBlock(HashMap<String, List<Integer>> blocks, String prefix,
+            String key, int index) {
+        if (TextUtils.isEmpty(key)) {
+            return;
+        }
+        final String blockKey = prefix + key;
+        List<Integer> block = blocks.get(blockKey);
+        if (block == null) {
+            block = new ArrayList<>(1);
+            blocks.put(blockKey, block);
+        }
+        // stop growing blocks that will be skipped anyway.
+        if (block.size() <= MAX_BLOCK_SIZE) {
+            block.add(index);
+        }
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        final int rootA = find(parents, a);
+        final int rootB = find(parents, b);
+        if (rootA != rootB) {
+            parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    private static boolean intersects(List<String> a, List<String> b) {
+        for (String key : a) {
+            if (key != null && b.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the lower-cased letter and digit runs of the name in sorted order.
+     */
+    @VisibleForTesting
+    static String[] tokenize(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return new String[0];
+        }
+        final ArrayList<String> tokens = new ArrayList<>();
+        final String lower = name.toLowerCase(Locale.getDefault());
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            final boolean inToken = i < lower.length()
+                    && Character.isLetterOrDigit(lower.charAt(i));
+            if (inToken && start < 0) {
+                start = i;
+            } else if (!inToken && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        final String[] result = tokens.toArray(new String[tokens.size()]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * American Soundex of a latin token. Other tokens are returned unchanged so that they
+     * still block on the exact spelling.
+     */
+    @VisibleForTesting
+    static String soundex(String token) {
+        final char first = token.charAt(0);
+        if (first < 'a' || first > 'z') {
+            return token;
+        }
+        final StringBuilder code = new StringBuilder(4);
+        code.append(Character.toUpperCase(first));
+        char last = soundexDigit(first);
+        for (int i = 1; i < token.length() && code.length() < 4; i++) {
+            final char c = token.charAt(i);
+            final char digit = soundexDigit(c);
+            if (digit != '0' && digit != last) {
+                code.append(digit);
+            }
+            // h and w do not separate letters with the same code.
+            if (c != 'h' && c != 'w') {
+                last = digit;
+            }
+        }
+        while (code.length() < 4) {
+            code.append('0');
+        }
+        return code.toString();
+    }
+
+    private static char soundexDigit(char c) {
+        switch (c) {
+            case 'b': case 'f': case 'p': case 'v':
+                return '1';
+            case 'c': case 'g': case 'j': case 'k': case 'q': case 's': case 'x': case 'z':
+                return '2';
+            case 'd': case 't':
+                return '3';
+            case 'l':
+                return '4';
+            case 'm': case 'n':
+                return '5';
+            case 'r':
+                return '6';
+            default:
+                return '0';
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.common.SimContactsOperation;
+import com.android.contacts.util.DuplicateSignatureStore.Signature;
+import com.android.contacts.util.DuplicatesUtils.ContactsInfo;
+import com.android.contacts.util.DuplicatesUtils.MergeContacts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Incremental duplicate detection for one account at a time.
+ *
+ * For every account the engine issues one narrow {@link RawContacts} query for id, contact
+ * id, version and name. Raw contacts whose version matches the {@link DuplicateSignatureStore}
+ * of the account are taken from the store; only new or changed ones are reread through a
+ * {@link RawContactsEntity} query that is consumed row by row. Lookup keys and display names
+ * of the duplicate groups come from one bulk {@link Contacts} query. Which raw contacts form
+ * a group is decided in memory by a {@link DuplicateCandidateFinder}. Id lists are split into
+ * chunks of {@link #MAX_IDS_PER_QUERY} so that the selection stays bounded for very large
+ * address books.
+ */
+public class DuplicateScanEngine {
+    private static final String TAG = "DuplicateScanEngine";
+
+    /** Upper bound of ids placed into a single IN (...) selection. */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final String[] RAW_CONTACTS_PROJECTION = new String[] {
+            RawContacts._ID,
+            RawContacts.CONTACT_ID,
+            RawContacts.VERSION,
+            RawContacts.DISPLAY_NAME_PRIMARY,
+    };
+    private static final int RAW_CONTACT_ID = 0;
+    private static final int RAW_CONTACT_CONTACT_ID = 1;
+    private static final int RAW_CONTACT_VERSION = 2;
+    private static final int RAW_CONTACT_DISPLAY_NAME = 3;
+
+    private static final String[] ENTITY_PROJECTION = new String[] {
+            RawContactsEntity._ID,
+            RawContactsEntity.DATA_ID,
+            RawContactsEntity.MIMETYPE,
+            RawContactsEntity.DATA1,
+    };
+    private static final int ENTITY_RAW_CONTACT_ID = 0;
+    private static final int ENTITY_DATA_ID = 1;
+    private static final int ENTITY_MIMETYPE = 2;
+    private static final int ENTITY_DATA1 = 3;
+
+    private static final String[] CONTACTS_PROJECTION = new String[] {
+            Contacts._ID,
+            Contacts.LOOKUP_KEY,
+            Contacts.DISPLAY_NAME_PRIMARY,
+    };
+    private static final int CONTACT_ID = 0;
+    private static final int CONTACT_LOOKUP_KEY = 1;
+    private static final int CONTACT_DISPLAY_NAME = 2;
+
+    /**
+     * Receives progress from the engine and tells it when to stop.
+     */
+    public interface Callback {
+        /** @return true if the scan should stop as soon as possible. */
+        boolean isCancelled();
+
+        /** Called after the signatures of some raw contacts are known. */
+        void onRawContactsScanned(int count);
+    }
+
+    /**
+     * Counters describing the cost of a scan.
+     */
+    public static class ScanStats {
+        private int mQueryCount;
+        private int mRowCount;
+        private int mRereadCount;
+        private int mComparisonCount;
+        private long mElapsedMillis;
+
+        /** @return number of provider round trips. */
+        public int getQueryCount() {
+            return mQueryCount;
+        }
+
+        /** @return number of cursor rows read. */
+        public int getRowCount() {
+            return mRowCount;
+        }
+
+        /** @return number of raw contacts that were not up to date in the signature store. */
+        public int getRereadCount() {
+            return mRereadCount;
+        }
+
+        /** @return number of raw contact pairs that were scored. */
+        public int getComparisonCount() {
+            return mComparisonCount;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "queries=" + mQueryCount + " rows=" + mRowCount + " reread=" + mRereadCount
+                    + " compared=" + mComparisonCount + " elapsed=" + mElapsedMillis + "ms";
+        }
+    }
+
+    /** Current state of one raw contact as read from the RawContacts table. */
+    private static class RawRow {
+        final long rawId;
+        final long contactId;
+        final int version;
+        final String nameKey;
+
+        RawRow(long rawId, long contactId, int version, String nameKey) {
+            this.rawId = rawId;
+            this.contactId = contactId;
+            this.version = version;
+            this.nameKey = nameKey;
+        }
+    }
+
+    private static final Comparator<RawRow> NEWEST_FIRST = new Comparator<RawRow>() {
+        @Override
+        public int compare(RawRow lhs, RawRow rhs) {
+            return lhs.rawId < rhs.rawId ? 1 : (lhs.rawId == rhs.rawId ? 0 : -1);
+        }
+    };
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Callback mCallback;
+    private final ScanStats mStats = new ScanStats();
+    private SimContactsOperation mSimContactsOperation;
+    private DuplicateCandidateFinder.Scorer mScorer = DuplicateCandidateFinder.DEFAULT_SCORER;
+
+    public DuplicateScanEngine(Context context, ContentResolver resolver, Callback callback) {
+        mContext = context;
+        mResolver = resolver;
+        mCallback = callback;
+    }
+
+    public ScanStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Replaces the function that decides whether two raw contacts are duplicates.
+     */
+    public void setScorer(DuplicateCandidateFinder.Scorer scorer) {
+        mScorer = scorer;
+    }
+
+    /**
+     * Finds the duplicate groups of one account.
+     *
+     * @return the groups found, or null if the scan was cancelled.
+     */
+    public ArrayList<MergeContacts> scanAccount(Account account) {
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            return doScanAccount(account);
+        } finally {
+            mStats.mElapsedMillis += SystemClock.elapsedRealtime() - start;
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "scanned " + account.type + ": " + mStats);
+            }
+        }
+    }
+
+    private ArrayList<MergeContacts> doScanAccount(Account account) {
+        final ArrayList<MergeContacts> result = new ArrayList<>();
+        final ArrayList<RawRow> rows = queryRawContacts(account);
+        if (rows == null) {
+            return result;
+        }
+
+        final DuplicateSignatureStore store = DuplicateSignatureStore.load(mContext, account);
+        final HashSet<Long> rawIds = new HashSet<>(rows.size());
+        final ArrayList<RawRow> stale = new ArrayList<>();
+        for (RawRow row : rows) {
+            rawIds.add(row.rawId);
+            final Signature signature = store.get(row.rawId);
+            if (signature == null || signature.version != row.version) {
+                stale.add(row);
+            } else {
+                // the store does not keep names.
+                signature.nameKey = row.nameKey;
+            }
+        }
+        store.retainAll(rawIds);
+        mStats.mRereadCount += stale.size();
+        mCallback.onRawContactsScanned(rows.size() - stale.size());
+
+        final boolean complete = readSignatures(stale, store, true);
+        // keep what was read even if cancelled, the next scan starts from there.
+        store.save();
+        if (!complete) {
+            return null;
+        }
+
+        // regroup in memory, unchanged raw contacts are not reread.
+        final HashMap<Long, RawRow> current = new HashMap<>(rows.size());
+        final ArrayList<Signature> signatures = new ArrayList<>(rows.size());
+        for (RawRow row : rows) {
+            final Signature signature = store.get(row.rawId);
+            if (signature == null) {
+                // deleted between the two queries.
+                continue;
+            }
+            current.put(row.rawId, row);
+            signatures.add(signature);
+        }
+        final DuplicateCandidateFinder finder = new DuplicateCandidateFinder(mScorer);
+        final List<List<Long>> candidateGroups = finder.findGroups(signatures);
+        mStats.mComparisonCount += finder.getComparisonCount();
+
+        final ArrayList<List<RawRow>> groups = new ArrayList<>(candidateGroups.size());
+        final HashSet<Long> contactIds = new HashSet<>();
+        final ArrayList<RawRow> withoutDetails = new ArrayList<>();
+        for (List<Long> rawIdGroup : candidateGroups) {
+            final ArrayList<RawRow> group = new ArrayList<>(rawIdGroup.size());
+            for (Long rawId : rawIdGroup) {
+                final RawRow row = current.get(rawId);
+                group.add(row);
+                contactIds.add(row.contactId);
+                if (!store.get(rawId).hasDetails()) {
+                    withoutDetails.add(row);
+                }
+            }
+            groups.add(group);
+        }
+        if (contactIds.isEmpty()) {
+            return result;
+        }
+        // numbers and emails are not kept on disk, reread them for the grouped raw contacts.
+        if (!readSignatures(withoutDetails, store, false)) {
+            return null;
+        }
+        final HashMap<Long, String[]> contacts = queryContacts(contactIds);
+        if (contacts == null) {
+            return null;
+        }
+
+        final boolean isSimAccount = SimContactsConstants.ACCOUNT_TYPE_SIM.equals(account.type);
+        for (List<RawRow> group : groups) {
+            if (mCallback.isCancelled()) {
+                return null;
+            }
+            // the newest raw contact comes first and will be kept when merging.
+            Collections.sort(group, NEWEST_FIRST);
+            final MergeContacts mergeContacts = buildGroup(account, isSimAccount, group, store,
+                    contacts);
+            if (mergeContacts != null) {
+                result.add(mergeContacts);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the current raw contacts of the account, or null if the query failed.
+     */
+    private ArrayList<RawRow> queryRawContacts(Account account) {
+        final String selection = RawContacts.DELETED + "=0 AND "
+                + RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?";
+        final Cursor cursor = mResolver.query(RawContacts.CONTENT_URI, RAW_CONTACTS_PROJECTION,
+                selection, new String[] {account.name, account.type}, null);
+        mStats.mQueryCount++;
+        if (cursor == null) {
+            return null;
+        }
+        final ArrayList<RawRow> rows = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                mStats.mRowCount++;
+                String name = cursor.getString(RAW_CONTACT_DISPLAY_NAME);
+                if (!TextUtils.isEmpty(name)) {
+                    name = name.toLowerCase();
+                }
+                rows.add(new RawRow(cursor.getLong(RAW_CONTACT_ID),
+                        cursor.getLong(RAW_CONTACT_CONTACT_ID),
+                        cursor.getInt(RAW_CONTACT_VERSION), name));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Streams the entity rows of the given raw contacts and stores a fresh signature for each
+     * of them.
+     *
+     * @param reportProgress whether the raw contacts count as scanned once read.
+     * @return false if the scan was cancelled before all raw contacts were read.
+     */
+    private boolean readSignatures(List<RawRow> rows, DuplicateSignatureStore store,
+            boolean reportProgress) {
+        for (int start = 0; start < rows.size(); start += MAX_IDS_PER_QUERY) {
+            if (mCallback.isCancelled()) {
+                return false;
+            }
+            final List<RawRow> chunk = rows.subList(start,
+                    Math.min(start + MAX_IDS_PER_QUERY, rows.size()));
+            final HashMap<Long, RawRow> chunkRows = new HashMap<>(chunk.size());
+            for (RawRow row : chunk) {
+                chunkRows.put(row.rawId, row);
+            }
+            final Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI,
+                    ENTITY_PROJECTION, RawContactsEntity._ID + " IN ("
+                            + TextUtils.join(",", chunkRows.keySet()) + ")",
+                    null, RawContactsEntity._ID);
+            mStats.mQueryCount++;
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                Signature signature = null;
+                while (cursor.moveToNext()) {
+                    mStats.mRowCount++;
+                    final long rawId = cursor.getLong(ENTITY_RAW_CONTACT_ID);
+                    // rows are sorted by raw contact id, so a new id starts a new signature.
+                    if (signature == null || signature.rawId != rawId) {
+                        final RawRow row = chunkRows.get(rawId);
+                        signature = store.newSignature(rawId, row.version);
+                        signature.nameKey = row.nameKey;
+                        store.put(signature);
+                    }
+                    final String mimeType = cursor.getString(ENTITY_MIMETYPE);
+                    if (CommonDataKinds.Photo.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                        signature.photoId = cursor.getLong(ENTITY_DATA_ID);
+                    } else if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                        signature.addPhone(cursor.getString(ENTITY_DATA1));
+                    } else if (CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                        signature.addEmail(cursor.getString(ENTITY_DATA1));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (reportProgress) {
+                mCallback.onRawContactsScanned(chunk.size());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return lookup key and display name keyed by contact id, read with one query per chunk.
+     */
+    private HashMap<Long, String[]> queryContacts(Collection<Long> ids) {
+        final ArrayList<Long> contactIds = new ArrayList<>(ids);
+        final HashMap<Long, String[]> contacts = new HashMap<>(contactIds.size());
+        for (int start = 0; start < contactIds.size(); start += MAX_IDS_PER_QUERY) {
+            if (mCallback.isCancelled()) {
+                return null;
+            }
+            final List<Long> chunk = contactIds.subList(start,
+                    Math.min(start + MAX_IDS_PER_QUERY, contactIds.size()));
+            final Cursor cursor = mResolver.query(Contacts.CONTENT_URI, CONTACTS_PROJECTION,
+                    Contacts._ID + " IN (" + TextUtils.join(",", chunk) + ")", null, null);
+            mStats.mQueryCount++;
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    mStats.mRowCount++;
+                    contacts.put(cursor.getLong(CONTACT_ID), new String[] {
+                            cursor.getString(CONTACT_LOOKUP_KEY),
+                            cursor.getString(CONTACT_DISPLAY_NAME)});
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return contacts;
+    }
+
+    private MergeContacts buildGroup(Account account, boolean isSimAccount, List<RawRow> rows,
+            DuplicateSignatureStore store, HashMap<Long, String[]> contacts) {
+        final ArrayList<ContactsInfo> infos = new ArrayList<>(rows.size());
+        final PhoneNumberIndex mergePhones = new PhoneNumberIndex();
+        final List<String> mergeEmailList = new ArrayList<>();
+        long contactId = -1;
+        for (RawRow row : rows) {
+            final Signature signature = store.get(row.rawId);
+            for (String phone : signature.phones) {
+                if (!TextUtils.isEmpty(phone)) {
+                    mergePhones.add(phone);
+                }
+            }
+            for (String email : signature.emails) {
+                if (!mergeEmailList.contains(email)) {
+                    mergeEmailList.add(email);
+                }
+            }
+            final String[] contact = contacts.get(row.contactId);
+            if (contact == null) {
+                continue;
+            }
+            contactId = row.contactId;
+            infos.add(new ContactsInfo(row.contactId, contact[0], signature.photoId, contact[1],
+                    new ArrayList<>(signature.phones), new ArrayList<>(signature.emails),
+                    row.rawId));
+        }
+        if (infos.size() < 2) {
+            return null;
+        }
+        // for sim contacts, analyse if it can be merged.
+        if (isSimAccount && contactId != -1) {
+            if (mSimContactsOperation == null) {
+                mSimContactsOperation = new SimContactsOperation(mContext);
+            }
+            final int subscription = mSimContactsOperation.getSimSubscription(contactId);
+            mStats.mQueryCount++;
+            final SimCapacityCache.Capacity capacity =
+                    SimCapacityCache.getInstance(mContext).get(subscription);
+            if (mergePhones.size() > capacity.anrPerContact + 1
+                    || mergeEmailList.size() > capacity.emailPerContact) {
+                return null;
+            }
+        }
+        return new MergeContacts(account.name, account.type, infos);
+    }
+}
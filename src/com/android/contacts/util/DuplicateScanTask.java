@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.contacts.util.DuplicatesUtils.MergeContacts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches duplicate contacts of several accounts in parallel.
+ *
+ * Every account (phone, each SIM, each sync account) is scanned by its own
+ * {@link DuplicateScanEngine} on a bounded pool. The scan can be cancelled at any time and
+ * reports {@link Progress} events on the main thread. The result lists the groups in the
+ * order of the accounts that were passed in, whatever order the accounts finish in.
+ */
+public class DuplicateScanTask {
+    private static final String TAG = "DuplicateScanTask";
+
+    private static final int MAX_THREADS = 3;
+
+    /**
+     * Snapshot of the scan progress.
+     */
+    public static class Progress {
+        public final int accountsDone;
+        public final int accountsTotal;
+        public final int groupsFound;
+        /** Raw contacts whose duplicate check has finished. */
+        public final int rawContactsScanned;
+        /** Cursor rows read from the provider so far. */
+        public final int rowsRead;
+
+        Progress(int accountsDone, int accountsTotal, int groupsFound, int rawContactsScanned,
+                int rowsRead) {
+            this.accountsDone = accountsDone;
+            this.accountsTotal = accountsTotal;
+            this.groupsFound = groupsFound;
+            this.rawContactsScanned = rawContactsScanned;
+            this.rowsRead = rowsRead;
+        }
+    }
+
+    /**
+     * Receives the events of the scan on the main thread. Nothing is delivered once the task
+     * is cancelled.
+     */
+    public interface Listener {
+        void onProgress(Progress progress);
+
+        void onComplete(ArrayList<MergeContacts> mergeContacts);
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final List<Account> mAccounts;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicBoolean mCancelled = new AtomicBoolean();
+    private final AtomicBoolean mProgressPending = new AtomicBoolean();
+    private final AtomicInteger mAccountsDone = new AtomicInteger();
+    private final AtomicInteger mGroupsFound = new AtomicInteger();
+    private final AtomicInteger mRawContactsScanned = new AtomicInteger();
+    private final AtomicInteger mRowsRead = new AtomicInteger();
+
+    private final ArrayList<MergeContacts>[] mResults;
+    private ExecutorService mExecutor;
+
+    @SuppressWarnings("unchecked")
+    public DuplicateScanTask(Context context, List<Account> accounts, Listener listener) {
+        mContext = context.getApplicationContext();
+        mResolver = context.getContentResolver();
+        mAccounts = new ArrayList<>(accounts);
+        mListener = listener;
+        mResults = new ArrayList[mAccounts.size()];
+    }
+
+    public void start() {
+        if (mAccounts.isEmpty()) {
+            deliverComplete();
+            return;
+        }
+        mExecutor = Executors.newFixedThreadPool(Math.min(MAX_THREADS, mAccounts.size()));
+        for (int i = 0; i < mAccounts.size(); i++) {
+            final int index = i;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scanAccount(index);
+                }
+            });
+        }
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Stops the scan. Running engines return at their next check point.
+     */
+    public void cancel() {
+        mCancelled.set(true);
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled.get();
+    }
+
+    private void scanAccount(int index) {
+        if (mCancelled.get()) {
+            return;
+        }
+        final Account account = mAccounts.get(index);
+        try {
+            final DuplicateScanEngine engine = new DuplicateScanEngine(mContext, mResolver,
+                    new DuplicateScanEngine.Callback() {
+                        @Override
+                        public boolean isCancelled() {
+                            return mCancelled.get();
+                        }
+
+                        @Override
+                        public void onRawContactsScanned(int count) {
+                            mRawContactsScanned.addAndGet(count);
+                            postProgress();
+                        }
+                    });
+            final ArrayList<MergeContacts> groups = engine.scanAccount(account);
+            mRowsRead.addAndGet(engine.getStats().getRowCount());
+            if (groups == null || mCancelled.get()) {
+                return;
+            }
+            Log.d(TAG, "account " + index + " done: " + engine.getStats());
+            mGroupsFound.addAndGet(groups.size());
+            synchronized (mResults) {
+                mResults[index] = groups;
+            }
+        } catch (RuntimeException e) {
+            // the other accounts still complete, this one just finds nothing.
+            Log.e(TAG, "Failed to scan account " + index, e);
+        } finally {
+            if (!mCancelled.get()) {
+                postProgress();
+                if (mAccountsDone.incrementAndGet() == mAccounts.size()) {
+                    deliverComplete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Posts a progress event unless one is already waiting to be delivered.
+     */
+    private void postProgress() {
+        if (!mProgressPending.compareAndSet(false, true)) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mProgressPending.set(false);
+                if (!mCancelled.get()) {
+                    mListener.onProgress(new Progress(mAccountsDone.get(), mAccounts.size(),
+                            mGroupsFound.get(), mRawContactsScanned.get(), mRowsRead.get()));
+                }
+            }
+        });
+    }
+
+    private void deliverComplete() {
+        final ArrayList<MergeContacts> merged = new ArrayList<>();
+        synchronized (mResults) {
+            for (ArrayList<MergeContacts> groups : mResults) {
+                if (groups != null) {
+                    merged.addAll(groups);
+                }
+            }
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled.get()) {
+                    mListener.onComplete(merged);
+                }
+            }
+        });
+    }
+}
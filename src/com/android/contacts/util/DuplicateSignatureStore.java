@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * On-disk cache of the duplicate signature of every raw contact of one account.
+ *
+ * A signature holds what the duplicate search needs to know about a raw contact (name key,
+ * numbers, emails and their keys, photo) together with the {@code RawContacts.VERSION} it was
+ * read at. A later scan only rereads raw contacts whose version changed.
+ *
+ * Only the version, the photo id and HMACs of the number and email keys are written to
+ * disk. The HMAC key is random per install and kept in the no-backup files directory, so the
+ * short number keys cannot be recovered by hashing every candidate. The name key comes with
+ * every scan's raw contacts query, and numbers and emails are reread from the provider for
+ * the raw contacts that end up in a duplicate group.
+ */
+public class DuplicateSignatureStore {
+    private static final String TAG = "DuplicateSignatureStore";
+
+    private static final String DIRECTORY = "duplicate_signatures";
+    private static final String KEY_FILE = "duplicate_signature_key";
+    private static final int FORMAT_VERSION = 3;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_BYTES = 32;
+    /** Leading bytes of the HMAC kept per key. */
+    private static final int HASH_BYTES = 12;
+
+    private static byte[] sKey;
+
+    /**
+     * Duplicate-relevant data of one raw contact.
+     */
+    public static class Signature {
+        public final long rawId;
+        public final int version;
+        public String nameKey;
+        public long photoId;
+        /** Numbers and emails, empty for signatures read from disk. */
+        public final ArrayList<String> phones = new ArrayList<>();
+        public final ArrayList<String> emails = new ArrayList<>();
+        /** Hashed min-match keys of the numbers. */
+        public final ArrayList<String> phoneKeys = new ArrayList<>();
+        /** Hashed normalized emails. */
+        public final ArrayList<String> emailKeys = new ArrayList<>();
+        /** Hashed local parts of the normalized emails. */
+        public final ArrayList<String> emailBlockKeys = new ArrayList<>();
+        private final Mac mMac;
+        private boolean mFromDisk;
+
+        @VisibleForTesting
+        Signature(long rawId, int version, Mac mac) {
+            this.rawId = rawId;
+            this.version = version;
+            mMac = mac;
+        }
+
+        public void addPhone(String phone) {
+            phones.add(phone);
+            phoneKeys.add(phone == null ? null
+                    : hashKey(mMac, PhoneNumberIndex.getMatchKey(phone)));
+        }
+
+        public void addEmail(String email) {
+            emails.add(email);
+            final String key = email == null ? null : email.trim().toLowerCase(Locale.ROOT);
+            emailKeys.add(hashKey(mMac, key));
+            emailBlockKeys.add(hashKey(mMac, getLocalPart(key)));
+        }
+
+        /**
+         * @return false if the numbers and emails have to be reread from the provider.
+         */
+        public boolean hasDetails() {
+            return !mFromDisk;
+        }
+    }
+
+    private final Account mAccount;
+    private final AtomicFile mFile;
+    private final Mac mMac;
+    private final HashMap<Long, Signature> mSignatures = new HashMap<>();
+    private boolean mDirty;
+
+    private DuplicateSignatureStore(Context context, Account account) {
+        mAccount = account;
+        final File dir = new File(context.getCacheDir(), DIRECTORY);
+        mMac = newMac(getKey(context, dir));
+        dir.mkdirs();
+        mFile = new AtomicFile(new File(dir, Integer.toHexString(
+                (account.type + '/' + account.name).hashCode())));
+    }
+
+    /**
+     * Reads the store of the account. An unreadable or missing file gives an empty store.
+     */
+    public static DuplicateSignatureStore load(Context context, Account account) {
+        final DuplicateSignatureStore store = new DuplicateSignatureStore(context, account);
+        store.read();
+        return store;
+    }
+
+    /**
+     * @return an empty signature whose keys are hashed with the key of this store.
+     */
+    public Signature newSignature(long rawId, int version) {
+        return new Signature(rawId, version, mMac);
+    }
+
+    public Signature get(long rawId) {
+        return mSignatures.get(rawId);
+    }
+
+    public void put(Signature signature) {
+        mSignatures.put(signature.rawId, signature);
+        mDirty = true;
+    }
+
+    public int size() {
+        return mSignatures.size();
+    }
+
+    /**
+     * Drops the signatures of raw contacts that no longer exist.
+     */
+    public void retainAll(Set<Long> rawIds) {
+        final Iterator<Long> iterator = mSignatures.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!rawIds.contains(iterator.next())) {
+                iterator.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the store if anything changed since it was loaded.
+     */
+    public void save() {
+        if (!mDirty) {
+            return;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(mAccount.type);
+            out.writeUTF(mAccount.name);
+            out.writeInt(mSignatures.size());
+            for (Map.Entry<Long, Signature> entry : mSignatures.entrySet()) {
+                final Signature signature = entry.getValue();
+                out.writeLong(signature.rawId);
+                out.writeInt(signature.version);
+                out.writeLong(signature.photoId);
+                writeStrings(out, signature.phoneKeys);
+                writeStrings(out, signature.emailKeys);
+                writeStrings(out, signature.emailBlockKeys);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write signatures", e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    private void read() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != FORMAT_VERSION) {
+                // older formats held numbers and emails in clear or unkeyed, drop them.
+                in.close();
+                in = null;
+                mFile.delete();
+                return;
+            }
+            if (!mAccount.type.equals(in.readUTF()) || !mAccount.name.equals(in.readUTF())) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final Signature signature = newSignature(in.readLong(), in.readInt());
+                signature.mFromDisk = true;
+                signature.photoId = in.readLong();
+                readStrings(in, signature.phoneKeys);
+                readStrings(in, signature.emailKeys);
+                readStrings(in, signature.emailBlockKeys);
+                mSignatures.put(signature.rawId, signature);
+            }
+        } catch (FileNotFoundException e) {
+            // first scan of this account.
+        } catch (IOException e) {
+            Log.w(TAG, "discarding unreadable signatures", e);
+            mSignatures.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, ArrayList<String> values)
+            throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static void readStrings(DataInputStream in, ArrayList<String> values)
+            throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            values.add(readString(in));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static String getLocalPart(String email) {
+        if (email == null) {
+            return null;
+        }
+        final int at = email.indexOf('@');
+        return at < 0 ? email : email.substring(0, at);
+    }
+
+    /**
+     * @return the HMAC key of this install, created on first use. Signatures hashed with a
+     *         lost key can never match again, so a new key also drops all stored signatures.
+     */
+    private static synchronized byte[] getKey(Context context, File signatureDir) {
+        if (sKey != null) {
+            return sKey;
+        }
+        final AtomicFile file = new AtomicFile(
+                new File(context.getNoBackupFilesDir(), KEY_FILE));
+        try {
+            final byte[] key = file.readFully();
+            if (key.length == KEY_BYTES) {
+                sKey = key;
+                return sKey;
+            }
+        } catch (IOException e) {
+            // no key yet.
+        }
+        final byte[] key = new byte[KEY_BYTES];
+        new SecureRandom().nextBytes(key);
+        final File[] files = signatureDir.listFiles();
+        if (files != null) {
+            for (File stale : files) {
+                stale.delete();
+            }
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            fos.write(key);
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            // the key still serves this process, signatures are rebuilt with a new one later.
+            Log.w(TAG, "failed to write signature key", e);
+            file.failWrite(fos);
+        }
+        sKey = key;
+        return sKey;
+    }
+
+    @VisibleForTesting
+    static Mac newMac(byte[] key) {
+        try {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a hex HMAC of the key, so that equal keys still match without the key itself
+     *         being stored or recoverable without the install's secret.
+     */
+    @VisibleForTesting
+    static String hashKey(Mac mac, String key) {
+        if (key == null) {
+            return null;
+        }
+        final byte[] hash = mac.doFinal(key.getBytes(StandardCharsets.UTF_8));
+        final StringBuilder sb = new StringBuilder(HASH_BYTES * 2);
+        for (int i = 0; i < HASH_BYTES; i++) {
+            sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16))
+                    .append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -29,27 +29,18 @@
 
 package com.android.contacts.util;
 
-import android.accounts.Account;
-import android.app.ProgressDialog;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.Entity;
 import android.content.EntityIterator;
 import android.database.Cursor;
 import android.provider.ContactsContract.CommonDataKinds;
-import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContactsEntity;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
-import com.android.contacts.common.MoreContactUtils;
-import com.android.contacts.common.SimContactsConstants;
-import com.android.contacts.common.SimContactsOperation;
-
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -75,56 +66,6 @@ public class DuplicatesUtils {
 
     private static ArrayList<MergeContacts> mMergeRawContacts;
 
-    private static ProgressDialog mProgressDialog;
-
-    public static boolean mSearchState = false;
-
-    public static boolean mMergeState = false;
-
-    private static final String[] RAWCONTACTS_NAME_ID_PROJECTION = new String[]{
-            RawContacts.DISPLAY_NAME_PRIMARY, RawContacts._ID};
-
-    private static final String[] CONTACTS_PROJECTION = new String[]{Contacts.LOOKUP_KEY,
-            Contacts.DISPLAY_NAME_PRIMARY};
-
-    /**
-     * get rawContacts with name and ids.
-     *
-     * @return the HashMap with key contact name and value rawContact ids.
-     */
-    public static HashMap<String, List<Long>> getRawNameWithIds(ContentResolver resolver,
-        String[] accountArgs) {
-        HashMap map = new HashMap();
-        String selection = RawContacts.DELETED + "= 0 AND "
-                + SimContactsConstants.ACCOUNT_NAME + "=? " + "AND "
-                + SimContactsConstants.ACCOUNT_TYPE + "=?";
-        Cursor cursor = resolver.query(RawContacts.CONTENT_URI,
-                RAWCONTACTS_NAME_ID_PROJECTION, selection, accountArgs, null);
-        if (cursor == null) {
-            return map;
-        }
-        while (cursor.moveToNext()) {
-            String name = cursor.getString(cursor.getColumnIndex(RawContacts
-                    .DISPLAY_NAME_PRIMARY));
-            long l = cursor.getLong(cursor.getColumnIndex(RawContacts._ID));
-            if (!TextUtils.isEmpty(name)) {
-                name = name.toLowerCase();
-            }
-            List lst = (List) map.get(name);
-            if (lst == null) {
-                lst = new ArrayList();
-                lst.add(Long.valueOf(l));
-                map.put(name, lst);
-            } else {
-                lst.add(Long.valueOf(l));
-            }
-        }
-        if (cursor != null) {
-            cursor.close();
-        }
-        return map;
-    }
-
     public static EntityIterator getEntityByIds(ContentResolver resolver, List<Long> ids) {
         Cursor cursor = resolver.query(RawContactsEntity.CONTENT_URI, null, RawContactsEntity._ID
                     .concat(" IN (" + TextUtils.join(",", ids) + ")"), null,
@@ -147,144 +88,6 @@ public class DuplicatesUtils {
         return iterator;
     }
 
-    /**
-     * calculate duplicate contacts which will be shown in UI.
-     * @return true if it calculates completely.
-     */
-    public static boolean calculateMergeRawContacts(Context context, List<Account> accounts,
-        ContentResolver resolver) {
-        SimContactsOperation simContactsOperation = new SimContactsOperation(context);
-        mMergeRawContacts = new ArrayList<>();
-        int count = 0;
-        // contacts in different accounts are separated.
-        for (int i = 0; i < accounts.size() && mSearchState; i++) {
-            Account account = accounts.get(i);
-            HashMap<String, List<Long>> map = DuplicatesUtils.getRawNameWithIds(resolver,
-                    new String[]{account.name, account.type});
-            if (map != null && map.size() > 0) {
-                ArrayList<ContactsInfo> lst1;
-                Iterator<String> iterator = map.keySet().iterator();
-                while (mSearchState && iterator.hasNext()) {
-                    List<String> mergePhoneList = new ArrayList();
-                    List<String> mergeEmailList = new ArrayList();
-                    long contactId = -1;
-                    lst1 = new ArrayList<>();
-                    String keyName = iterator.next();
-                    List<Long> lst = map.get(keyName);
-                    if (lst.size() >= 2) {
-                        EntityIterator entityIterator = DuplicatesUtils.getEntityByIds(resolver,
-                                lst);
-                        if (entityIterator == null) {
-                            continue;
-                        }
-                        try {
-                            while (entityIterator.hasNext()) {
-                                ArrayList<String> phoneList = new ArrayList<>();
-                                ArrayList<String> emailList = new ArrayList<>();
-                                long photoId = 0;
-                                Entity next1 = entityIterator.next();
-                                ContentValues values = next1.getEntityValues();
-                                Long rawId = values.getAsLong(RawContacts._ID);
-                                String id = values.getAsString(RawContacts.CONTACT_ID);
-                                if (!TextUtils.isEmpty(id)) {
-                                    contactId = Long.parseLong(id);
-                                }
-                                Iterator<Entity.NamedContentValues> namedContentValuesIterator =
-                                        next1.getSubValues().iterator();
-                                while (namedContentValuesIterator.hasNext()) {
-                                    ContentValues values1 = namedContentValuesIterator
-                                            .next().values;
-                                    String mimeType = values1.getAsString(Data.MIMETYPE);
-                                    if (CommonDataKinds.StructuredName
-                                            .CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        continue;
-                                    }
-                                    if (CommonDataKinds.Photo.CONTENT_ITEM_TYPE
-                                            .equals(mimeType)) {
-                                        photoId = values1.getAsLong(CommonDataKinds.Photo._ID)
-                                                .longValue();
-                                        continue;
-                                    }
-                                    if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        String data1 = values1
-                                                .getAsString(CommonDataKinds.Phone.DATA1);
-                                        phoneList.add(data1);
-                                        if (!TextUtils.isEmpty(data1)
-                                                && !mergePhoneList.contains(data1)) {
-                                            boolean contains = false;
-                                            for (int j = 0; j < mergePhoneList.size(); j++) {
-                                                if (PhoneNumberUtils.compare(data1,
-                                                        mergePhoneList.get(j))) {
-                                                    contains = true;
-                                                    break;
-                                                }
-                                            }
-                                            if (!contains) {
-                                                mergePhoneList.add(data1);
-                                            }
-                                            continue;
-                                        }
-                                    }
-                                    if (CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        String email = values1
-                                                .getAsString(CommonDataKinds.Email.DATA1);
-                                        emailList.add(email);
-                                        if (!mergeEmailList.contains(email)) {
-                                            mergeEmailList.add(email);
-                                        }
-                                        continue;
-                                    }
-                                }
-                                Cursor cursor = resolver.query(Contacts.CONTENT_URI,
-                                        CONTACTS_PROJECTION, Contacts._ID.concat(" = ?"),
-                                        new String[]{String.valueOf(contactId)}, null);
-
-                                if (cursor != null && cursor.moveToNext()) {
-                                    String lookUp = cursor.getString(cursor
-                                            .getColumnIndex(Contacts.LOOKUP_KEY));
-                                    String displayName = cursor.getString(cursor.getColumnIndex(
-                                            Contacts.DISPLAY_NAME_PRIMARY));
-                                    lst1.add(new ContactsInfo(contactId, lookUp, photoId,
-                                            displayName, phoneList, emailList, rawId));
-                                    cursor.close();
-                                }
-                            }
-                        } finally {
-                            if (entityIterator != null) {
-                                entityIterator.close();
-                            }
-                        }
-                        // for sim contacts, analyse if it can be merged.
-                        if (contactId != -1
-                                && account.type.equals(SimContactsConstants.ACCOUNT_TYPE_SIM)) {
-                            int subscription = simContactsOperation.getSimSubscription(contactId);
-                            int oneSimAnrCount = MoreContactUtils.getOneSimAnrCount(
-                                    context, subscription);
-                            int oneSimEmailCount = MoreContactUtils
-                                    .getOneSimEmailCount(context, subscription);
-                            if (mergePhoneList.size() > oneSimAnrCount + 1
-                                    || mergeEmailList.size() > oneSimEmailCount) {
-                                continue;
-                            }
-                        }
-                        if (mMergeRawContacts != null) {
-                            mMergeRawContacts.add(
-                                new MergeContacts(account.name, account.type, lst1));
-                        }
-                    }
-                    count += lst.size();
-                    mProgressDialog.setProgress(count);
-                }
-            }
-        }
-        if (mSearchState) {
-            // search ended, change the flag.
-            mSearchState = false;
-            return true;
-        }
-        return false;
-    }
-
     private static void addData(HashMap<String, List<String>> map, String key, String value) {
         List<String> lst = map.get(key);
         if (lst == null) {
@@ -332,6 +135,8 @@ public class DuplicatesUtils {
         ContentResolver resolver, long sourceId, HashMap<String, List<String>> hashMap,
         ArrayList<Long> rawIds) {
         ArrayList<ContentProviderOperation> dataInsertOps = new ArrayList<>();
+        // numbers of the source contact and the ones added so far, built on first use.
+        PhoneNumberIndex numberIndex = null;
         EntityIterator entityIterator = null;
         try {
             entityIterator = getEntityByIds(resolver, rawIds);
@@ -364,17 +169,18 @@ public class DuplicatesUtils {
                         if (numberList == null) {
                             numberList = new ArrayList<>();
                         }
+                        if (numberIndex == null) {
+                            numberIndex = new PhoneNumberIndex(numberList);
+                        }
                         String data1 = values.getAsString(Data.DATA1);
                         // for numbers, it may have some different formats.
                         // compare the numbers if it has already been added in the list.
-                        boolean containsNumber = false;
-                        for (int i = 0; i < numberList.size(); i++) {
-                            if (PhoneNumberUtils.compare(data1, numberList.get(i))) {
-                                containsNumber = true;
-                                break;
-                            }
-                        }
-                        if (!containsNumber) {
+                        // the index does not hold null, which only matches another null.
+                        final List<String> added = hashMap.get(mimeType);
+                        final boolean isNew = data1 == null
+                                ? added == null || !added.contains(null)
+                                : numberIndex.add(data1);
+                        if (isNew) {
                             addData(hashMap, mimeType, data1);
                             List<String> list = hashMap.get(mimeType);
                             if (isSimAccount && list == null) {
@@ -535,8 +341,11 @@ public class DuplicatesUtils {
         return mMergeRawContacts;
     }
 
-    public static void setDialog(ProgressDialog dialog) {
-        mProgressDialog = dialog;
+    /**
+     * keep the result of a duplicate search until MergeContactActivity picks it up.
+     */
+    public static void setMergeRawContacts(ArrayList<MergeContacts> mergeRawContacts) {
+        mMergeRawContacts = mergeRawContacts;
     }
 
     public static void clearMergeRawContacts() {
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.Data;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Adds, removes and moves group members in bulk.
+ *
+ * The memberships involved are read once and diffed as sorted id arrays. Updates and deletes
+ * then name up to {@link #MAX_IDS_PER_OPERATION} rows each, so a move of thousands of
+ * contacts takes a handful of provider operations instead of one per contact. Inserts have
+ * to stay one per row. Operations are applied in batches of at most
+ * {@link #MAX_OPERATIONS_PER_BATCH}. A failed batch is applied again one operation at a time,
+ * so one bad row does not lose the rest of its batch. Updates and deletes may be applied
+ * twice and yield between operations so other writers are not locked out meanwhile. Inserts
+ * may not, so their batches have no yield points and are written all or nothing.
+ */
+public class GroupMembershipEngine {
+    private static final String TAG = "GroupMembershipEngine";
+
+    @VisibleForTesting
+    static final int MAX_IDS_PER_OPERATION = 500;
+    private static final int MAX_OPERATIONS_PER_BATCH = 400;
+
+    private static final String[] MEMBERSHIP_PROJECTION = new String[] {
+            Data._ID,
+            Data.RAW_CONTACT_ID,
+            Data.CONTACT_ID,
+            GroupMembership.GROUP_ROW_ID
+    };
+    private static final int COLUMN_DATA_ID = 0;
+    private static final int COLUMN_RAW_CONTACT_ID = 1;
+    private static final int COLUMN_CONTACT_ID = 2;
+    private static final int COLUMN_GROUP_ID = 3;
+
+    public interface Listener {
+        /**
+         * Called on the working thread after each batch.
+         */
+        void onProgress(int done, int total);
+
+        /**
+         * @return true to stop before the next batch.
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * Outcome of one bulk change.
+     */
+    public static class Result {
+        /** Membership rows inserted, updated or deleted. */
+        public final int changedCount;
+        /** Requested changes that were already in place, or had nothing to change. */
+        public final int skippedCount;
+        /** Requested changes lost to failed batches. */
+        public final int failedCount;
+        public final long elapsedMillis;
+
+        Result(int changedCount, int skippedCount, int failedCount, long elapsedMillis) {
+            this.changedCount = changedCount;
+            this.skippedCount = skippedCount;
+            this.failedCount = failedCount;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public float getRowsPerSecond() {
+            return elapsedMillis <= 0 ? 0f : changedCount * 1000f / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return changedCount + " changed, " + skippedCount + " skipped, " + failedCount
+                    + " failed in " + elapsedMillis + "ms, " + getRowsPerSecond() + " rows/s";
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Listener mListener;
+
+    /**
+     * @param listener gets progress and may cancel, can be null.
+     */
+    public GroupMembershipEngine(ContentResolver resolver, Listener listener) {
+        mResolver = resolver;
+        mListener = listener;
+    }
+
+    /**
+     * Moves the contacts from one group to another. Raw contacts of the contacts that are in
+     * the source group get their membership row pointed at the destination group, unless they
+     * already belong to it, in which case the source row is deleted.
+     */
+    public Result moveContacts(long[] contactIds, long srcGroupId, long destGroupId) {
+        final long start = SystemClock.elapsedRealtime();
+        final long[] sortedContactIds = sorted(contactIds);
+
+        // one read of both groups.
+        final LongList srcDataIds = new LongList();
+        final LongList srcRawContactIds = new LongList();
+        final LongList srcContactIds = new LongList();
+        final LongList destRawContactIds = new LongList();
+        final Cursor cursor = mResolver.query(Data.CONTENT_URI, MEMBERSHIP_PROJECTION,
+                Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + " IN (?,?)",
+                new String[] {
+                        GroupMembership.CONTENT_ITEM_TYPE,
+                        String.valueOf(srcGroupId),
+                        String.valueOf(destGroupId)
+                }, null);
+        if (cursor == null) {
+            return new Result(0, 0, contactIds.length, SystemClock.elapsedRealtime() - start);
+        }
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(COLUMN_GROUP_ID) == destGroupId) {
+                    destRawContactIds.add(cursor.getLong(COLUMN_RAW_CONTACT_ID));
+                } else if (Arrays.binarySearch(sortedContactIds,
+                        cursor.getLong(COLUMN_CONTACT_ID)) >= 0) {
+                    srcDataIds.add(cursor.getLong(COLUMN_DATA_ID));
+                    srcRawContactIds.add(cursor.getLong(COLUMN_RAW_CONTACT_ID));
+                    srcContactIds.add(cursor.getLong(COLUMN_CONTACT_ID));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // source rows minus those of raw contacts already in the destination.
+        final long[] inDest = sorted(destRawContactIds.toArray());
+        final LongList toUpdate = new LongList();
+        final LongList toDelete = new LongList();
+        for (int i = 0; i < srcDataIds.size(); i++) {
+            if (Arrays.binarySearch(inDest, srcRawContactIds.get(i)) >= 0) {
+                toDelete.add(srcDataIds.get(i));
+            } else {
+                toUpdate.add(srcDataIds.get(i));
+            }
+        }
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        final LongList rowCounts = new LongList();
+        final long[] updateIds = toUpdate.toArray();
+        for (int from = 0; from < updateIds.length; from += MAX_IDS_PER_OPERATION) {
+            final int to = Math.min(from + MAX_IDS_PER_OPERATION, updateIds.length);
+            operations.add(ContentProviderOperation.newUpdate(Data.CONTENT_URI)
+                    .withValue(GroupMembership.GROUP_ROW_ID, destGroupId)
+                    .withSelection(inSelection(Data._ID, updateIds, from, to), null)
+                    .withYieldAllowed(true)
+                    .build());
+            rowCounts.add(to - from);
+        }
+        final long[] deleteIds = toDelete.toArray();
+        for (int from = 0; from < deleteIds.length; from += MAX_IDS_PER_OPERATION) {
+            final int to = Math.min(from + MAX_IDS_PER_OPERATION, deleteIds.length);
+            operations.add(ContentProviderOperation.newDelete(Data.CONTENT_URI)
+                    .withSelection(inSelection(Data._ID, deleteIds, from, to), null)
+                    .withYieldAllowed(true)
+                    .build());
+            rowCounts.add(to - from);
+        }
+        final int rows = srcDataIds.size();
+        final int failed = apply(operations, rowCounts, rows);
+        final int notInSource = difference(sortedContactIds,
+                sorted(srcContactIds.toArray())).length;
+        final Result result = new Result(rows - failed, notInSource, failed,
+                SystemClock.elapsedRealtime() - start);
+        Log.d(TAG, "moved " + contactIds.length + " contacts from group " + srcGroupId
+                + " to " + destGroupId + ": " + result);
+        return result;
+    }
+
+    /**
+     * Adds the raw contacts to the group, skipping those that already belong to it.
+     */
+    public Result addRawContacts(long[] rawContactIds, long groupId) {
+        final long start = SystemClock.elapsedRealtime();
+        final long[] toAdd = difference(sorted(rawContactIds),
+                queryMembers(rawContactIds, groupId, COLUMN_RAW_CONTACT_ID));
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(toAdd.length);
+        final LongList rowCounts = new LongList();
+        for (int i = 0; i < toAdd.length; i++) {
+            operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValue(Data.RAW_CONTACT_ID, toAdd[i])
+                    .withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE)
+                    .withValue(GroupMembership.GROUP_ROW_ID, groupId)
+                    .build());
+            rowCounts.add(1);
+        }
+        final int failed = apply(operations, rowCounts, toAdd.length);
+        final Result result = new Result(toAdd.length - failed,
+                rawContactIds.length - toAdd.length, failed,
+                SystemClock.elapsedRealtime() - start);
+        Log.d(TAG, "added to group " + groupId + ": " + result);
+        return result;
+    }
+
+    /**
+     * Removes the raw contacts from the group.
+     */
+    public Result removeRawContacts(long[] rawContactIds, long groupId) {
+        final long start = SystemClock.elapsedRealtime();
+        final long[] dataIds = queryMembers(rawContactIds, groupId, COLUMN_DATA_ID);
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        final LongList rowCounts = new LongList();
+        for (int from = 0; from < dataIds.length; from += MAX_IDS_PER_OPERATION) {
+            final int to = Math.min(from + MAX_IDS_PER_OPERATION, dataIds.length);
+            operations.add(ContentProviderOperation.newDelete(Data.CONTENT_URI)
+                    .withSelection(inSelection(Data._ID, dataIds, from, to), null)
+                    .withYieldAllowed(true)
+                    .build());
+            rowCounts.add(to - from);
+        }
+        final int failed = apply(operations, rowCounts, dataIds.length);
+        final Result result = new Result(dataIds.length - failed,
+                Math.max(rawContactIds.length - dataIds.length, 0), failed,
+                SystemClock.elapsedRealtime() - start);
+        Log.d(TAG, "removed from group " + groupId + ": " + result);
+        return result;
+    }
+
+    /**
+     * @return the given column of the membership rows of the group that belong to the raw
+     *         contacts, sorted.
+     */
+    private long[] queryMembers(long[] rawContactIds, long groupId, int column) {
+        final LongList values = new LongList();
+        for (int from = 0; from < rawContactIds.length; from += MAX_IDS_PER_OPERATION) {
+            final int to = Math.min(from + MAX_IDS_PER_OPERATION, rawContactIds.length);
+            final Cursor cursor = mResolver.query(Data.CONTENT_URI, MEMBERSHIP_PROJECTION,
+                    Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=? AND "
+                            + inSelection(Data.RAW_CONTACT_ID, rawContactIds, from, to),
+                    new String[] {
+                            GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)
+                    }, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    values.add(cursor.getLong(column));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return sorted(values.toArray());
+    }
+
+    /**
+     * Applies the operations in batches, retrying a failed batch one operation at a time.
+     *
+     * @param rowCounts number of rows each operation is meant to change.
+     * @return number of rows of the operations that failed or were not applied.
+     */
+    private int apply(ArrayList<ContentProviderOperation> operations, LongList rowCounts,
+            int totalRows) {
+        int done = 0;
+        int failed = 0;
+        for (int from = 0; from < operations.size(); from += MAX_OPERATIONS_PER_BATCH) {
+            final int to = Math.min(from + MAX_OPERATIONS_PER_BATCH, operations.size());
+            int rows = 0;
+            for (int i = from; i < to; i++) {
+                rows += rowCounts.get(i);
+            }
+            if (mListener != null && mListener.isCancelled()) {
+                failed += totalRows - done;
+                break;
+            }
+            try {
+                mResolver.applyBatch(ContactsContract.AUTHORITY,
+                        new ArrayList<>(operations.subList(from, to)));
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.w(TAG, "Batch of " + (to - from) + " operations failed, retrying one by one",
+                        e);
+                failed += applyOneByOne(operations, rowCounts, from, to);
+            }
+            done += rows;
+            if (mListener != null) {
+                mListener.onProgress(done, totalRows);
+            }
+        }
+        if (failed > 0) {
+            Log.w(TAG, failed + " of " + totalRows + " rows were not changed");
+        }
+        return failed;
+    }
+
+    /**
+     * @return number of rows of the operations in [from, to) that failed.
+     */
+    private int applyOneByOne(ArrayList<ContentProviderOperation> operations,
+            LongList rowCounts, int from, int to) {
+        int failed = 0;
+        final ArrayList<ContentProviderOperation> single = new ArrayList<>(1);
+        for (int i = from; i < to; i++) {
+            single.clear();
+            single.add(operations.get(i));
+            try {
+                mResolver.applyBatch(ContactsContract.AUTHORITY, single);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.w(TAG, "Failed to apply " + operations.get(i), e);
+                failed += rowCounts.get(i);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @return the elements of the sorted array a that are not in the sorted array b.
+     */
+    @VisibleForTesting
+    static long[] difference(long[] a, long[] b) {
+        final long[] result = new long[a.length];
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (i > 0 && a[i] == a[i - 1]) {
+                continue;
+            }
+            while (j < b.length && b[j] < a[i]) {
+                j++;
+            }
+            if (j == b.length || b[j] != a[i]) {
+                result[count++] = a[i];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    @VisibleForTesting
+    static String inSelection(String column, long[] ids, int from, int to) {
+        final StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int i = from; i < to; i++) {
+            selection.append(i == from ? "" : ",").append(ids[i]);
+        }
+        return selection.append(")").toString();
+    }
+
+    private static long[] sorted(long[] ids) {
+        final long[] copy = ids.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.contacts.util.DuplicatesUtils.ContactsInfo;
+import com.android.contacts.util.DuplicatesUtils.MergeContacts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists the groups of a running merge and how many of them are done, so that a merge
+ * interrupted by the death of the process can continue with the first unfinished group.
+ *
+ * Groups are always merged in the order they were saved in, which keeps the progress a
+ * single counter.
+ */
+public class MergeCheckpoint {
+    private static final String TAG = "MergeCheckpoint";
+
+    private static final String PLAN_FILE = "merge_plan";
+    private static final String PROGRESS_FILE = "merge_progress";
+    private static final int FORMAT_VERSION = 1;
+
+    private final AtomicFile mPlanFile;
+    private final AtomicFile mProgressFile;
+
+    public MergeCheckpoint(Context context) {
+        mPlanFile = new AtomicFile(new File(context.getFilesDir(), PLAN_FILE));
+        mProgressFile = new AtomicFile(new File(context.getFilesDir(), PROGRESS_FILE));
+    }
+
+    /**
+     * @return true if a merge was started and did not finish.
+     */
+    public boolean hasPending() {
+        return mPlanFile.getBaseFile().exists();
+    }
+
+    /**
+     * Records the groups of a new merge. Only raw contact and contact ids are kept, which is
+     * all the merge needs.
+     */
+    public void begin(List<MergeContacts> groups) {
+        FileOutputStream fos = null;
+        try {
+            fos = mPlanFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(groups.size());
+            for (MergeContacts group : groups) {
+                out.writeUTF(group.getAccountName());
+                out.writeUTF(group.getAccountType());
+                final ArrayList<ContactsInfo> contacts = group.getContacts();
+                out.writeInt(contacts.size());
+                for (ContactsInfo info : contacts) {
+                    out.writeLong(info.getContactId());
+                    out.writeLong(info.getRawContactId());
+                }
+            }
+            out.flush();
+            mPlanFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write merge plan", e);
+            mPlanFile.failWrite(fos);
+        }
+        setCompletedCount(0);
+    }
+
+    /**
+     * @return number of groups of the current merge that are completely applied.
+     */
+    public int getCompletedCount() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mProgressFile.openRead()));
+            return in.readInt();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    public void setCompletedCount(int count) {
+        FileOutputStream fos = null;
+        try {
+            fos = mProgressFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(count);
+            out.flush();
+            mProgressFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write merge progress", e);
+            mProgressFile.failWrite(fos);
+        }
+    }
+
+    /**
+     * @return all groups of the saved merge, or null if there is none.
+     */
+    public ArrayList<MergeContacts> loadGroups() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mPlanFile.openRead()));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            final int count = in.readInt();
+            final ArrayList<MergeContacts> groups = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final String accountName = in.readUTF();
+                final String accountType = in.readUTF();
+                final int size = in.readInt();
+                final ArrayList<ContactsInfo> contacts = new ArrayList<>(size);
+                for (int j = 0; j < size; j++) {
+                    final long contactId = in.readLong();
+                    final long rawId = in.readLong();
+                    contacts.add(new ContactsInfo(contactId, null, 0, null,
+                            new ArrayList<String>(), new ArrayList<String>(), rawId));
+                }
+                groups.add(new MergeContacts(accountName, accountType, contacts));
+            }
+            return groups;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "discarding unreadable merge plan", e);
+            clear();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Forgets the merge, called once every group is done or the user gives up.
+     */
+    public void clear() {
+        mPlanFile.delete();
+        mProgressFile.delete();
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.support.v4.content.FileProvider;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.android.contacts.R;
+import com.android.vcard.VCardComposer;
+import com.android.vcard.VCardConfig;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes the vCards of many contacts into one file of the cache directory and hands it out
+ * through the app's {@link FileProvider}, instead of naming every lookup key in a
+ * {@link Contacts#CONTENT_MULTI_VCARD_URI}.
+ *
+ * Contacts are composed {@link #CONTACTS_PER_CHUNK} at a time and streamed to the file, so
+ * memory use does not depend on the number of contacts. Each export replaces the files of
+ * earlier ones.
+ */
+public class MultiVCardExporter {
+    private static final String TAG = "MultiVCardExporter";
+
+    @VisibleForTesting
+    static final int CONTACTS_PER_CHUNK = 200;
+
+    // Below Context.getCacheDir(), which res/xml/file_paths.xml shares.
+    private static final String DIRECTORY = "shared_vcards";
+    // The receiving app may still be reading an earlier share, so only old files go.
+    private static final long MAX_FILE_AGE_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    public interface Listener {
+        /**
+         * Called on the exporting thread after each chunk.
+         */
+        void onProgress(int exported, int total);
+
+        /**
+         * @return true to stop the export after the current chunk.
+         */
+        boolean isCancelled();
+    }
+
+    private MultiVCardExporter() {
+    }
+
+    /**
+     * Writes the vCards of the given contacts. Must not be called on the main thread.
+     *
+     * @return content uri of the file, or null if the export was cancelled or nothing could
+     *         be written.
+     */
+    public static Uri export(Context context, long[] contactIds, Listener listener) {
+        final File directory = new File(context.getCacheDir(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + directory);
+            return null;
+        }
+        deleteOldFiles(directory);
+        final File file = new File(directory, "contacts_" + System.currentTimeMillis() + ".vcf");
+
+        int exported = 0;
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                    "UTF-8"));
+            for (int start = 0; start < contactIds.length; start += CONTACTS_PER_CHUNK) {
+                if (listener.isCancelled()) {
+                    break;
+                }
+                final int end = Math.min(start + CONTACTS_PER_CHUNK, contactIds.length);
+                exported += writeChunk(context, buildSelection(contactIds, start, end), writer);
+                listener.onProgress(end, contactIds.length);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+            exported = 0;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close " + file, e);
+                    exported = 0;
+                }
+            }
+        }
+
+        if (exported == 0 || listener.isCancelled()) {
+            file.delete();
+            return null;
+        }
+        Log.d(TAG, "exported " + exported + " of " + contactIds.length + " contacts");
+        return FileProvider.getUriForFile(context,
+                context.getString(R.string.contacts_file_provider_authority), file);
+    }
+
+    private static int writeChunk(Context context, String selection, Writer writer)
+            throws IOException {
+        final VCardComposer composer = new VCardComposer(context,
+                VCardConfig.VCARD_TYPE_DEFAULT, true);
+        int count = 0;
+        try {
+            if (!composer.init(selection, null)) {
+                Log.w(TAG, "Cannot compose vCards: " + composer.getErrorReason());
+                return 0;
+            }
+            while (!composer.isAfterLast()) {
+                writer.write(composer.createOneEntry());
+                count++;
+            }
+        } finally {
+            composer.terminate();
+        }
+        return count;
+    }
+
+    @VisibleForTesting
+    static String buildSelection(long[] contactIds, int start, int end) {
+        final StringBuilder selection = new StringBuilder(Contacts._ID + " IN (");
+        for (int i = start; i < end; i++) {
+            selection.append(i == start ? "" : ",").append(contactIds[i]);
+        }
+        selection.append(")");
+        return selection.toString();
+    }
+
+    private static void deleteOldFiles(File directory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long oldest = System.currentTimeMillis() - MAX_FILE_AGE_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < oldest) {
+                file.delete();
+            }
+        }
+    }
+}
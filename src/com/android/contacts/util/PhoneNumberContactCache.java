@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.contacts.common.GeoUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves phone numbers to the contact data rows holding them, for lists that show one row
+ * per number such as the call log picker.
+ *
+ * Numbers that are not cached are looked up together, {@link #MAX_NUMBERS_PER_QUERY} at a
+ * time. A batch reads every phone row whose normalized number ends in the min-match key of
+ * one of the numbers, or whose raw number equals one of them, and matches the numbers in
+ * memory: by normalized number first, then by raw number, then loosely with
+ * {@link PhoneNumberUtils#compare(String, String)} like {@link PhoneNumberIndex}. So numbers
+ * written differently still match without a query per number. Results are cached, numbers
+ * without a contact included, until any contact changes.
+ */
+public class PhoneNumberContactCache {
+    private static final String TAG = "PhoneNumberContactCache";
+
+    private static final int MAX_ENTRIES = 500;
+    /** Each number is bound three times, staying below the SQLite limit of 999 arguments. */
+    @VisibleForTesting
+    static final int MAX_NUMBERS_PER_QUERY = 200;
+
+    /**
+     * A contact data row holding a phone number.
+     */
+    public static class Contact {
+        public final long dataId;
+        public final long contactId;
+        public final String name;
+        public final int numberType;
+        public final String label;
+        public final String number;
+        public final String normalizedNumber;
+        public final long photoId;
+        public final String photoUri;
+        public final String lookupKey;
+
+        public Contact(long dataId, long contactId, String name, int numberType, String label,
+                String number, String normalizedNumber, long photoId, String photoUri,
+                String lookupKey) {
+            this.dataId = dataId;
+            this.contactId = contactId;
+            this.name = name;
+            this.numberType = numberType;
+            this.label = label;
+            this.number = number;
+            this.normalizedNumber = normalizedNumber;
+            this.photoId = photoId;
+            this.photoUri = photoUri;
+            this.lookupKey = lookupKey;
+        }
+
+        public Uri getLookupUri() {
+            return Contacts.getLookupUri(contactId, lookupKey);
+        }
+    }
+
+    // Cached for numbers without a contact.
+    private static final Contact NOT_FOUND = new Contact(0, 0, null, 0, null, null, null, 0,
+            null, null);
+
+    private static final String[] PHONE_PROJECTION = new String[] {
+            Phone._ID,
+            Phone.CONTACT_ID,
+            Phone.DISPLAY_NAME,
+            Phone.TYPE,
+            Phone.LABEL,
+            Phone.NUMBER,
+            Phone.NORMALIZED_NUMBER,
+            Phone.PHOTO_ID,
+            Phone.PHOTO_URI,
+            Phone.LOOKUP_KEY
+    };
+
+    private static PhoneNumberContactCache sInstance;
+
+    private final Context mContext;
+    // Guarded by itself, along with mGeneration.
+    private final LruCache<String, Contact> mCache = new LruCache<>(MAX_ENTRIES);
+    private int mGeneration;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    private PhoneNumberContactCache(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized PhoneNumberContactCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context applicationContext = context.getApplicationContext();
+            sInstance = new PhoneNumberContactCache(applicationContext);
+            // the provider notifies the authority uri on any contact change.
+            applicationContext.getContentResolver().registerContentObserver(
+                    ContactsContract.AUTHORITY_URI, true, sInstance.mContactsObserver);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Resolves the numbers. Queries the provider for numbers that are not cached, so this must
+     * not be called on the main thread.
+     *
+     * @return the contact of each number that has one. Numbers without a contact, and numbers
+     *         whose lookup failed, are left out.
+     */
+    public Map<String, Contact> resolve(Collection<String> numbers) {
+        final HashMap<String, Contact> result = new HashMap<>();
+        final LinkedHashSet<String> misses = new LinkedHashSet<>();
+        final int generation;
+        synchronized (mCache) {
+            generation = mGeneration;
+            for (String number : numbers) {
+                if (TextUtils.isEmpty(number) || result.containsKey(number)) {
+                    continue;
+                }
+                final Contact contact = mCache.get(number);
+                if (contact == null) {
+                    misses.add(number);
+                } else if (contact != NOT_FOUND) {
+                    result.put(number, contact);
+                }
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+
+        final ContentResolver resolver = mContext.getContentResolver();
+        final String countryIso = GeoUtil.getCurrentCountryIso(mContext);
+        final HashMap<String, Contact> found = new HashMap<>();
+        final HashSet<String> failed = new HashSet<>();
+        final ArrayList<String> batch = new ArrayList<>(MAX_NUMBERS_PER_QUERY);
+        for (String number : misses) {
+            batch.add(number);
+            if (batch.size() == MAX_NUMBERS_PER_QUERY) {
+                if (!resolveBatch(resolver, countryIso, batch, found)) {
+                    failed.addAll(batch);
+                }
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty() && !resolveBatch(resolver, countryIso, batch, found)) {
+            failed.addAll(batch);
+        }
+
+        synchronized (mCache) {
+            // a contact changed while we were querying, the results may be stale already.
+            final boolean current = generation == mGeneration;
+            for (String number : misses) {
+                final Contact contact = found.get(number);
+                if (contact != null) {
+                    result.put(number, contact);
+                }
+                if (current && !failed.contains(number)) {
+                    mCache.put(number, contact != null ? contact : NOT_FOUND);
+                }
+            }
+        }
+        return result;
+    }
+
+    public void invalidate() {
+        synchronized (mCache) {
+            mCache.evictAll();
+            mGeneration++;
+        }
+    }
+
+    /**
+     * @return false if the query failed.
+     */
+    private static boolean resolveBatch(ContentResolver resolver, String countryIso,
+            List<String> numbers, Map<String, Contact> found) {
+        final String[] normalizedNumbers = new String[numbers.size()];
+        final ArrayList<String> selectionArgs = new ArrayList<>(numbers.size() * 3);
+        final StringBuilder placeholders = new StringBuilder();
+        final StringBuilder suffixes = new StringBuilder();
+        for (int i = 0; i < numbers.size(); i++) {
+            final String number = numbers.get(i);
+            normalizedNumbers[i] = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            // a number that does not normalize can not match a normalized one, bind it anyway.
+            selectionArgs.add(normalizedNumbers[i] != null ? normalizedNumbers[i] : number);
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        selectionArgs.addAll(numbers);
+        for (String number : numbers) {
+            // a loose match ends in the same key, which holds no LIKE wildcard.
+            final String key = PhoneNumberIndex.getMatchKey(number);
+            if (key != null) {
+                suffixes.append(" OR ").append(Phone.NORMALIZED_NUMBER).append(" LIKE ?");
+                selectionArgs.add("%" + key);
+            }
+        }
+        final String selection = Phone.NORMALIZED_NUMBER + " IN (" + placeholders + ") OR "
+                + Phone.NUMBER + " IN (" + placeholders + ")" + suffixes;
+
+        final ArrayList<Contact> candidates = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(Phone.CONTENT_URI, PHONE_PROJECTION, selection,
+                    selectionArgs.toArray(new String[selectionArgs.size()]), null);
+            while (cursor != null && cursor.moveToNext()) {
+                candidates.add(readContact(cursor));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to resolve a batch of " + numbers.size() + " numbers", e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        for (int i = 0; i < numbers.size(); i++) {
+            final Contact contact = findMatch(numbers.get(i), normalizedNumbers[i], candidates);
+            if (contact != null) {
+                found.put(numbers.get(i), contact);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a row of {@link #PHONE_PROJECTION}.
+     */
+    private static Contact readContact(Cursor cursor) {
+        return new Contact(cursor.getLong(0), cursor.getLong(1), cursor.getString(2),
+                cursor.getInt(3), cursor.getString(4), cursor.getString(5), cursor.getString(6),
+                cursor.getLong(7), cursor.getString(8), cursor.getString(9));
+    }
+
+    /**
+     * @param normalizedNumber the E164 form of the number, or null if it has none.
+     * @return the first candidate holding the number, or the first one holding a number that
+     *         {@link PhoneNumberUtils#compare(String, String)} takes for it, or null.
+     */
+    @VisibleForTesting
+    static Contact findMatch(String number, String normalizedNumber, List<Contact> candidates) {
+        for (Contact candidate : candidates) {
+            if (normalizedNumber != null
+                    && normalizedNumber.equals(candidate.normalizedNumber)) {
+                return candidate;
+            }
+        }
+        for (Contact candidate : candidates) {
+            if (number.equals(candidate.number)) {
+                return candidate;
+            }
+        }
+        for (Contact candidate : candidates) {
+            if (candidate.number != null && PhoneNumberUtils.compare(number, candidate.number)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
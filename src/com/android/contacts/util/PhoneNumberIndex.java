@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.telephony.PhoneNumberUtils;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A set of phone numbers where two numbers are the same element if
+ * {@link PhoneNumberUtils#compare(String, String)} says so.
+ *
+ * Numbers are bucketed by their min-match key, i.e. the last {@link #MIN_MATCH} dialable
+ * characters before any pause or wait. {@link PhoneNumberUtils#compare(String, String)} can
+ * only report a match when those tails are equal, so a lookup only has to compare against
+ * the numbers of one bucket. Numbers without a usable key (no dialable characters or a
+ * wildcard) go to a fallback bucket that is compared linearly.
+ */
+public class PhoneNumberIndex {
+
+    /** Number of trailing characters compared by PhoneNumberUtils.compare at least. */
+    @VisibleForTesting
+    static final int MIN_MATCH = 7;
+
+    private final HashMap<String, List<String>> mBuckets = new HashMap<>();
+    private final List<String> mFallback = new ArrayList<>();
+    private int mSize;
+
+    public PhoneNumberIndex() {
+    }
+
+    public PhoneNumberIndex(List<String> numbers) {
+        if (numbers != null) {
+            for (String number : numbers) {
+                add(number);
+            }
+        }
+    }
+
+    /**
+     * @return true if an equivalent number is already in the index.
+     */
+    public boolean contains(String number) {
+        if (number == null) {
+            return false;
+        }
+        final String key = getMatchKey(number);
+        if (key == null) {
+            // a number without key may match anything, compare against every bucket.
+            for (List<String> bucket : mBuckets.values()) {
+                if (matchesAny(bucket, number)) {
+                    return true;
+                }
+            }
+            return matchesAny(mFallback, number);
+        }
+        return matchesAny(mBuckets.get(key), number) || matchesAny(mFallback, number);
+    }
+
+    /**
+     * Adds the number unless an equivalent one is already present.
+     *
+     * @return true if the number was added.
+     */
+    public boolean add(String number) {
+        if (number == null || contains(number)) {
+            return false;
+        }
+        final String key = getMatchKey(number);
+        if (key == null) {
+            mFallback.add(number);
+        } else {
+            List<String> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<>(1);
+                mBuckets.put(key, bucket);
+            }
+            bucket.add(number);
+        }
+        mSize++;
+        return true;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    private static boolean matchesAny(List<String> numbers, String number) {
+        if (numbers == null) {
+            return false;
+        }
+        for (int i = 0; i < numbers.size(); i++) {
+            if (PhoneNumberUtils.compare(number, numbers.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the last {@link #MIN_MATCH} dialable characters of the network portion of the
+     *         number, or null if the number can not be keyed.
+     */
+    static String getMatchKey(String number) {
+        int end = number.length();
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c == PhoneNumberUtils.PAUSE || c == PhoneNumberUtils.WAIT) {
+                end = i;
+                break;
+            }
+        }
+        final char[] key = new char[MIN_MATCH];
+        int count = 0;
+        for (int i = end - 1; i >= 0 && count < MIN_MATCH; i--) {
+            final char c = number.charAt(i);
+            if (c == PhoneNumberUtils.WILD) {
+                return null;
+            }
+            if (PhoneNumberUtils.isDialable(c)) {
+                key[MIN_MATCH - 1 - count] = c;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        return new String(key, MIN_MATCH - count, count);
+    }
+}
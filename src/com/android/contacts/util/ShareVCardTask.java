@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+import com.android.contacts.R;
+
+/**
+ * Exports contacts with {@link MultiVCardExporter} behind a progress dialog that can cancel
+ * the export.
+ */
+public abstract class ShareVCardTask extends AsyncTask<Void, Integer, Uri>
+        implements MultiVCardExporter.Listener {
+    private final Activity mActivity;
+    private final long[] mContactIds;
+    private ProgressDialog mProgressDialog;
+
+    public ShareVCardTask(Activity activity, long[] contactIds) {
+        mActivity = activity;
+        mContactIds = contactIds;
+    }
+
+    /**
+     * Called on the main thread once the export is done, unless it was cancelled.
+     *
+     * @param uri content uri of the vCard file, readable by whoever is granted it, or null if
+     *         the export failed.
+     */
+    protected abstract void onExported(Uri uri);
+
+    @Override
+    protected void onPreExecute() {
+        mProgressDialog = new ProgressDialog(mActivity);
+        mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mProgressDialog.setTitle(R.string.sharing_contacts_title);
+        mProgressDialog.setMax(mContactIds.length);
+        mProgressDialog.setProgress(0);
+        mProgressDialog.setCanceledOnTouchOutside(false);
+        mProgressDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                mActivity.getString(R.string.btn_cancel), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        cancel(false);
+                    }
+                });
+        mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                cancel(false);
+            }
+        });
+        mProgressDialog.show();
+    }
+
+    @Override
+    protected Uri doInBackground(Void... params) {
+        return MultiVCardExporter.export(mActivity.getApplicationContext(), mContactIds, this);
+    }
+
+    @Override
+    public void onProgress(int exported, int total) {
+        publishProgress(exported);
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        mProgressDialog.setProgress(values[0]);
+    }
+
+    @Override
+    protected void onPostExecute(Uri uri) {
+        dismissProgressDialog();
+        onExported(uri);
+    }
+
+    @Override
+    protected void onCancelled(Uri uri) {
+        dismissProgressDialog();
+    }
+
+    private void dismissProgressDialog() {
+        // the activity may be gone by the time a cancelled export stops.
+        if (mProgressDialog != null && mProgressDialog.isShowing()
+                && !mActivity.isDestroyed()) {
+            mProgressDialog.dismiss();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+
+/**
+ * Caches the phonebook limits of each SIM card, so that bulk SIM operations query the card
+ * once instead of once per contact.
+ *
+ * The counts of free records are kept up to date by {@link #onInserted} and
+ * {@link #onDeleted}. Changes the cache cannot follow, such as updates of existing records,
+ * call {@link #invalidate(int)}. Everything is dropped when the SIM state or the
+ * subscriptions change. Since all our writes to a card report here, each of them also drops
+ * the {@link SimContactsMirror} of the card.
+ */
+public class SimCapacityCache {
+    private static final String TAG = "SimCapacityCache";
+
+    // TelephonyIntents.ACTION_SIM_STATE_CHANGED and ACTION_SUBINFO_RECORD_UPDATED.
+    private static final String ACTION_SIM_STATE_CHANGED =
+            "android.intent.action.SIM_STATE_CHANGED";
+    private static final String ACTION_SUBINFO_RECORD_UPDATED =
+            "android.intent.action.ACTION_SUBINFO_RECORD_UPDATED";
+
+    /**
+     * Name under which tests inject a {@link CapacitySource} through
+     * {@link com.android.contacts.ContactsApplication#injectServices}.
+     */
+    public static final String CAPACITY_SOURCE_SERVICE = "contacts_sim_capacity";
+
+    /**
+     * Reads the limits of a SIM card. Every call may go to the card.
+     */
+    public interface CapacitySource {
+        int getAdnCount(int subscription);
+        int getAnrPerContact(int subscription);
+        int getEmailPerContact(int subscription);
+        int getFreeAdnCount(int subscription);
+        int getSpareAnrCount(int subscription);
+        int getSpareEmailCount(int subscription);
+    }
+
+    private static class CardCapacitySource implements CapacitySource {
+        private final Context mContext;
+
+        CardCapacitySource(Context context) {
+            mContext = context;
+        }
+
+        public int getAdnCount(int subscription) {
+            return MoreContactUtils.getAdnCount(mContext, subscription);
+        }
+
+        public int getAnrPerContact(int subscription) {
+            return MoreContactUtils.getOneSimAnrCount(mContext, subscription);
+        }
+
+        public int getEmailPerContact(int subscription) {
+            return MoreContactUtils.getOneSimEmailCount(mContext, subscription);
+        }
+
+        public int getFreeAdnCount(int subscription) {
+            return MoreContactUtils.getSimFreeCount(mContext, subscription);
+        }
+
+        public int getSpareAnrCount(int subscription) {
+            return MoreContactUtils.getSpareAnrCount(mContext, subscription);
+        }
+
+        public int getSpareEmailCount(int subscription) {
+            return MoreContactUtils.getSpareEmailCount(mContext, subscription);
+        }
+    }
+
+    /**
+     * The limits of one SIM card.
+     */
+    public static class Capacity {
+        /** Number of ADN records of the card. */
+        public final int adnCount;
+        /** Numbers that fit into one record besides the main number. */
+        public final int anrPerContact;
+        /** Emails that fit into one record. */
+        public final int emailPerContact;
+        private int mFreeAdn;
+        private int mSpareAnr;
+        private int mSpareEmail;
+
+        Capacity(int adnCount, int anrPerContact, int emailPerContact, int freeAdn,
+                int spareAnr, int spareEmail) {
+            this.adnCount = adnCount;
+            this.anrPerContact = anrPerContact;
+            this.emailPerContact = emailPerContact;
+            mFreeAdn = freeAdn;
+            mSpareAnr = spareAnr;
+            mSpareEmail = spareEmail;
+        }
+
+        public synchronized int getFreeAdnCount() {
+            return mFreeAdn;
+        }
+
+        public synchronized int getSpareAnrCount() {
+            return mSpareAnr;
+        }
+
+        public synchronized int getSpareEmailCount() {
+            return mSpareEmail;
+        }
+
+        synchronized void add(int adn, int anr, int email) {
+            mFreeAdn += adn;
+            mSpareAnr += anr;
+            mSpareEmail += email;
+        }
+    }
+
+    private static SimCapacityCache sInstance;
+
+    private final Context mContext;
+    private final CapacitySource mCardSource;
+    private final SparseArray<Capacity> mCapacities = new SparseArray<>();
+
+    private final BroadcastReceiver mSimChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidateAll();
+        }
+    };
+
+    private SimCapacityCache(Context context) {
+        mContext = context;
+        mCardSource = new CardCapacitySource(context);
+    }
+
+    public static synchronized SimCapacityCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context applicationContext = context.getApplicationContext();
+            sInstance = new SimCapacityCache(applicationContext);
+            final IntentFilter filter = new IntentFilter(ACTION_SIM_STATE_CHANGED);
+            filter.addAction(ACTION_SUBINFO_RECORD_UPDATED);
+            applicationContext.registerReceiver(sInstance.mSimChangeReceiver, filter);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the limits of the card in the given slot, read from the card on first use.
+     */
+    public Capacity get(int subscription) {
+        synchronized (mCapacities) {
+            Capacity capacity = mCapacities.get(subscription);
+            if (capacity == null) {
+                final CapacitySource source = getCapacitySource();
+                capacity = new Capacity(
+                        source.getAdnCount(subscription),
+                        source.getAnrPerContact(subscription),
+                        source.getEmailPerContact(subscription),
+                        source.getFreeAdnCount(subscription),
+                        source.getSpareAnrCount(subscription),
+                        source.getSpareEmailCount(subscription));
+                mCapacities.put(subscription, capacity);
+                Log.d(TAG, "loaded capacity of sub " + subscription + ": adn="
+                        + capacity.adnCount + " free=" + capacity.getFreeAdnCount());
+            }
+            return capacity;
+        }
+    }
+
+    /**
+     * Records a new record on the card holding the given ANRs and emails.
+     */
+    public void onInserted(int subscription, String anrs, String emails) {
+        SimContactsMirror.getInstance(mContext).invalidate(subscription);
+        final Capacity capacity = peek(subscription);
+        if (capacity != null) {
+            capacity.add(-1, -countEntries(anrs, SimContactsConstants.ANR_SEP),
+                    -countEntries(emails, SimContactsConstants.EMAIL_SEP));
+        }
+    }
+
+    /**
+     * Records the removal of a record holding the given ANRs and emails from the card.
+     */
+    public void onDeleted(int subscription, String anrs, String emails) {
+        SimContactsMirror.getInstance(mContext).invalidate(subscription);
+        final Capacity capacity = peek(subscription);
+        if (capacity != null) {
+            capacity.add(1, countEntries(anrs, SimContactsConstants.ANR_SEP),
+                    countEntries(emails, SimContactsConstants.EMAIL_SEP));
+        }
+    }
+
+    public void invalidate(int subscription) {
+        SimContactsMirror.getInstance(mContext).invalidate(subscription);
+        synchronized (mCapacities) {
+            mCapacities.remove(subscription);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (mCapacities) {
+            mCapacities.clear();
+        }
+    }
+
+    private CapacitySource getCapacitySource() {
+        final Object injected = mContext.getSystemService(CAPACITY_SOURCE_SERVICE);
+        if (injected instanceof CapacitySource) {
+            return (CapacitySource) injected;
+        }
+        return mCardSource;
+    }
+
+    private Capacity peek(int subscription) {
+        synchronized (mCapacities) {
+            return mCapacities.get(subscription);
+        }
+    }
+
+    /**
+     * @return number of non-empty entries of a separator-joined SIM field.
+     */
+    private static int countEntries(String joined, String separator) {
+        if (TextUtils.isEmpty(joined)) {
+            return 0;
+        }
+        int count = 0;
+        for (String entry : joined.split(separator)) {
+            if (!TextUtils.isEmpty(entry)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
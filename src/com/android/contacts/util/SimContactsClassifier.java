@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.RawContacts;
+import android.telephony.SubscriptionManager;
+import android.util.SparseArray;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.common.SimContactsOperation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Sorts contacts into those stored on a SIM card, by slot, and those only stored on the
+ * phone, with one raw contacts query per {@link #MAX_IDS_PER_QUERY} contacts.
+ *
+ * Phone-only contacts can go straight to batched provider deletes. SIM contacts still have to
+ * be removed from their card one by one.
+ */
+public class SimContactsClassifier {
+
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final String[] PROJECTION = new String[] {
+            RawContacts.CONTACT_ID,
+            RawContacts.ACCOUNT_TYPE,
+            RawContacts.ACCOUNT_NAME,
+    };
+
+    private final ArrayList<Long> mPhoneContactIds = new ArrayList<>();
+    private final SparseArray<ArrayList<Long>> mSimContactIds = new SparseArray<>();
+
+    private SimContactsClassifier() {
+    }
+
+    /**
+     * Classifies the contacts. A contact is on a SIM card if any of its raw contacts is in a
+     * SIM account. Ids without raw contacts count as phone-only.
+     */
+    public static SimContactsClassifier classify(ContentResolver resolver, long[] contactIds) {
+        final HashMap<Long, Integer> subscriptions = new HashMap<>(contactIds.length);
+        for (int start = 0; start < contactIds.length; start += MAX_IDS_PER_QUERY) {
+            final int end = Math.min(start + MAX_IDS_PER_QUERY, contactIds.length);
+            final StringBuilder selection = new StringBuilder(RawContacts.CONTACT_ID + " IN (");
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "" : ",").append(contactIds[i]);
+            }
+            selection.append(")");
+            final Cursor cursor = resolver.query(RawContacts.CONTENT_URI, PROJECTION,
+                    selection.toString(), null, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final int subscription = MoreContactUtils.getSubscription(
+                            cursor.getString(1), cursor.getString(2));
+                    if (subscription != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                        subscriptions.put(cursor.getLong(0), subscription);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        final SimContactsClassifier result = new SimContactsClassifier();
+        for (long contactId : contactIds) {
+            final Integer subscription = subscriptions.get(contactId);
+            if (subscription == null) {
+                result.mPhoneContactIds.add(contactId);
+            } else {
+                ArrayList<Long> ids = result.mSimContactIds.get(subscription);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    result.mSimContactIds.put(subscription, ids);
+                }
+                ids.add(contactId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the contacts that are not on any SIM card, in the order they were given.
+     */
+    public ArrayList<Long> getPhoneContactIds() {
+        return mPhoneContactIds;
+    }
+
+    /**
+     * @return the slots that hold at least one of the contacts.
+     */
+    public int[] getSubscriptions() {
+        final int[] subscriptions = new int[mSimContactIds.size()];
+        for (int i = 0; i < subscriptions.length; i++) {
+            subscriptions[i] = mSimContactIds.keyAt(i);
+        }
+        return subscriptions;
+    }
+
+    /**
+     * @return the contacts on the card in the given slot, in the order they were given.
+     */
+    public ArrayList<Long> getSimContactIds(int subscription) {
+        final ArrayList<Long> ids = mSimContactIds.get(subscription);
+        return ids == null ? new ArrayList<Long>() : ids;
+    }
+
+    /**
+     * Removes one contact from the card in the given slot. The provider rows are left to the
+     * caller, which can batch their deletes.
+     *
+     * @return true if the card no longer holds the contact.
+     */
+    public static boolean deleteFromCard(Context context, SimContactsOperation operation,
+            long contactId, int subscription) {
+        final ContentValues values = operation.getSimAccountValues(contactId);
+        if (operation.delete(values, subscription) <= 0) {
+            return false;
+        }
+        SimCapacityCache.getInstance(context).onDeleted(subscription,
+                values.getAsString(SimContactsConstants.STR_ANRS),
+                values.getAsString(SimContactsConstants.STR_EMAILS));
+        return true;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.SimContactsConstants;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+
+/**
+ * Copies SIM records into raw contacts of a phone account.
+ *
+ * Records are added one at a time and written in batches of at most
+ * {@link #MAX_OPERATIONS_PER_BATCH} operations. A batch has no yield points, so it is written
+ * all or nothing. New raw contacts are inserted with aggregation suspended and {@link #finish()}
+ * turns aggregation back on for all of them at once, so the provider aggregates once per contact
+ * instead of once per inserted row. If a batch fails, nothing of it was written and its records
+ * are retried one by one so that a single bad record does not lose the whole batch.
+ */
+public class SimContactsImporter {
+    private static final String TAG = "SimContactsImporter";
+
+    /** Stays below the provider limit of 500 operations per batch. */
+    @VisibleForTesting
+    static final int MAX_OPERATIONS_PER_BATCH = 400;
+    private static final int MAX_IDS_PER_UPDATE = 500;
+
+    private static class Record {
+        final String name;
+        final String number;
+        final String emails;
+        final String anrs;
+
+        Record(String name, String number, String emails, String anrs) {
+            this.name = name;
+            this.number = number;
+            this.emails = emails;
+            this.anrs = anrs;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Account mAccount;
+    private final ArrayList<Record> mPending = new ArrayList<>();
+    private int mPendingOperations;
+    private final ArrayList<Long> mImportedIds = new ArrayList<>();
+    private int mFailedCount;
+    private long mStartTime;
+
+    public SimContactsImporter(ContentResolver resolver, Account account) {
+        mResolver = resolver;
+        mAccount = account;
+    }
+
+    /**
+     * Queues one SIM record, writing the queued records first if it would not fit into the
+     * current batch.
+     *
+     * @return the number of records written by this call.
+     */
+    public int add(String name, String number, String emails, String anrs) {
+        if (mStartTime == 0) {
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+        final Record record = new Record(name, number, emails, anrs);
+        final int operations = countOperations(record);
+        int written = 0;
+        if (mPendingOperations + operations > MAX_OPERATIONS_PER_BATCH) {
+            written = flush();
+        }
+        mPending.add(record);
+        mPendingOperations += operations;
+        return written;
+    }
+
+    /**
+     * Writes the queued records.
+     *
+     * @return the number of records written, including those that failed.
+     */
+    public int flush() {
+        final int count = mPending.size();
+        if (count == 0) {
+            return 0;
+        }
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<>(mPendingOperations);
+        final int[] rawContactIndexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            rawContactIndexes[i] = operations.size();
+            buildOperations(mPending.get(i), mAccount, operations.size(), operations);
+        }
+        try {
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            for (int index : rawContactIndexes) {
+                mImportedIds.add(ContentUris.parseId(results[index].uri));
+            }
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.w(TAG, "Batch of " + count + " records failed, retrying one by one", e);
+            for (Record record : mPending) {
+                insertOne(record);
+            }
+        }
+        mPending.clear();
+        mPendingOperations = 0;
+        return count;
+    }
+
+    /**
+     * Writes the remaining records and enables aggregation of every imported raw contact.
+     *
+     * @return the number of records written by this call.
+     */
+    public int finish() {
+        final int written = flush();
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int start = 0; start < mImportedIds.size(); start += MAX_IDS_PER_UPDATE) {
+            final int end = Math.min(start + MAX_IDS_PER_UPDATE, mImportedIds.size());
+            final StringBuilder selection = new StringBuilder(RawContacts._ID + " IN (");
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "" : ",").append(mImportedIds.get(i));
+            }
+            selection.append(")");
+            operations.add(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
+                    .withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DEFAULT)
+                    .withSelection(selection.toString(), null)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        if (!operations.isEmpty()) {
+            try {
+                mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.w(TAG, "Failed to enable aggregation of imported contacts", e);
+            }
+        }
+        Log.d(TAG, "imported " + mImportedIds.size() + " contacts, " + mFailedCount
+                + " failed, " + getContactsPerSecond() + " contacts/s");
+        return written;
+    }
+
+    public int getImportedCount() {
+        return mImportedIds.size();
+    }
+
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return imported contacts per second since the first record was added.
+     */
+    public float getContactsPerSecond() {
+        final long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        if (mStartTime == 0 || elapsed <= 0) {
+            return 0f;
+        }
+        return mImportedIds.size() * 1000f / elapsed;
+    }
+
+    private void insertOne(Record record) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        buildOperations(record, mAccount, 0, operations);
+        try {
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            mImportedIds.add(ContentUris.parseId(results[0].uri));
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.w(TAG, "Failed to import a SIM record", e);
+            mFailedCount++;
+        }
+    }
+
+    private static int countOperations(Record record) {
+        int count = 1;
+        if (!TextUtils.isEmpty(record.name)) {
+            count++;
+        }
+        if (!TextUtils.isEmpty(record.number)) {
+            count++;
+        }
+        if (!TextUtils.isEmpty(record.anrs)) {
+            count += record.anrs.split(SimContactsConstants.ANR_SEP).length;
+        }
+        if (!TextUtils.isEmpty(record.emails)) {
+            count += record.emails.split(",").length;
+        }
+        return count;
+    }
+
+    private static void buildOperations(Record record, Account account, int backReference,
+            ArrayList<ContentProviderOperation> operationList) {
+        ContentProviderOperation.Builder builder = ContentProviderOperation
+                .newInsert(RawContacts.CONTENT_URI);
+        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
+        if (account != null) {
+            builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
+            builder.withValue(RawContacts.ACCOUNT_TYPE, account.type);
+        }
+        // no yield point: a yield commits the batch so far, and the one by one retry of a
+        // failed batch would then insert those records twice.
+        operationList.add(builder.build());
+
+        if (!TextUtils.isEmpty(record.name)) {
+            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+            builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, backReference);
+            builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
+            builder.withValue(StructuredName.DISPLAY_NAME, record.name);
+            operationList.add(builder.build());
+        }
+
+        if (!TextUtils.isEmpty(record.number)) {
+            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+            builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+            builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+            builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
+            builder.withValue(Phone.NUMBER, record.number);
+            builder.withValue(Data.IS_PRIMARY, 1);
+            operationList.add(builder.build());
+        }
+
+        if (!TextUtils.isEmpty(record.anrs)) {
+            for (String anr : record.anrs.split(SimContactsConstants.ANR_SEP)) {
+                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+                builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
+                builder.withValue(Phone.NUMBER, anr);
+                operationList.add(builder.build());
+            }
+        }
+
+        if (!TextUtils.isEmpty(record.emails)) {
+            for (String emailAddress : record.emails.split(",")) {
+                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+                builder.withValueBackReference(Email.RAW_CONTACT_ID, backReference);
+                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
+                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
+                builder.withValue(Email.ADDRESS, emailAddress);
+                operationList.add(builder.build());
+            }
+        }
+    }
+}
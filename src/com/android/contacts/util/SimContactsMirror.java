@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the records of each SIM card in memory, so that browsing and filtering SIM contacts
+ * does not send an ICC query to the card every time.
+ *
+ * A card is read on first use, by one caller at a time. The copy is dropped
+ * when the SIM state or the subscriptions change, and {@link SimCapacityCache} drops it after
+ * each of our own writes to the card.
+ */
+public class SimContactsMirror {
+    private static final String TAG = "SimContactsMirror";
+
+    // TelephonyIntents.ACTION_SIM_STATE_CHANGED and ACTION_SUBINFO_RECORD_UPDATED.
+    private static final String ACTION_SIM_STATE_CHANGED =
+            "android.intent.action.SIM_STATE_CHANGED";
+    private static final String ACTION_SUBINFO_RECORD_UPDATED =
+            "android.intent.action.ACTION_SUBINFO_RECORD_UPDATED";
+
+    /** Columns of the SIM provider, in the order of the cursors returned by {@link #query}. */
+    public static final String[] COLUMN_NAMES = new String[] {
+            "name",
+            "number",
+            "emails",
+            "anrs",
+            "_id"
+    };
+
+    @VisibleForTesting
+    static final int COLUMN_NAME = 0;
+    @VisibleForTesting
+    static final int COLUMN_NUMBER = 1;
+    @VisibleForTesting
+    static final int COLUMN_ANRS = 3;
+
+    private static SimContactsMirror sInstance;
+
+    private final Context mContext;
+    // All guarded by mRecords.
+    private final SparseArray<List<Object[]>> mRecords = new SparseArray<>();
+    private final SparseIntArray mGenerations = new SparseIntArray();
+    private final Object mLoadLock = new Object();
+
+    private final BroadcastReceiver mSimChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidateAll();
+        }
+    };
+
+    private SimContactsMirror(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized SimContactsMirror getInstance(Context context) {
+        if (sInstance == null) {
+            final Context applicationContext = context.getApplicationContext();
+            sInstance = new SimContactsMirror(applicationContext);
+            final IntentFilter filter = new IntentFilter(ACTION_SIM_STATE_CHANGED);
+            filter.addAction(ACTION_SUBINFO_RECORD_UPDATED);
+            applicationContext.registerReceiver(sInstance.mSimChangeReceiver, filter);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the records of the card in the given slot whose name starts a word with the
+     * filter, or whose numbers contain it. Reads the card if it is not in memory yet, so
+     * this must not be called on the main thread.
+     *
+     * @param filter the search string, or null for all records.
+     */
+    public Cursor query(int subscription, String filter) {
+        final List<Object[]> records = getRecords(subscription);
+        final MatrixCursor cursor = new MatrixCursor(COLUMN_NAMES, records.size());
+        final String normalizedFilter = normalizeFilter(filter);
+        for (Object[] record : records) {
+            if (normalizedFilter == null || matches(record, normalizedFilter)) {
+                cursor.addRow(record);
+            }
+        }
+        return cursor;
+    }
+
+    public void invalidate(int subscription) {
+        synchronized (mRecords) {
+            mRecords.remove(subscription);
+            mGenerations.put(subscription, mGenerations.get(subscription) + 1);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (mRecords) {
+            mRecords.clear();
+            for (int i = 0; i < mGenerations.size(); i++) {
+                mGenerations.put(mGenerations.keyAt(i), mGenerations.valueAt(i) + 1);
+            }
+        }
+    }
+
+    private List<Object[]> getRecords(int subscription) {
+        // callers arriving during a load wait for it instead of reading the card again.
+        synchronized (mLoadLock) {
+            final int generation;
+            synchronized (mRecords) {
+                final List<Object[]> records = mRecords.get(subscription);
+                if (records != null) {
+                    return records;
+                }
+                generation = mGenerations.get(subscription);
+            }
+            final List<Object[]> records = load(subscription);
+            synchronized (mRecords) {
+                // the card may have changed while it was read, keep the copy out of memory then.
+                if (generation == mGenerations.get(subscription)) {
+                    mRecords.put(subscription, records);
+                }
+            }
+            return records;
+        }
+    }
+
+    private List<Object[]> load(int subscription) {
+        final Uri uri = getSimUri(subscription);
+        if (uri == null) {
+            return Collections.emptyList();
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final ArrayList<Object[]> records = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(uri, COLUMN_NAMES, null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                records.add(new Object[] {
+                        cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        cursor.getString(3),
+                        cursor.getLong(4)
+                });
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read SIM contacts of sub " + subscription, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        Log.d(TAG, "loaded " + records.size() + " records of sub " + subscription + " in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        return Collections.unmodifiableList(records);
+    }
+
+    private Uri getSimUri(int subscription) {
+        if (subscription != SimContactsConstants.SLOT1
+                && subscription != SimContactsConstants.SLOT2) {
+            return null;
+        }
+        final int subId = MoreContactUtils.getActiveSubId(mContext, subscription);
+        if (subId > 0) {
+            return Uri.parse(SimContactsConstants.SIM_SUB_URI + subId);
+        }
+        return null;
+    }
+
+    @VisibleForTesting
+    static String normalizeFilter(String filter) {
+        if (filter == null) {
+            return null;
+        }
+        final String trimmed = filter.trim().toLowerCase(Locale.getDefault());
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    /**
+     * @param filter a filter returned by {@link #normalizeFilter}.
+     */
+    @VisibleForTesting
+    static boolean matches(Object[] record, String filter) {
+        final String name = (String) record[COLUMN_NAME];
+        if (!TextUtils.isEmpty(name)) {
+            final String lowerName = name.toLowerCase(Locale.getDefault());
+            int index = lowerName.indexOf(filter);
+            while (index >= 0) {
+                if (index == 0 || !Character.isLetterOrDigit(lowerName.charAt(index - 1))) {
+                    return true;
+                }
+                index = lowerName.indexOf(filter, index + 1);
+            }
+        }
+        if (!isNumberFilter(filter)) {
+            return false;
+        }
+        final String digits = digitsOf(filter);
+        if (digitsOf((String) record[COLUMN_NUMBER]).contains(digits)) {
+            return true;
+        }
+        final String anrs = (String) record[COLUMN_ANRS];
+        if (!TextUtils.isEmpty(anrs)) {
+            for (String anr : anrs.split(SimContactsConstants.ANR_SEP)) {
+                if (digitsOf(anr).contains(digits)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the filter has digits and nothing else but number punctuation.
+     */
+    private static boolean isNumberFilter(String filter) {
+        boolean hasDigit = false;
+        for (int i = 0; i < filter.length(); i++) {
+            final char c = filter.charAt(i);
+            if (Character.isDigit(c)) {
+                hasDigit = true;
+            } else if ("+-() ".indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return hasDigit;
+    }
+
+    private static String digitsOf(String value) {
+        if (value == null) {
+            return "";
+        }
+        final StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (Character.isDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lays out contacts across the ADN records of a SIM card before anything is written.
+ *
+ * The card capacity is read once from {@link SimCapacityCache} and every contact is given its
+ * records up front, so callers know which contacts will not fit before the first write. The
+ * records of a contact are laid out like a single contact copy always did: the first number
+ * of each record goes into the ADN, the following ones into its ANRs, and emails are spread
+ * over the same records.
+ */
+public class SimExportPlanner {
+    private static final String TAG = "SimExportPlanner";
+
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final String[] DATA_PROJECTION = new String[] {
+            Data.CONTACT_ID,
+            Data.MIMETYPE,
+            Data.DATA1,
+    };
+
+    /**
+     * A contact to export.
+     */
+    public static class Entry {
+        public final long contactId;
+        public final String name;
+        public final ArrayList<String> numbers = new ArrayList<>();
+        public final ArrayList<String> emails = new ArrayList<>();
+
+        public Entry(long contactId, String name) {
+            this.contactId = contactId;
+            this.name = name;
+        }
+    }
+
+    /**
+     * One ADN record, with ANRs and emails joined the way the card expects them.
+     */
+    public static class Record {
+        public final long contactId;
+        public final String name;
+        public final String number;
+        public final String anrs;
+        public final String emails;
+
+        Record(long contactId, String name, String number, String anrs, String emails) {
+            this.contactId = contactId;
+            this.name = name;
+            this.number = number;
+            this.anrs = anrs;
+            this.emails = emails;
+        }
+    }
+
+    /**
+     * Reports the progress of {@link Plan#write}.
+     */
+    public interface WriteListener {
+        /** Called on the writing thread after each record. */
+        void onRecordWritten(Record record, boolean succeeded, int done, int total);
+
+        /** Checked before each record, writing stops once it returns true. */
+        boolean isCanceled();
+    }
+
+    /**
+     * The records of all contacts that fit on the card.
+     */
+    public static class Plan {
+        private final ArrayList<Record> mRecords = new ArrayList<>();
+        private final ArrayList<Long> mUnfitContactIds = new ArrayList<>();
+        private final ArrayList<Long> mTruncatedContactIds = new ArrayList<>();
+        private int mDroppedNumbers;
+        private int mDroppedEmails;
+
+        public List<Record> getRecords() {
+            return mRecords;
+        }
+
+        /**
+         * @return the contacts that get no record at all because the card is full.
+         */
+        public List<Long> getUnfitContactIds() {
+            return mUnfitContactIds;
+        }
+
+        /**
+         * @return the contacts that fit, but without some of their numbers or emails.
+         */
+        public List<Long> getTruncatedContactIds() {
+            return mTruncatedContactIds;
+        }
+
+        public int getDroppedNumberCount() {
+            return mDroppedNumbers;
+        }
+
+        public int getDroppedEmailCount() {
+            return mDroppedEmails;
+        }
+
+        /**
+         * Writes the planned records to the card in order.
+         *
+         * @return the number of records written successfully.
+         */
+        public int write(Context context, int subscription, WriteListener listener) {
+            final SimCapacityCache cache = SimCapacityCache.getInstance(context);
+            final int total = mRecords.size();
+            int written = 0;
+            for (int i = 0; i < total; i++) {
+                if (listener != null && listener.isCanceled()) {
+                    break;
+                }
+                final Record record = mRecords.get(i);
+                final Uri uri = MoreContactUtils.insertToCard(context, record.name,
+                        record.number, record.emails, record.anrs, subscription);
+                final boolean succeeded = uri != null;
+                if (succeeded) {
+                    cache.onInserted(subscription, record.anrs, record.emails);
+                    written++;
+                }
+                if (listener != null) {
+                    listener.onRecordWritten(record, succeeded, i + 1, total);
+                }
+            }
+            Log.d(TAG, "wrote " + written + " of " + total + " records to sub " + subscription);
+            return written;
+        }
+    }
+
+    private SimExportPlanner() {
+    }
+
+    /**
+     * Reads the numbers and emails of the entries, with one data query per
+     * {@link #MAX_IDS_PER_QUERY} contacts.
+     */
+    public static void loadDetails(ContentResolver resolver, List<Entry> entries) {
+        final LongSparseArray<Entry> byId = new LongSparseArray<>(entries.size());
+        for (Entry entry : entries) {
+            byId.put(entry.contactId, entry);
+        }
+        for (int start = 0; start < entries.size(); start += MAX_IDS_PER_QUERY) {
+            final int end = Math.min(start + MAX_IDS_PER_QUERY, entries.size());
+            final StringBuilder selection = new StringBuilder(Data.MIMETYPE + " IN ('"
+                    + Phone.CONTENT_ITEM_TYPE + "','" + Email.CONTENT_ITEM_TYPE + "') AND "
+                    + Data.CONTACT_ID + " IN (");
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "" : ",").append(entries.get(i).contactId);
+            }
+            selection.append(")");
+            final Cursor cursor = resolver.query(Data.CONTENT_URI, DATA_PROJECTION,
+                    selection.toString(), null, Data.RAW_CONTACT_ID + "," + Data._ID);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final Entry entry = byId.get(cursor.getLong(0));
+                    final String value = cursor.getString(2);
+                    if (entry == null || TextUtils.isEmpty(value)) {
+                        continue;
+                    }
+                    if (Phone.CONTENT_ITEM_TYPE.equals(cursor.getString(1))) {
+                        entry.numbers.add(value);
+                    } else {
+                        entry.emails.add(value);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Plans the export of the entries to the card in the given slot.
+     */
+    public static Plan plan(Context context, int subscription, List<Entry> entries) {
+        loadSimContacts(context, subscription);
+        final SimCapacityCache.Capacity capacity =
+                SimCapacityCache.getInstance(context).get(subscription);
+        final int anrPerContact = MoreContactUtils.canSaveAnr(context, subscription)
+                ? capacity.anrPerContact : 0;
+        final int emailPerContact = MoreContactUtils.canSaveEmail(context, subscription)
+                ? capacity.emailPerContact : 0;
+        final Plan plan = plan(entries, capacity.getFreeAdnCount(), capacity.getSpareAnrCount(),
+                capacity.getSpareEmailCount(), anrPerContact, emailPerContact);
+        Log.d(TAG, "planned " + plan.mRecords.size() + " records for " + entries.size()
+                + " contacts, " + plan.mUnfitContactIds.size() + " do not fit");
+        return plan;
+    }
+
+    @VisibleForTesting
+    static Plan plan(List<Entry> entries, int freeAdn, int spareAnr, int spareEmail,
+            int anrPerContact, int emailPerContact) {
+        final Plan plan = new Plan();
+        final int numbersPerRecord = 1 + anrPerContact;
+        for (Entry entry : entries) {
+            final int nameCount = TextUtils.isEmpty(entry.name) ? 0 : 1;
+            if (nameCount == 0 && entry.numbers.isEmpty() && entry.emails.isEmpty()) {
+                continue;
+            }
+            int numbers = Math.min(entry.numbers.size(), Math.max(freeAdn, 0) * numbersPerRecord);
+            while (numbers > 0
+                    && numbers - divideRoundingUp(numbers, numbersPerRecord) > spareAnr) {
+                numbers--;
+            }
+            final int emails = Math.min(entry.emails.size(),
+                    Math.min(Math.max(spareEmail, 0), Math.max(freeAdn, 0) * emailPerContact));
+            final int recordCount = freeAdn <= 0 ? 0 : Math.max(nameCount, Math.max(
+                    divideRoundingUp(numbers, numbersPerRecord),
+                    divideRoundingUp(emails, emailPerContact)));
+            if (recordCount == 0) {
+                plan.mUnfitContactIds.add(entry.contactId);
+                plan.mDroppedNumbers += entry.numbers.size();
+                plan.mDroppedEmails += entry.emails.size();
+                continue;
+            }
+
+            for (int i = 0; i < recordCount; i++) {
+                final int firstNumber = i * numbersPerRecord;
+                final String number = firstNumber < numbers ? entry.numbers.get(firstNumber)
+                        : null;
+                final String anrs = join(entry.numbers, firstNumber + 1,
+                        Math.min(firstNumber + numbersPerRecord, numbers),
+                        SimContactsConstants.ANR_SEP);
+                final String recordEmails = join(entry.emails, i * emailPerContact,
+                        Math.min((i + 1) * emailPerContact, emails),
+                        SimContactsConstants.EMAIL_SEP);
+                plan.mRecords.add(new Record(entry.contactId, entry.name, number, anrs,
+                        recordEmails));
+            }
+
+            freeAdn -= recordCount;
+            spareAnr -= numbers - divideRoundingUp(numbers, numbersPerRecord);
+            spareEmail -= emails;
+            final int droppedNumbers = entry.numbers.size() - numbers;
+            final int droppedEmails = entry.emails.size() - emails;
+            if (droppedNumbers > 0 || droppedEmails > 0) {
+                plan.mTruncatedContactIds.add(entry.contactId);
+                plan.mDroppedNumbers += droppedNumbers;
+                plan.mDroppedEmails += droppedEmails;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Makes sure the card was read once, otherwise the count queries behind
+     * {@link SimCapacityCache} fail. Goes through {@link SimContactsMirror}, so the card is
+     * only queried when its records are not in memory yet.
+     */
+    private static void loadSimContacts(Context context, int subscription) {
+        final Cursor cursor = SimContactsMirror.getInstance(context).query(subscription, null);
+        cursor.close();
+    }
+
+    private static int divideRoundingUp(int count, int perRecord) {
+        return perRecord == 0 ? 0 : (count + perRecord - 1) / perRecord;
+    }
+
+    /**
+     * Joins the values in [start, end), each followed by the separator.
+     */
+    private static String join(List<String> values, int start, int end, String separator) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            sb.append(values.get(i)).append(separator);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.res.Resources;
+import android.os.AsyncTask;
+import android.widget.Toast;
+
+import com.android.contacts.R;
+
+import java.util.List;
+
+/**
+ * Exports contacts to a SIM card with {@link SimExportPlanner}.
+ *
+ * The contacts are planned first. If some of them do not fit, or fit without some of their
+ * numbers or emails, the user confirms before anything is written. The records are then
+ * written behind a progress dialog that can cancel the export.
+ *
+ * Only one export runs at a time and it outlives the activity that started it: a re-created
+ * activity gets it back from {@link #getRunning()} and {@link #attach}es to it again. The
+ * result is shown as a toast, so it does not need an activity.
+ */
+public class SimExportTask extends AsyncTask<Void, Integer, Integer>
+        implements SimExportPlanner.WriteListener {
+    private static final int STATE_PLANNING = 0;
+    private static final int STATE_CONFIRMING = 1;
+    private static final int STATE_WRITING = 2;
+
+    // Only touched on the main thread.
+    private static SimExportTask sRunning;
+
+    private final Context mContext;
+    private final int mSubscription;
+    private SimExportPlanner.Plan mPlan;
+    private int mState = STATE_PLANNING;
+    private Activity mActivity;
+    private Dialog mDialog;
+    private ProgressDialog mProgressDialog;
+    private int mDone;
+
+    private SimExportTask(Context context, int subscription) {
+        mContext = context.getApplicationContext();
+        mSubscription = subscription;
+    }
+
+    /**
+     * Starts exporting the entries to the card in the given slot, unless an export is
+     * running already. Must be called on the main thread.
+     *
+     * @return true if the export was started.
+     */
+    public static boolean start(Activity activity, final int subscription,
+            final List<SimExportPlanner.Entry> entries) {
+        if (sRunning != null) {
+            return false;
+        }
+        final SimExportTask task = new SimExportTask(activity, subscription);
+        sRunning = task;
+        task.attach(activity);
+        new AsyncTask<Void, Void, SimExportPlanner.Plan>() {
+            @Override
+            protected SimExportPlanner.Plan doInBackground(Void... params) {
+                SimExportPlanner.loadDetails(task.mContext.getContentResolver(), entries);
+                return SimExportPlanner.plan(task.mContext, subscription, entries);
+            }
+
+            @Override
+            protected void onPostExecute(SimExportPlanner.Plan plan) {
+                task.onPlanned(plan);
+            }
+        }.execute();
+        return true;
+    }
+
+    /**
+     * @return the export that is running, or null.
+     */
+    public static SimExportTask getRunning() {
+        return sRunning;
+    }
+
+    /**
+     * Shows the state of the export in the given activity.
+     */
+    public void attach(Activity activity) {
+        if (mActivity == activity) {
+            return;
+        }
+        detach(mActivity);
+        mActivity = activity;
+        showDialog();
+    }
+
+    /**
+     * Stops showing the state in the given activity, the export goes on.
+     */
+    public void detach(Activity activity) {
+        if (activity == null || mActivity != activity) {
+            return;
+        }
+        dismissDialog();
+        mActivity = null;
+    }
+
+    private void onPlanned(SimExportPlanner.Plan plan) {
+        mPlan = plan;
+        final int unfitCount = plan.getUnfitContactIds().size();
+        if (isCancelled() || plan.getRecords().isEmpty()) {
+            if (!isCancelled() && unfitCount > 0) {
+                Toast.makeText(mContext, mContext.getResources().getQuantityString(
+                        R.plurals.sim_export_contacts_not_fit, unfitCount, unfitCount),
+                        Toast.LENGTH_LONG).show();
+            }
+            finish();
+            return;
+        }
+        if (unfitCount == 0 && plan.getTruncatedContactIds().isEmpty()) {
+            startWriting();
+            return;
+        }
+        // nothing is written before the user knows what will be left out.
+        mState = STATE_CONFIRMING;
+        showDialog();
+    }
+
+    private void startWriting() {
+        mState = STATE_WRITING;
+        showDialog();
+        execute();
+    }
+
+    private void showDialog() {
+        dismissDialog();
+        if (mActivity == null) {
+            return;
+        }
+        if (mState == STATE_CONFIRMING) {
+            mDialog = new AlertDialog.Builder(mActivity)
+                    .setTitle(R.string.exporting_to_sim_title)
+                    .setMessage(getPlanMessage())
+                    .setNegativeButton(android.R.string.cancel,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialog, int which) {
+                                    finish();
+                                }
+                            })
+                    .setPositiveButton(android.R.string.ok,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialog, int which) {
+                                    startWriting();
+                                }
+                            })
+                    .setOnCancelListener(new DialogInterface.OnCancelListener() {
+                        @Override
+                        public void onCancel(DialogInterface dialog) {
+                            finish();
+                        }
+                    })
+                    .create();
+            mDialog.setCanceledOnTouchOutside(false);
+            mDialog.show();
+            return;
+        }
+
+        mProgressDialog = new ProgressDialog(mActivity);
+        mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mProgressDialog.setTitle(R.string.exporting_to_sim_title);
+        // the number of records is only known once the contacts are planned.
+        mProgressDialog.setIndeterminate(mState == STATE_PLANNING);
+        mProgressDialog.setMax(mPlan == null ? 0 : mPlan.getRecords().size());
+        mProgressDialog.setProgress(mDone);
+        mProgressDialog.setCanceledOnTouchOutside(false);
+        mProgressDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                mActivity.getString(R.string.btn_cancel), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        cancel(false);
+                    }
+                });
+        mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                cancel(false);
+            }
+        });
+        mProgressDialog.show();
+        mDialog = mProgressDialog;
+    }
+
+    private String getPlanMessage() {
+        final Resources res = mContext.getResources();
+        final int unfitCount = mPlan.getUnfitContactIds().size();
+        final int truncatedCount = mPlan.getTruncatedContactIds().size();
+        final StringBuilder message = new StringBuilder();
+        if (unfitCount > 0) {
+            message.append(res.getQuantityString(R.plurals.sim_export_contacts_not_fit,
+                    unfitCount, unfitCount));
+        }
+        if (truncatedCount > 0) {
+            message.append(message.length() > 0 ? "\n" : "").append(res.getQuantityString(
+                    R.plurals.sim_export_contacts_truncated, truncatedCount, truncatedCount));
+        }
+        return message.toString();
+    }
+
+    private void dismissDialog() {
+        // the activity may be gone by the time a cancelled export stops.
+        if (mDialog != null && mDialog.isShowing() && !mActivity.isDestroyed()) {
+            mDialog.dismiss();
+        }
+        mDialog = null;
+        mProgressDialog = null;
+    }
+
+    @Override
+    protected Integer doInBackground(Void... params) {
+        return mPlan.write(mContext, mSubscription, this);
+    }
+
+    @Override
+    public void onRecordWritten(SimExportPlanner.Record record, boolean succeeded, int done,
+            int total) {
+        publishProgress(done);
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return isCancelled();
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        mDone = values[0];
+        if (mProgressDialog != null) {
+            mProgressDialog.setProgress(mDone);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Integer written) {
+        finish();
+        Toast.makeText(mContext, written == mPlan.getRecords().size() ? R.string.copy_done
+                : R.string.copy_failure, Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    protected void onCancelled(Integer written) {
+        finish();
+    }
+
+    private void finish() {
+        detach(mActivity);
+        // a task cancelled while planning finishes twice, by then another may be running.
+        if (sRunning == this) {
+            sRunning = null;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.model.RawContactDelta;
+import com.android.contacts.common.model.RawContactDeltaList;
+import com.android.contacts.common.model.ValuesDelta;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ContactSaveQueue}.
+ */
+@SmallTest
+public class ContactSaveQueueTest extends AndroidTestCase {
+
+    private static final Uri CONTACT_1 = ContentUris.withAppendedId(Contacts.CONTENT_URI, 1);
+    private static final Uri CONTACT_2 = ContentUris.withAppendedId(Contacts.CONTENT_URI, 2);
+
+    public void testPriority() {
+        assertEquals(ContactSaveQueue.PRIORITY_USER,
+                ContactSaveQueue.getPriority(ContactSaveService.ACTION_SAVE_CONTACT));
+        assertEquals(ContactSaveQueue.PRIORITY_SINGLE,
+                ContactSaveQueue.getPriority(ContactSaveService.ACTION_SET_STARRED));
+        assertEquals(ContactSaveQueue.PRIORITY_BULK, ContactSaveQueue.getPriority(
+                ContactSaveService.ACTION_DELETE_MULTIPLE_CONTACTS));
+    }
+
+    public void testCoalesceKey() {
+        final Intent star = starIntent(CONTACT_1, true);
+        assertEquals(ContactSaveQueue.getCoalesceKey(star),
+                ContactSaveQueue.getCoalesceKey(starIntent(CONTACT_1, false)));
+        assertFalse(ContactSaveQueue.getCoalesceKey(star).equals(
+                ContactSaveQueue.getCoalesceKey(starIntent(CONTACT_2, true))));
+        assertFalse(ContactSaveQueue.getCoalesceKey(star).equals(ContactSaveQueue.getCoalesceKey(
+                ContactSaveService.createSetSendToVoicemail(getContext(), CONTACT_1, true))));
+        assertNull(ContactSaveQueue.getCoalesceKey(
+                ContactSaveService.createDeleteContactIntent(getContext(), CONTACT_1)));
+    }
+
+    public void testLock() {
+        assertEquals(ContactSaveQueue.getLock(starIntent(CONTACT_1, true)),
+                ContactSaveQueue.getLock(
+                        ContactSaveService.createDeleteContactIntent(getContext(), CONTACT_1)));
+        assertNull(ContactSaveQueue.getLock(ContactSaveService.createDeleteMultipleContactsIntent(
+                getContext(), new long[] {1, 2})));
+        assertEquals(ContactSaveQueue.getLock(starIntent(CONTACT_1, true)),
+                ContactSaveQueue.getLock(saveIntent(1)));
+        assertEquals(ContactSaveQueue.getLock(starIntent(CONTACT_1, true)),
+                ContactSaveQueue.getLock(ContactSaveService.createSetSuperPrimaryIntent(
+                        getContext(), 5, CONTACT_1)));
+        assertNull(ContactSaveQueue.getLock(
+                ContactSaveService.createSetSuperPrimaryIntent(getContext(), 5)));
+        assertFalse(ContactSaveQueue.getLock(saveIntent(1)).equals(
+                ContactSaveQueue.getLock(saveIntent(2))));
+    }
+
+    public void testContactLock() {
+        assertEquals(ContactSaveQueue.getContactLock(CONTACT_1), ContactSaveQueue.getContactLock(
+                Contacts.getLookupUri(1, "0r1-2F")));
+        final Uri lookupOnly = Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, "1");
+        assertFalse(ContactSaveQueue.getContactLock(CONTACT_1).equals(
+                ContactSaveQueue.getContactLock(lookupOnly)));
+    }
+
+    public void testSameContactKeepsOrder() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch idle = new CountDownLatch(1);
+        final List<String> processed = new ArrayList<>();
+        final ContactSaveQueue queue = new ContactSaveQueue(new ContactSaveQueue.Callback() {
+            @Override
+            public void process(Intent intent) {
+                if (ContactSaveService.ACTION_DELETE_MULTIPLE_CONTACTS.equals(
+                        intent.getAction())) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                synchronized (processed) {
+                    processed.add(intent.getAction());
+                }
+            }
+
+            @Override
+            public void onIdle() {
+                idle.countDown();
+            }
+        });
+
+        queue.enqueue(ContactSaveService.createDeleteMultipleContactsIntent(getContext(),
+                new long[] {3}));
+        queue.enqueue(starIntent(CONTACT_1, true));
+        // a save outranks the star, but not when both are for the same contact.
+        queue.enqueue(saveIntent(1));
+        release.countDown();
+
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        queue.shutdown();
+        assertEquals(3, processed.size());
+        assertTrue(processed.indexOf(ContactSaveService.ACTION_SET_STARRED)
+                < processed.indexOf(ContactSaveService.ACTION_SAVE_CONTACT));
+    }
+
+    public void testNothingOvertakesBarrier() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch idle = new CountDownLatch(1);
+        final List<Intent> processed = new ArrayList<>();
+        final ContactSaveQueue queue = new ContactSaveQueue(new ContactSaveQueue.Callback() {
+            @Override
+            public void process(Intent intent) {
+                if (processed.isEmpty()) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                synchronized (processed) {
+                    processed.add(intent);
+                }
+            }
+
+            @Override
+            public void onIdle() {
+                idle.countDown();
+            }
+        });
+
+        queue.enqueue(ContactSaveService.createDeleteMultipleContactsIntent(getContext(),
+                new long[] {3}));
+        queue.enqueue(starIntent(CONTACT_1, true));
+        final Intent delete = ContactSaveService.createDeleteMultipleContactsIntent(getContext(),
+                new long[] {1});
+        queue.enqueue(delete);
+        // neither a higher priority nor a coalescable change moves ahead of the delete.
+        queue.enqueue(saveIntent(1));
+        queue.enqueue(starIntent(CONTACT_1, false));
+        assertEquals(4, queue.getDepth());
+        release.countDown();
+
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        queue.shutdown();
+        assertEquals(5, processed.size());
+        assertSame(delete, processed.get(2));
+        assertEquals(ContactSaveService.ACTION_SAVE_CONTACT, processed.get(3).getAction());
+        assertFalse(processed.get(4).getBooleanExtra(ContactSaveService.EXTRA_STARRED_FLAG,
+                true));
+    }
+
+    public void testLastWriteWins() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch idle = new CountDownLatch(1);
+        final List<Intent> processed = new ArrayList<>();
+        final ContactSaveQueue queue = new ContactSaveQueue(new ContactSaveQueue.Callback() {
+            @Override
+            public void process(Intent intent) {
+                if (ContactSaveService.ACTION_DELETE_MULTIPLE_CONTACTS.equals(
+                        intent.getAction())) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                synchronized (processed) {
+                    processed.add(intent);
+                }
+            }
+
+            @Override
+            public void onIdle() {
+                idle.countDown();
+            }
+        });
+
+        // the barrier keeps the star changes pending until they are all queued.
+        queue.enqueue(ContactSaveService.createDeleteMultipleContactsIntent(getContext(),
+                new long[] {3}));
+        queue.enqueue(starIntent(CONTACT_1, true));
+        queue.enqueue(starIntent(CONTACT_1, false));
+        queue.enqueue(starIntent(CONTACT_1, true));
+        assertEquals(1, queue.getDepth());
+        release.countDown();
+
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        queue.shutdown();
+        assertEquals(2, processed.size());
+        assertTrue(processed.get(1).getBooleanExtra(ContactSaveService.EXTRA_STARRED_FLAG, false));
+    }
+
+    private Intent starIntent(Uri contactUri, boolean value) {
+        return ContactSaveService.createSetStarredIntent(getContext(), contactUri, value);
+    }
+
+    private Intent saveIntent(long contactId) {
+        final ContentValues values = new ContentValues();
+        values.put(RawContacts._ID, contactId * 10);
+        values.put(RawContacts.CONTACT_ID, contactId);
+        final RawContactDeltaList state = new RawContactDeltaList();
+        state.add(new RawContactDelta(ValuesDelta.fromBefore(values)));
+        return ContactSaveService.createSaveContactIntent(getContext(), state, "saveMode", 0,
+                false, null, null, null, null, null);
+    }
+}
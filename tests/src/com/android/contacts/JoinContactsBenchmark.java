@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Compares the provider time of the join strategies of
+ * {@link ContactSaveService#buildJoinOperations} as the number of raw contacts grows.
+ *
+ * Runs against the real contacts provider with raw contacts of a throw-away account that
+ * are removed afterwards.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.JoinContactsBenchmark \
+       com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class JoinContactsBenchmark extends AndroidTestCase {
+    private static final String TAG = "JoinContactsBenchmark";
+
+    private static final String ACCOUNT_NAME = "join-benchmark";
+    private static final String ACCOUNT_TYPE = "com.android.contacts.tests.benchmark";
+    private static final int[] SIZES = new int[] {5, 10, 20, 40};
+    private static final int BATCH_SIZE = 499;
+
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getContext().getContentResolver();
+        deleteRawContacts();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRawContacts();
+        super.tearDown();
+    }
+
+    public void testJoinStrategies() throws Exception {
+        for (int size : SIZES) {
+            final long pairs = join(size, ContactSaveService.JOIN_STRATEGY_ALL_PAIRS);
+            final long star = join(size, ContactSaveService.JOIN_STRATEGY_STAR);
+            Log.i(TAG, "n=" + size + " allPairs=" + pairs + "ms star=" + star + "ms");
+        }
+    }
+
+    public void testOperationCount() {
+        final long[] rawContactIds = new long[] {1, 2, 3, 4, 5};
+        assertEquals(20, ContactSaveService.buildJoinOperations(rawContactIds,
+                ContactSaveService.JOIN_STRATEGY_ALL_PAIRS).size());
+        assertEquals(4, ContactSaveService.buildJoinOperations(rawContactIds,
+                ContactSaveService.JOIN_STRATEGY_STAR).size());
+    }
+
+    /**
+     * Joins {@param size} new raw contacts and checks that they end up in one contact.
+     *
+     * @return the time spent in the provider applying the aggregation exceptions.
+     */
+    private long join(int size, int strategy) throws Exception {
+        final long[] rawContactIds = insertRawContacts(size);
+        final ArrayList<ContentProviderOperation> operations =
+                ContactSaveService.buildJoinOperations(rawContactIds, strategy);
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < operations.size(); i += BATCH_SIZE) {
+            mResolver.applyBatch(ContactsContract.AUTHORITY, new ArrayList<>(
+                    operations.subList(i, Math.min(i + BATCH_SIZE, operations.size()))));
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        assertEquals(1, countContacts(rawContactIds));
+        deleteRawContacts();
+        return elapsed;
+    }
+
+    private long[] insertRawContacts(int size) throws Exception {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final ContentValues values = new ContentValues();
+            values.put(RawContacts.ACCOUNT_NAME, ACCOUNT_NAME);
+            values.put(RawContacts.ACCOUNT_TYPE, ACCOUNT_TYPE);
+            operations.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                    .withValues(values).build());
+        }
+        final long[] rawContactIds = new long[size];
+        final ContentProviderResult[] results =
+                mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+        for (int i = 0; i < size; i++) {
+            rawContactIds[i] = ContentUris.parseId(results[i].uri);
+        }
+        return rawContactIds;
+    }
+
+    private int countContacts(long[] rawContactIds) {
+        final StringBuilder selection = new StringBuilder(RawContacts._ID + " IN (");
+        for (int i = 0; i < rawContactIds.length; i++) {
+            selection.append(i == 0 ? "" : ",").append(rawContactIds[i]);
+        }
+        selection.append(")");
+        final Cursor cursor = mResolver.query(RawContacts.CONTENT_URI,
+                new String[] {RawContacts.CONTACT_ID}, selection.toString(), null, null);
+        final HashSet<Long> contactIds = new HashSet<>();
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return contactIds.size();
+    }
+
+    private void deleteRawContacts() {
+        final Uri uri = RawContacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .build();
+        mResolver.delete(uri, RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE
+                + "=?", new String[] {ACCOUNT_NAME, ACCOUNT_TYPE});
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.list;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test case for {@link SelectionStore}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.list.SelectionStoreTest \
+       com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class SelectionStoreTest extends AndroidTestCase {
+
+    private static final String[] VALUE = new String[] {"Mary Jane", "650-253-0000"};
+
+    public void testPutAndRemove() {
+        final SelectionStore store = new SelectionStore();
+        store.put(3L, VALUE);
+        store.put(Long.MAX_VALUE, null);
+        assertEquals(2, store.size());
+        assertTrue(store.contains(3L));
+        assertTrue(store.contains(Long.MAX_VALUE));
+        assertSame(VALUE, store.get(3L));
+        assertNull(store.get(Long.MAX_VALUE));
+        assertFalse(store.contains(4L));
+
+        assertTrue(store.remove(3L));
+        assertFalse(store.remove(3L));
+        assertFalse(store.contains(3L));
+        assertEquals(1, store.size());
+        assertEquals(Long.MAX_VALUE, store.keyAt(0));
+    }
+
+    public void testGrowAndRemoveAll() {
+        final int count = 20000;
+        final long[] ids = new long[count];
+        final SelectionStore store = new SelectionStore();
+        for (int i = 0; i < count; i++) {
+            ids[i] = i * 16L;
+            store.put(ids[i], new String[] {String.valueOf(i)});
+        }
+        assertEquals(count, store.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(String.valueOf(i), store.get(ids[i])[0]);
+        }
+
+        // removing every other id leaves holes in the probe runs of the rest.
+        final long[] even = new long[count / 2];
+        for (int i = 0; i < even.length; i++) {
+            even[i] = ids[i * 2];
+        }
+        assertEquals(even.length, store.removeAll(even));
+        assertEquals(0, store.removeAll(even));
+        for (int i = 0; i < count; i++) {
+            assertEquals(i % 2 == 1, store.contains(ids[i]));
+        }
+    }
+
+    public void testPutAllKeepsExistingValues() {
+        final SelectionStore store = new SelectionStore();
+        store.put(1L, VALUE);
+        final SelectionStore other = new SelectionStore();
+        other.put(1L, null);
+        other.put(2L, null);
+        store.putAll(other);
+        assertEquals(2, store.size());
+        assertSame(VALUE, store.get(1L));
+
+        store.putAll(new long[] {2L, 3L}, null);
+        assertEquals(3, store.size());
+    }
+
+    public void testSnapshotIsIndependent() {
+        final SelectionStore store = new SelectionStore();
+        store.put(1L, VALUE);
+        final SelectionStore snapshot = store.snapshot();
+        store.put(2L, VALUE);
+        store.remove(1L);
+        assertEquals(1, snapshot.size());
+        assertTrue(snapshot.contains(1L));
+        assertFalse(snapshot.contains(2L));
+
+        snapshot.clear();
+        assertTrue(snapshot.isEmpty());
+        assertTrue(store.contains(2L));
+    }
+
+    public void testBundleRoundTrip() {
+        final SelectionStore store = new SelectionStore();
+        store.put(7L, VALUE);
+        store.put(8L, null);
+        final Bundle bundle = store.toBundle();
+        assertEquals(2, bundle.size());
+        assertTrue(Arrays.equals(VALUE, bundle.getStringArray("7")));
+
+        bundle.putStringArray("not an id", VALUE);
+        final SelectionStore restored = SelectionStore.fromBundle(bundle);
+        assertEquals(2, restored.size());
+        assertTrue(Arrays.equals(VALUE, restored.get(7L)));
+        assertTrue(restored.contains(8L));
+    }
+}
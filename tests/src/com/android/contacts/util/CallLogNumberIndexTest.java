@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Test case for {@link CallLogNumberIndex}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.CallLogNumberIndexTest \
+       com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class CallLogNumberIndexTest extends AndroidTestCase {
+
+    public void testSearchIgnoresPunctuation() {
+        final CallLogNumberIndex index = new CallLogNumberIndex();
+        index.put(1, "+1 650-253-0000");
+        index.put(2, "(020) 7031 3000");
+        index.put(3, "13800138000");
+
+        assertTrue(Arrays.equals(new long[] {1}, index.search("650-253")));
+        assertTrue(Arrays.equals(new long[] {1, 2}, index.search("3000")));
+        assertTrue(Arrays.equals(new long[] {3}, index.search("38")));
+        assertTrue(Arrays.equals(new long[] {1, 2, 3}, index.search("0")));
+        assertEquals(0, index.search("650x").length);
+        assertEquals(0, index.search("- ").length);
+        assertEquals(0, index.search(null).length);
+    }
+
+    public void testPutReplacesNumber() {
+        final CallLogNumberIndex index = new CallLogNumberIndex();
+        index.put(1, "6502530000");
+        index.put(1, "2070313000");
+
+        assertEquals(1, index.size());
+        assertEquals(0, index.search("650").length);
+        assertTrue(Arrays.equals(new long[] {1}, index.search("207")));
+
+        index.put(1, "");
+        assertEquals(0, index.size());
+        assertEquals(0, index.search("207").length);
+    }
+
+    public void testUpdateKeepsOnlyGivenCalls() {
+        final CallLogNumberIndex index = new CallLogNumberIndex();
+        index.update(new long[] {1, 2, 3}, new String[] {"111222", "222333", "333444"});
+        index.update(new long[] {3, 4}, new String[] {"333444", "444555"});
+
+        assertEquals(2, index.size());
+        assertEquals(0, index.search("222").length);
+        assertTrue(Arrays.equals(new long[] {3, 4}, index.search("444")));
+        assertFalse(index.remove(1));
+        assertTrue(index.remove(3));
+        assertTrue(Arrays.equals(new long[] {4}, index.search("444")));
+    }
+
+    public void testGramsOfAreDistinct() {
+        assertTrue(Arrays.equals(new int[] {111}, CallLogNumberIndex.gramsOf("11111")));
+        assertTrue(Arrays.equals(new int[] {12, 123}, CallLogNumberIndex.gramsOf("0123")));
+        assertEquals(0, CallLogNumberIndex.gramsOf("12").length);
+    }
+
+    public void testMatchesSubstringSearch() {
+        final Random random = new Random(23);
+        final CallLogNumberIndex index = new CallLogNumberIndex();
+        final Map<Long, String> numbers = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            final long callId = random.nextInt(200);
+            if (random.nextInt(4) == 0) {
+                index.remove(callId);
+                numbers.remove(callId);
+            } else {
+                final String number = randomDigits(random, 1 + random.nextInt(10));
+                index.put(callId, number);
+                numbers.put(callId, number);
+            }
+
+            final String filter = randomDigits(random, 1 + random.nextInt(4));
+            final List<Long> expected = new ArrayList<>();
+            for (Map.Entry<Long, String> entry : numbers.entrySet()) {
+                if (entry.getValue().contains(filter)) {
+                    expected.add(entry.getKey());
+                }
+            }
+            final long[] matches = index.search(filter);
+            assertEquals(filter, expected.size(), matches.length);
+            for (long match : matches) {
+                assertTrue(filter, expected.contains(match));
+            }
+        }
+    }
+
+    private static String randomDigits(Random random, int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            // few distinct digits, so that numbers share their grams.
+            sb.append(random.nextInt(4));
+        }
+        return sb.toString();
+    }
+}
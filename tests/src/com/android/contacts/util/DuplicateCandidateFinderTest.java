@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.util.DuplicateSignatureStore.Signature;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.crypto.Mac;
+
+/**
+ * Test case for {@link DuplicateCandidateFinder}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.DuplicateCandidateFinderTest \
+       com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class DuplicateCandidateFinderTest extends AndroidTestCase {
+
+    private static final Mac MAC = DuplicateSignatureStore.newMac(new byte[32]);
+
+    private static Signature signature(long rawId, String name, String phone, String email) {
+        final Signature signature = new Signature(rawId, 1, MAC);
+        signature.nameKey = name == null ? null : name.toLowerCase();
+        if (phone != null) {
+            signature.addPhone(phone);
+        }
+        if (email != null) {
+            signature.addEmail(email);
+        }
+        return signature;
+    }
+
+    private static List<List<Long>> sortedGroups(List<List<Long>> groups) {
+        final List<List<Long>> sorted = new ArrayList<>();
+        for (List<Long> group : groups) {
+            final List<Long> copy = new ArrayList<>(group);
+            Collections.sort(copy);
+            sorted.add(copy);
+        }
+        Collections.sort(sorted, new Comparator<List<Long>>() {
+            @Override
+            public int compare(List<Long> lhs, List<Long> rhs) {
+                return lhs.get(0).compareTo(rhs.get(0));
+            }
+        });
+        return sorted;
+    }
+
+    public void testTokenize() {
+        MoreAsserts.assertEquals(new String[] {"jon", "smith"},
+                DuplicateCandidateFinder.tokenize("Smith, Jon"));
+        MoreAsserts.assertEquals(new String[0], DuplicateCandidateFinder.tokenize(null));
+    }
+
+    public void testSoundex() {
+        assertEquals("R163", DuplicateCandidateFinder.soundex("robert"));
+        assertEquals("R163", DuplicateCandidateFinder.soundex("rupert"));
+        assertEquals("A261", DuplicateCandidateFinder.soundex("ashcraft"));
+        assertEquals("\u5f20\u4e09", DuplicateCandidateFinder.soundex("\u5f20\u4e09"));
+    }
+
+    public void testFindGroups() {
+        final List<Signature> signatures = Arrays.asList(
+                signature(1, "Jon Smith", null, null),
+                signature(2, "Smith, Jon", null, null),
+                signature(3, "jon smith", null, null),
+                signature(4, "Jonn Smyth", "650-253-0000", null),
+                signature(5, "John Smith", "+1 650 253 0000", null),
+                signature(6, "Alice", "650-253-0000", null),
+                signature(7, "Bob", null, "bob@example.com"),
+                signature(8, "Robert", null, "bob@example.org"));
+        final DuplicateCandidateFinder finder = new DuplicateCandidateFinder(
+                DuplicateCandidateFinder.DEFAULT_SCORER);
+        assertEquals(Arrays.asList(Arrays.asList(1L, 2L, 3L), Arrays.asList(4L, 5L)),
+                sortedGroups(finder.findGroups(signatures)));
+    }
+
+    public void testCustomScorer() {
+        final List<Signature> signatures = Arrays.asList(
+                signature(1, "Alice", "650-253-0000", null),
+                signature(2, "Bob", "650-253-0000", null),
+                signature(3, "Carol", null, null));
+        final DuplicateCandidateFinder finder = new DuplicateCandidateFinder(
+                new DuplicateCandidateFinder.Scorer() {
+                    @Override
+                    public float score(DuplicateCandidateFinder.Candidate a,
+                            DuplicateCandidateFinder.Candidate b) {
+                        return 1f;
+                    }
+
+                    @Override
+                    public float getThreshold() {
+                        return 1f;
+                    }
+                });
+        assertEquals(Arrays.asList(Arrays.asList(1L, 2L)),
+                sortedGroups(finder.findGroups(signatures)));
+        assertEquals(1, finder.getComparisonCount());
+    }
+
+    public void testSignatureKeysAreHashed() {
+        final Signature a = signature(1, "Bob", "650-253-0000", " Bob@Example.com");
+        final Signature b = signature(2, "Bob", "+1 650 253 0000", "bob@example.com");
+        assertEquals(a.phoneKeys, b.phoneKeys);
+        assertEquals(a.emailKeys, b.emailKeys);
+        assertEquals(a.emailBlockKeys, b.emailBlockKeys);
+        assertFalse(a.emailKeys.get(0).contains("bob"));
+        assertFalse(a.phoneKeys.get(0).contains("2530000"));
+
+        final Mac otherMac = DuplicateSignatureStore.newMac(new byte[] {1});
+        assertFalse(DuplicateSignatureStore.hashKey(MAC, "bob").equals(
+                DuplicateSignatureStore.hashKey(otherMac, "bob")));
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.mock.MockContentProvider;
+import android.text.TextUtils;
+
+import com.android.contacts.common.SimContactsConstants;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory stand-in for the ICC phonebook provider of one SIM card, for exercising the SIM
+ * code paths without a card.
+ *
+ * Records live in a list and the card limits are set at construction. Each call sleeps for
+ * the configured latency first, like a round trip to the modem would. The same object reports
+ * the remaining space as a {@link SimCapacityCache.CapacitySource}, so the capacity the app
+ * reads always agrees with the records on the fake card.
+ *
+ * Register it under the "icc" authority of a MockContentResolver, see
+ * {@link SimPhonebookBenchmark}.
+ */
+public class FakeIccPhonebookProvider extends MockContentProvider
+        implements SimCapacityCache.CapacitySource {
+    public static final String AUTHORITY = "icc";
+
+    private static final String[] COLUMN_NAMES = new String[] {
+            "name",
+            "number",
+            "emails",
+            "anrs",
+            "_id"
+    };
+
+    private static class Record {
+        final long id;
+        String name;
+        String number;
+        String emails;
+        String anrs;
+
+        Record(long id, String name, String number, String emails, String anrs) {
+            this.id = id;
+            this.name = name;
+            this.number = number;
+            this.emails = emails;
+            this.anrs = anrs;
+        }
+    }
+
+    private final int mAdnCount;
+    private final int mAnrPerContact;
+    private final int mEmailPerContact;
+    // All guarded by mRecords.
+    private final ArrayList<Record> mRecords = new ArrayList<>();
+    private long mNextId = 1;
+    private volatile long mLatencyMillis;
+    private final AtomicInteger mCallCount = new AtomicInteger();
+
+    public FakeIccPhonebookProvider(Context context, int adnCount, int anrPerContact,
+            int emailPerContact) {
+        super(context);
+        mAdnCount = adnCount;
+        mAnrPerContact = anrPerContact;
+        mEmailPerContact = emailPerContact;
+    }
+
+    /**
+     * Sets how long every provider call takes before it does anything.
+     */
+    public void setLatencyMillis(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * @return the number of provider calls since the last {@link #clear()}.
+     */
+    public int getCallCount() {
+        return mCallCount.get();
+    }
+
+    public int getRecordCount() {
+        synchronized (mRecords) {
+            return mRecords.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (mRecords) {
+            mRecords.clear();
+        }
+        mCallCount.set(0);
+    }
+
+    /**
+     * Puts a record on the card directly, without latency.
+     *
+     * @return false if the card has no room for it.
+     */
+    public boolean addRecord(String name, String number, String emails, String anrs) {
+        synchronized (mRecords) {
+            if (!fits(emails, anrs)) {
+                return false;
+            }
+            mRecords.add(new Record(mNextId++, name, number, emails, anrs));
+            return true;
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        simulateLatency();
+        final MatrixCursor cursor = new MatrixCursor(COLUMN_NAMES);
+        synchronized (mRecords) {
+            for (Record record : mRecords) {
+                cursor.addRow(new Object[] {
+                        record.name, record.number, record.emails, record.anrs, record.id});
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        simulateLatency();
+        synchronized (mRecords) {
+            final String emails = values.getAsString(SimContactsConstants.STR_EMAILS);
+            final String anrs = values.getAsString(SimContactsConstants.STR_ANRS);
+            if (!fits(emails, anrs)) {
+                return null;
+            }
+            final Record record = new Record(mNextId++,
+                    values.getAsString(SimContactsConstants.STR_TAG),
+                    values.getAsString(SimContactsConstants.STR_NUMBER), emails, anrs);
+            mRecords.add(record);
+            return Uri.withAppendedPath(uri, String.valueOf(record.id));
+        }
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        simulateLatency();
+        synchronized (mRecords) {
+            final Record record = find(values.getAsString(SimContactsConstants.STR_TAG),
+                    values.getAsString(SimContactsConstants.STR_NUMBER));
+            if (record == null) {
+                return 0;
+            }
+            record.name = values.getAsString(SimContactsConstants.STR_NEW_TAG);
+            record.number = values.getAsString(SimContactsConstants.STR_NEW_NUMBER);
+            record.emails = values.getAsString(SimContactsConstants.STR_NEW_EMAILS);
+            record.anrs = values.getAsString(SimContactsConstants.STR_NEW_ANRS);
+            return 1;
+        }
+    }
+
+    /**
+     * Deletes the first record matching the tag and number of a where clause in the
+     * "tag='name' AND number='123' ..." form the ICC provider accepts.
+     */
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        simulateLatency();
+        String tag = null;
+        String number = null;
+        if (selection != null) {
+            for (String pair : selection.split("AND")) {
+                final int equals = pair.indexOf('=');
+                if (equals < 0) {
+                    continue;
+                }
+                final String key = pair.substring(0, equals).trim();
+                final String value = unquote(pair.substring(equals + 1).trim());
+                if (SimContactsConstants.STR_TAG.equals(key)) {
+                    tag = value;
+                } else if (SimContactsConstants.STR_NUMBER.equals(key)) {
+                    number = value;
+                }
+            }
+        }
+        synchronized (mRecords) {
+            final Record record = find(tag, number);
+            return record != null && mRecords.remove(record) ? 1 : 0;
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public int getAdnCount(int subscription) {
+        return mAdnCount;
+    }
+
+    @Override
+    public int getAnrPerContact(int subscription) {
+        return mAnrPerContact;
+    }
+
+    @Override
+    public int getEmailPerContact(int subscription) {
+        return mEmailPerContact;
+    }
+
+    @Override
+    public int getFreeAdnCount(int subscription) {
+        simulateLatency();
+        synchronized (mRecords) {
+            return mAdnCount - mRecords.size();
+        }
+    }
+
+    @Override
+    public int getSpareAnrCount(int subscription) {
+        simulateLatency();
+        synchronized (mRecords) {
+            int used = 0;
+            for (Record record : mRecords) {
+                used += countEntries(record.anrs, SimContactsConstants.ANR_SEP);
+            }
+            return mAdnCount * mAnrPerContact - used;
+        }
+    }
+
+    @Override
+    public int getSpareEmailCount(int subscription) {
+        simulateLatency();
+        synchronized (mRecords) {
+            int used = 0;
+            for (Record record : mRecords) {
+                used += countEntries(record.emails, SimContactsConstants.EMAIL_SEP);
+            }
+            return mAdnCount * mEmailPerContact - used;
+        }
+    }
+
+    private boolean fits(String emails, String anrs) {
+        return mRecords.size() < mAdnCount
+                && countEntries(anrs, SimContactsConstants.ANR_SEP) <= mAnrPerContact
+                && countEntries(emails, SimContactsConstants.EMAIL_SEP) <= mEmailPerContact;
+    }
+
+    private Record find(String tag, String number) {
+        for (Record record : mRecords) {
+            if (TextUtils.equals(emptyToNull(record.name), emptyToNull(tag))
+                    && TextUtils.equals(emptyToNull(record.number), emptyToNull(number))) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private void simulateLatency() {
+        mCallCount.incrementAndGet();
+        if (mLatencyMillis > 0) {
+            SystemClock.sleep(mLatencyMillis);
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String emptyToNull(String value) {
+        return TextUtils.isEmpty(value) ? null : value;
+    }
+
+    private static int countEntries(String joined, String separator) {
+        if (TextUtils.isEmpty(joined)) {
+            return 0;
+        }
+        int count = 0;
+        for (String entry : joined.split(separator)) {
+            if (!TextUtils.isEmpty(entry)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
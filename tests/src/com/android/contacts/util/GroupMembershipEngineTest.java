@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test case for {@link GroupMembershipEngine}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.GroupMembershipEngineTest \
+       com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class GroupMembershipEngineTest extends AndroidTestCase {
+
+    public void testDifference() {
+        assertTrue(Arrays.equals(new long[] {1, 4},
+                GroupMembershipEngine.difference(new long[] {1, 2, 3, 4}, new long[] {2, 3})));
+        assertTrue(Arrays.equals(new long[] {1, 2},
+                GroupMembershipEngine.difference(new long[] {1, 2}, new long[0])));
+        assertEquals(0, GroupMembershipEngine.difference(new long[0], new long[] {1}).length);
+        assertEquals(0, GroupMembershipEngine.difference(
+                new long[] {5, 6}, new long[] {1, 5, 6, 9}).length);
+    }
+
+    public void testDifferenceDropsDuplicates() {
+        assertTrue(Arrays.equals(new long[] {1, 3},
+                GroupMembershipEngine.difference(new long[] {1, 1, 2, 3, 3}, new long[] {2})));
+    }
+
+    public void testInSelection() {
+        final long[] ids = new long[] {7, 8, 9, 10};
+        assertEquals("_id IN (8,9)", GroupMembershipEngine.inSelection("_id", ids, 1, 3));
+        assertEquals("_id IN (7,8,9,10)",
+                GroupMembershipEngine.inSelection("_id", ids, 0, ids.length));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.util.PhoneNumberContactCache.Contact;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test case for the matching of batch results in {@link PhoneNumberContactCache}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.PhoneNumberContactCacheTest \
+       com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class PhoneNumberContactCacheTest extends AndroidTestCase {
+
+    private static final Contact MARY = newContact(1, "650-253-0000", "+16502530000");
+    private static final Contact JOHN = newContact(2, "*123#", null);
+
+    private static final List<Contact> CANDIDATES = Arrays.asList(MARY, JOHN);
+
+    public void testFindMatchByNormalizedNumber() {
+        assertSame(MARY, PhoneNumberContactCache.findMatch("(650) 253-0000", "+16502530000",
+                CANDIDATES));
+    }
+
+    public void testFindMatchByRawNumber() {
+        assertSame(JOHN, PhoneNumberContactCache.findMatch("*123#", null, CANDIDATES));
+        assertSame(MARY, PhoneNumberContactCache.findMatch("650-253-0000", null, CANDIDATES));
+    }
+
+    public void testFindMatchLoosely() {
+        assertSame(MARY, PhoneNumberContactCache.findMatch("253-0000", null, CANDIDATES));
+        assertSame(MARY, PhoneNumberContactCache.findMatch("6502530000", null, CANDIDATES));
+    }
+
+    public void testFindMatchMisses() {
+        assertNull(PhoneNumberContactCache.findMatch("650-253-0001", "+16502530001",
+                CANDIDATES));
+        assertNull(PhoneNumberContactCache.findMatch("650-253-0000", null,
+                new ArrayList<Contact>()));
+    }
+
+    private static Contact newContact(long dataId, String number, String normalizedNumber) {
+        return new Contact(dataId, dataId, "Contact " + dataId, 0, null, number,
+                normalizedNumber, 0, null, "lookup" + dataId);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.telephony.PhoneNumberUtils;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test case for {@link PhoneNumberIndex}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.PhoneNumberIndexTest \
+       com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class PhoneNumberIndexTest extends AndroidTestCase {
+
+    private static final String[] GOLDEN_NUMBERS = new String[] {
+            "6502530000",
+            "650-253-0000",
+            "(650) 253-0000",
+            "+16502530000",
+            "+1 650 253 0000",
+            "16502530000",
+            "011 1 650 253 0000",
+            "2530000",
+            "253-0000",
+            "6502530001",
+            "+44 20 7031 3000",
+            "020 7031 3000",
+            "00442070313000",
+            "+8613800138000",
+            "13800138000",
+            "008613800138000",
+            "112",
+            "911",
+            "*21#",
+            "*31#6502530000",
+            "6502530000,123",
+            "6502530000;456",
+            "1-800-FLOWERS",
+            "18003569377",
+            "abc",
+            "",
+            "+",
+            "650N530000",
+            "12345",
+            "012345",
+    };
+
+    public void testMatchesPhoneNumberUtilsCompare() {
+        for (String a : GOLDEN_NUMBERS) {
+            final PhoneNumberIndex index = new PhoneNumberIndex();
+            index.add(a);
+            for (String b : GOLDEN_NUMBERS) {
+                assertEquals("compare(" + a + ", " + b + ")",
+                        PhoneNumberUtils.compare(b, a), index.contains(b));
+            }
+        }
+    }
+
+    public void testAddKeepsOneNumberPerEquivalenceClass() {
+        final PhoneNumberIndex index = new PhoneNumberIndex();
+        final String[] added = new String[GOLDEN_NUMBERS.length];
+        int expected = 0;
+        for (String number : GOLDEN_NUMBERS) {
+            // the reference behavior is the linear scan the index replaces.
+            boolean seen = false;
+            for (int k = 0; k < expected && !seen; k++) {
+                seen = PhoneNumberUtils.compare(number, added[k]);
+            }
+            if (!seen) {
+                added[expected++] = number;
+            }
+            assertEquals(number, !seen, index.add(number));
+        }
+        assertEquals(expected, index.size());
+    }
+
+    public void testInitialList() {
+        final PhoneNumberIndex index = new PhoneNumberIndex(
+                Arrays.asList("650-253-0000", "+1 650 253 0000", "2530001"));
+        assertEquals(2, index.size());
+        assertTrue(index.contains("(650) 253-0000"));
+        assertTrue(index.contains("253-0001"));
+        assertFalse(index.contains("6502530002"));
+        assertFalse(index.contains(null));
+    }
+
+    public void testGetMatchKey() {
+        assertEquals("2530000", PhoneNumberIndex.getMatchKey("+1 (650) 253-0000"));
+        assertEquals("2530000", PhoneNumberIndex.getMatchKey("650-253-0000,123"));
+        assertEquals("112", PhoneNumberIndex.getMatchKey("112"));
+        assertEquals("*21#", PhoneNumberIndex.getMatchKey("*21#"));
+        assertNull(PhoneNumberIndex.getMatchKey("abc"));
+        assertNull(PhoneNumberIndex.getMatchKey(""));
+        assertNull(PhoneNumberIndex.getMatchKey("650N530000"));
+    }
+}
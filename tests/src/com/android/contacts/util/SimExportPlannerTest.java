@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.SimContactsConstants;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test case for {@link SimExportPlanner}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.SimExportPlannerTest \
+       com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class SimExportPlannerTest extends AndroidTestCase {
+
+    public void testNumbersAndEmailsSpreadOverRecords() {
+        final SimExportPlanner.Entry entry = entry(1, "Alice", 3, 3);
+        final SimExportPlanner.Plan plan = SimExportPlanner.plan(Arrays.asList(entry),
+                10, 10, 10, 1, 1);
+
+        final List<SimExportPlanner.Record> records = plan.getRecords();
+        assertEquals(3, records.size());
+        assertEquals("n0", records.get(0).number);
+        assertEquals("n1" + SimContactsConstants.ANR_SEP, records.get(0).anrs);
+        assertEquals("n2", records.get(1).number);
+        assertEquals("", records.get(1).anrs);
+        assertNull(records.get(2).number);
+        assertEquals("e2" + SimContactsConstants.EMAIL_SEP, records.get(2).emails);
+        assertTrue(plan.getUnfitContactIds().isEmpty());
+        assertTrue(plan.getTruncatedContactIds().isEmpty());
+    }
+
+    public void testContactsBeyondFreeRecordsDoNotFit() {
+        final SimExportPlanner.Plan plan = SimExportPlanner.plan(Arrays.asList(
+                entry(1, "A", 1, 0), entry(2, "B", 1, 0), entry(3, "C", 1, 0)),
+                2, 0, 0, 0, 0);
+
+        assertEquals(2, plan.getRecords().size());
+        assertEquals(Arrays.asList(3L), plan.getUnfitContactIds());
+        assertEquals(1, plan.getDroppedNumberCount());
+    }
+
+    public void testSpareAnrsLimitNumbers() {
+        final SimExportPlanner.Plan plan = SimExportPlanner.plan(Arrays.asList(
+                entry(1, "A", 4, 0)), 1, 1, 0, 2, 0);
+
+        assertEquals(1, plan.getRecords().size());
+        assertEquals("n1" + SimContactsConstants.ANR_SEP, plan.getRecords().get(0).anrs);
+        assertEquals(Arrays.asList(1L), plan.getTruncatedContactIds());
+        assertEquals(2, plan.getDroppedNumberCount());
+    }
+
+    public void testEmailsDroppedWithoutEmailSupport() {
+        final SimExportPlanner.Plan plan = SimExportPlanner.plan(Arrays.asList(
+                entry(1, "A", 0, 2), entry(2, null, 0, 1)), 5, 0, 5, 0, 0);
+
+        assertEquals(1, plan.getRecords().size());
+        assertEquals(Arrays.asList(2L), plan.getUnfitContactIds());
+        assertEquals(3, plan.getDroppedEmailCount());
+    }
+
+    private static SimExportPlanner.Entry entry(long id, String name, int numbers, int emails) {
+        final SimExportPlanner.Entry entry = new SimExportPlanner.Entry(id, name);
+        for (int i = 0; i < numbers; i++) {
+            entry.numbers.add("n" + i);
+        }
+        for (int i = 0; i < emails; i++) {
+            entry.emails.add("e" + i);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.contacts.ContactsApplication;
+import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.common.SimContactsOperation;
+import com.android.contacts.common.testing.InjectedServices;
+
+import java.util.ArrayList;
+
+/**
+ * Times importing, exporting and deleting SIM contacts against a
+ * {@link FakeIccPhonebookProvider} with a fixed latency per call, so that the SIM paths can be
+ * compared without a card.
+ *
+ * The fake card and its capacity are registered through
+ * {@link ContactsApplication#injectServices}. Contacts provider calls go to the real provider,
+ * with raw contacts of a throw-away account that are removed afterwards.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.SimPhonebookBenchmark \
+       com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class SimPhonebookBenchmark extends AndroidTestCase {
+    private static final String TAG = "SimPhonebookBenchmark";
+
+    private static final String ACCOUNT_NAME = "sim-benchmark";
+    private static final String ACCOUNT_TYPE = "com.android.contacts.tests.benchmark";
+    private static final int[] SIZES = new int[] {250, 500};
+    private static final int ADN_COUNT = 500;
+    private static final int ANR_PER_CONTACT = 1;
+    private static final int EMAIL_PER_CONTACT = 1;
+    private static final long LATENCY_MILLIS = 5;
+    private static final int BATCH_SIZE = 400;
+    private static final int SUBSCRIPTION = SimContactsConstants.SLOT1;
+
+    /**
+     * Passes contacts provider calls on to the real provider.
+     */
+    private static class ContactsProviderDelegate extends MockContentProvider {
+        private final ContentResolver mResolver;
+
+        ContactsProviderDelegate(Context context) {
+            super(context);
+            mResolver = context.getContentResolver();
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return mResolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return mResolver.insert(uri, values);
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return mResolver.update(uri, values, selection, selectionArgs);
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mResolver.delete(uri, selection, selectionArgs);
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return mResolver.getType(uri);
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations) {
+            try {
+                return mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private FakeIccPhonebookProvider mCard;
+    private ContentResolver mResolver;
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCard = new FakeIccPhonebookProvider(getContext(), ADN_COUNT, ANR_PER_CONTACT,
+                EMAIL_PER_CONTACT);
+        mCard.setLatencyMillis(LATENCY_MILLIS);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(FakeIccPhonebookProvider.AUTHORITY, mCard);
+        resolver.addProvider(ContactsContract.AUTHORITY,
+                new ContactsProviderDelegate(getContext()));
+        mResolver = resolver;
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return mResolver;
+            }
+        };
+
+        final InjectedServices services = new InjectedServices();
+        services.setContentResolver(mResolver);
+        services.setSystemService(SimCapacityCache.CAPACITY_SOURCE_SERVICE, mCard);
+        ContactsApplication.injectServices(services);
+        SimCapacityCache.getInstance(getContext()).invalidateAll();
+        deleteRawContacts();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ContactsApplication.injectServices(null);
+        SimCapacityCache.getInstance(getContext()).invalidateAll();
+        deleteRawContacts();
+        super.tearDown();
+    }
+
+    public void testImport() {
+        for (int size : SIZES) {
+            resetCard();
+            for (int i = 0; i < size; i++) {
+                mCard.addRecord(name(i), number(i), email(i) + SimContactsConstants.EMAIL_SEP,
+                        anr(i) + SimContactsConstants.ANR_SEP);
+            }
+
+            final long start = SystemClock.elapsedRealtime();
+            final SimContactsImporter importer = new SimContactsImporter(
+                    getContext().getContentResolver(), new Account(ACCOUNT_NAME, ACCOUNT_TYPE));
+            final Cursor cursor = mResolver.query(Uri.parse(SimContactsConstants.SIM_URI),
+                    null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    importer.add(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                            cursor.getString(3));
+                }
+            } finally {
+                cursor.close();
+            }
+            importer.finish();
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+
+            assertEquals(size, importer.getImportedCount());
+            Log.i(TAG, "import n=" + size + " " + elapsed + "ms cardCalls="
+                    + mCard.getCallCount());
+            deleteRawContacts();
+        }
+    }
+
+    public void testExport() {
+        for (int size : SIZES) {
+            resetCard();
+            final ArrayList<SimExportPlanner.Entry> entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                final SimExportPlanner.Entry entry = new SimExportPlanner.Entry(i, name(i));
+                entry.numbers.add(number(i));
+                entry.numbers.add(anr(i));
+                entry.emails.add(email(i));
+                entries.add(entry);
+            }
+
+            final long start = SystemClock.elapsedRealtime();
+            final SimCapacityCache.Capacity capacity =
+                    SimCapacityCache.getInstance(mContext).get(SUBSCRIPTION);
+            final SimExportPlanner.Plan plan = SimExportPlanner.plan(entries,
+                    capacity.getFreeAdnCount(), capacity.getSpareAnrCount(),
+                    capacity.getSpareEmailCount(), capacity.anrPerContact,
+                    capacity.emailPerContact);
+            final int written = plan.write(mContext, SUBSCRIPTION, null);
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+
+            assertTrue(plan.getUnfitContactIds().isEmpty());
+            assertEquals(size, written);
+            assertEquals(size, mCard.getRecordCount());
+            Log.i(TAG, "export n=" + size + " " + elapsed + "ms cardCalls="
+                    + mCard.getCallCount());
+        }
+    }
+
+    public void testDelete() throws Exception {
+        for (int size : SIZES) {
+            resetCard();
+            final long[] contactIds = insertContacts(size);
+            for (int i = 0; i < size; i++) {
+                mCard.addRecord(name(i), number(i), null, null);
+            }
+
+            final long start = SystemClock.elapsedRealtime();
+            final SimContactsOperation operation = new SimContactsOperation(mContext);
+            for (long contactId : contactIds) {
+                SimContactsClassifier.deleteFromCard(mContext, operation, contactId,
+                        SUBSCRIPTION);
+            }
+            deleteRawContacts();
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+
+            assertEquals(0, mCard.getRecordCount());
+            Log.i(TAG, "delete n=" + size + " " + elapsed + "ms cardCalls="
+                    + mCard.getCallCount());
+        }
+    }
+
+    private void resetCard() {
+        mCard.clear();
+        SimCapacityCache.getInstance(getContext()).invalidateAll();
+    }
+
+    /**
+     * @return the contact ids of {@param size} new raw contacts with a name and a number.
+     */
+    private long[] insertContacts(int size) throws Exception {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        final ArrayList<Long> rawContactIds = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final int backReference = operations.size();
+            operations.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                    .withValue(RawContacts.ACCOUNT_NAME, ACCOUNT_NAME)
+                    .withValue(RawContacts.ACCOUNT_TYPE, ACCOUNT_TYPE)
+                    .withYieldAllowed(true)
+                    .build());
+            operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                    .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                    .withValue(StructuredName.DISPLAY_NAME, name(i))
+                    .build());
+            operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                    .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                    .withValue(Phone.TYPE, Phone.TYPE_MOBILE)
+                    .withValue(Phone.NUMBER, number(i))
+                    .build());
+            if (operations.size() + 3 > BATCH_SIZE || i == size - 1) {
+                final ContentProviderResult[] results = getContext().getContentResolver()
+                        .applyBatch(ContactsContract.AUTHORITY, operations);
+                for (int j = 0; j < results.length; j += 3) {
+                    rawContactIds.add(ContentUris.parseId(results[j].uri));
+                }
+                operations.clear();
+            }
+        }
+
+        final long[] contactIds = new long[size];
+        for (int i = 0; i < size; i++) {
+            final Cursor cursor = getContext().getContentResolver().query(
+                    ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactIds.get(i)),
+                    new String[] {RawContacts.CONTACT_ID}, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                contactIds[i] = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+        }
+        return contactIds;
+    }
+
+    private void deleteRawContacts() {
+        final Uri uri = RawContacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .build();
+        getContext().getContentResolver().delete(uri, RawContacts.ACCOUNT_NAME + "=? AND "
+                + RawContacts.ACCOUNT_TYPE + "=?", new String[] {ACCOUNT_NAME, ACCOUNT_TYPE});
+    }
+
+    private static String name(int i) {
+        return "Sim Benchmark " + i;
+    }
+
+    private static String number(int i) {
+        return String.valueOf(5550000 + i);
+    }
+
+    private static String anr(int i) {
+        return String.valueOf(6660000 + i);
+    }
+
+    private static String email(int i) {
+        return "sim" + i + "@example.com";
+    }
+}